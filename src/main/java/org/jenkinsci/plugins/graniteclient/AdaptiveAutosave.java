@@ -0,0 +1,70 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+/**
+ * Chooses the autosave threshold of a package install, the number of nodes the package manager installs between
+ * saves of its session. Small packages keep the default threshold. Larger packages save in batches sized to about
+ * {@link #TARGET_SECONDS} of work at the install throughput recorded for the instance, without holding more than
+ * {@link #MAX_BATCH_BYTES} of content in a single save.
+ */
+final class AdaptiveAutosave {
+
+    static final int MIN_AUTOSAVE = 1024;
+    static final int MAX_AUTOSAVE = 65536;
+    static final int TARGET_SECONDS = 5;
+    static final long MAX_BATCH_BYTES = 64L * 1024L * 1024L;
+
+    /**
+     * Without recorded throughput, the package is saved in about this many batches
+     */
+    static final int DEFAULT_BATCHES = 16;
+
+    private AdaptiveAutosave() {
+    }
+
+    /**
+     * @param entries        the number of entries under {@code jcr_root} in the package file
+     * @param bytes          the size of the package file
+     * @param nodesPerSecond the install throughput recorded for the instance, or 0 if none is recorded
+     * @return the autosave threshold, a power of two between {@link #MIN_AUTOSAVE} and {@link #MAX_AUTOSAVE}
+     */
+    static int choose(long entries, long bytes, double nodesPerSecond) {
+        if (entries <= MIN_AUTOSAVE) {
+            return MIN_AUTOSAVE;
+        }
+
+        double target = nodesPerSecond > 0 ? nodesPerSecond * TARGET_SECONDS : entries / (double) DEFAULT_BATCHES;
+        long averageEntryBytes = Math.max(1L, bytes / entries);
+        target = Math.min(target, MAX_BATCH_BYTES / (double) averageEntryBytes);
+        target = Math.min(target, entries);
+
+        int autosave = (int) Math.max(MIN_AUTOSAVE, Math.min(MAX_AUTOSAVE, target));
+        return Integer.highestOneBit(autosave);
+    }
+}
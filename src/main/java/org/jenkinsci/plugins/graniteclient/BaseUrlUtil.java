@@ -1,10 +1,22 @@
 package org.jenkinsci.plugins.graniteclient;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
+import com.ning.http.client.AsyncHttpClient;
+import hudson.Util;
 import hudson.util.FormValidation;
 
 /**
@@ -47,23 +59,159 @@ class BaseUrlUtil {
         return FormValidation.ok("Success");
     }
 
+    /**
+     * Tests the login to every base URL concurrently, sharing one HTTP client, and reports the status, TLS handshake
+     * time and login time of each URL in a table. URLs which have not responded when the overall deadline passes are
+     * reported as timed out.
+     */
     static FormValidation testManyConnections(final String baseUrls, String credentialsId, long requestTimeout, long serviceTimeout) {
-        for (String baseUrl : splitByNewline(baseUrls)) {
-            GraniteClientConfig config =
-                    new GraniteClientConfig(GraniteAHCFactory.getGlobalConfig(),
-                            baseUrl, credentialsId, requestTimeout, serviceTimeout);
+        List<String> urls = splitByNewline(baseUrls);
+        if (urls.isEmpty()) {
+            return FormValidation.error("No Base URLs specified.");
+        }
+
+        final GraniteClientGlobalConfig globalConfig = GraniteAHCFactory.getGlobalConfig();
+        final AsyncHttpClient asyncHttpClient = globalConfig.getInstance();
+        ExecutorService pool = ConcurrencyUtil.newFixedPool("connection test",
+                Math.min(urls.size(), MAX_CONCURRENT_TESTS));
+        try {
+            List<Future<ConnectionTest>> futures = new ArrayList<Future<ConnectionTest>>();
+            for (String baseUrl : urls) {
+                final GraniteClientConfig config = new GraniteClientConfig(globalConfig,
+                        baseUrl, credentialsId, requestTimeout, serviceTimeout);
+                futures.add(pool.submit(new Callable<ConnectionTest>() {
+                    public ConnectionTest call() throws Exception {
+                        return testConnection(config, asyncHttpClient);
+                    }
+                }));
+            }
 
-            config.resolveCredentials();
+            long timeout = requestTimeout > 0 ? requestTimeout
+                    : (globalConfig.getRequestTimeoutInMs() > 0
+                    ? globalConfig.getRequestTimeoutInMs() : GraniteClientGlobalConfig.DEFAULT_TIMEOUT);
+            long deadline = System.currentTimeMillis() + timeout;
 
-            try {
-                if (!GraniteClientExecutor.validateBaseUrl(config)) {
-                    return FormValidation.error("Failed to login to " + config.getBaseUrl() + " as " + config.getUsername());
+            List<ConnectionTest> tests = new ArrayList<ConnectionTest>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+                    tests.add(futures.get(i).get(remaining, TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    tests.add(new ConnectionTest(urls.get(i), false, "Timed out after " + timeout + " ms", -1L, -1L));
+                } catch (ExecutionException e) {
+                    tests.add(new ConnectionTest(urls.get(i), false, String.valueOf(e.getCause().getMessage()),
+                            -1L, -1L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return FormValidation.error("Interrupted while testing connections.");
                 }
-            } catch (IOException e) {
-                return FormValidation.error(e, "Failed to login to " + config.getBaseUrl() + " as " + config.getUsername());
             }
+
+            return formatConnectionTests(tests);
+        } finally {
+            pool.shutdownNow();
+            asyncHttpClient.close();
         }
+    }
 
-        return FormValidation.ok("Success");
+    private static final int MAX_CONCURRENT_TESTS = 16;
+
+    /**
+     * The outcome of a login test against one base URL
+     */
+    static final class ConnectionTest {
+        final String baseUrl;
+        final boolean success;
+        final String message;
+        final long handshakeMs;
+        final long loginMs;
+
+        ConnectionTest(String baseUrl, boolean success, String message, long handshakeMs, long loginMs) {
+            this.baseUrl = baseUrl;
+            this.success = success;
+            this.message = message;
+            this.handshakeMs = handshakeMs;
+            this.loginMs = loginMs;
+        }
+    }
+
+    private static ConnectionTest testConnection(GraniteClientConfig config, AsyncHttpClient asyncHttpClient) {
+        config.resolveCredentials();
+
+        long handshakeMs = -1L;
+        String probeFailure = "";
+        try {
+            handshakeMs = probeTlsHandshake(config);
+        } catch (IOException e) {
+            // the probe doesn't share the client's trust settings, so it must not fail the login test.
+            probeFailure = " (TLS probe failed: " + e.getMessage() + ")";
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            boolean success = GraniteClientExecutor.validateBaseUrl(config, asyncHttpClient);
+            long loginMs = System.currentTimeMillis() - start;
+            return new ConnectionTest(config.getBaseUrl(), success,
+                    (success ? "Success" : "Failed to login as " + config.getUsername()) + probeFailure,
+                    handshakeMs, loginMs);
+        } catch (IOException e) {
+            return new ConnectionTest(config.getBaseUrl(), false,
+                    "Failed to login as " + config.getUsername() + ": " + e.getMessage() + probeFailure,
+                    handshakeMs, -1L);
+        }
+    }
+
+    /**
+     * Opens a separate TLS connection directly to the host of an https base URL with the JVM's default JSSE socket
+     * factory, and times the handshake. This is an independent probe of the network and the server: it does not use
+     * the HTTP client's connection pool or trust settings, so the login request may reuse a connection, or trust
+     * a certificate, that the probe does not. The handshake is not timed for plain http URLs, or when connections
+     * go through a proxy.
+     *
+     * @return the handshake time in milliseconds, or -1 if it was not timed
+     * @throws IOException if the probe could not connect or complete the handshake
+     */
+    static long probeTlsHandshake(GraniteClientConfig config) throws IOException {
+        URI uri = URI.create(config.getBaseUrl());
+        if (!"https".equalsIgnoreCase(uri.getScheme()) || config.getGlobalConfig().getProxy() != null) {
+            return -1L;
+        }
+
+        int connectTimeout = config.getGlobalConfig().getConnectionTimeoutInMs() > 0
+                ? config.getGlobalConfig().getConnectionTimeoutInMs() : GraniteClientGlobalConfig.DEFAULT_TIMEOUT;
+        SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+        try {
+            socket.setSoTimeout(connectTimeout);
+            socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 443),
+                    connectTimeout);
+            long start = System.currentTimeMillis();
+            socket.startHandshake();
+            return System.currentTimeMillis() - start;
+        } finally {
+            socket.close();
+        }
+    }
+
+    static FormValidation formatConnectionTests(List<ConnectionTest> tests) {
+        boolean success = true;
+        StringBuilder html = new StringBuilder("<table><tr><th align=\"left\">Base URL</th>"
+                + "<th align=\"left\">Status</th>"
+                + "<th align=\"right\" title=\"Measured on a separate JSSE connection, not the HTTP client\">"
+                + "TLS Probe</th>"
+                + "<th align=\"right\">Login</th></tr>");
+        for (ConnectionTest test : tests) {
+            success &= test.success;
+            html.append("<tr><td>").append(Util.escape(test.baseUrl))
+                    .append("</td><td>").append(Util.escape(test.message))
+                    .append("</td><td align=\"right\">").append(formatMillis(test.handshakeMs))
+                    .append("</td><td align=\"right\">").append(formatMillis(test.loginMs))
+                    .append("</td></tr>");
+        }
+        html.append("</table>");
+        return success ? FormValidation.okWithMarkup(html.toString()) : FormValidation.errorWithMarkup(html.toString());
+    }
+
+    private static String formatMillis(long millis) {
+        return millis < 0 ? "-" : millis + " ms";
     }
 }
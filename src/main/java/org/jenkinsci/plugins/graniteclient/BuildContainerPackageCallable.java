@@ -0,0 +1,143 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Assembles package files into a container package, which installs them as sub packages when it is installed
+ * recursively. Each package file is streamed into the container unchanged, as the file node that the package manager
+ * stores uploaded packages in, and is never extracted.
+ */
+public class BuildContainerPackageCallable extends MasterToSlaveFileCallable<Long> {
+
+    private static final long serialVersionUID = -1967294408105432183L;
+
+    static final String FILTER_XML = "META-INF/vault/filter.xml";
+
+    private final PackId containerId;
+    private final LinkedHashMap<PackId, String> packageFiles;
+
+    /**
+     * @param containerId  the ID of the container package
+     * @param packageFiles the packages to include, each mapped to the remote path of its file on the same node
+     */
+    public BuildContainerPackageCallable(PackId containerId, LinkedHashMap<PackId, String> packageFiles) {
+        this.containerId = containerId;
+        this.packageFiles = packageFiles;
+    }
+
+    /**
+     * @return the length of the container file
+     */
+    @Override
+    public Long invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        File parent = f.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(f));
+        try {
+            zip.putNextEntry(new ZipEntry(ReadPackageDependenciesCallable.PROPERTIES_XML));
+            getProperties().storeToXML(zip, null, "UTF-8");
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry(FILTER_XML));
+            Writer writer = new OutputStreamWriter(zip, "UTF-8");
+            writer.write(getFilterXml());
+            writer.flush();
+            zip.closeEntry();
+
+            // package files are already compressed, so compressing them again only costs time
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            byte[] buffer = new byte[64 * 1024];
+            for (Map.Entry<PackId, String> entry : packageFiles.entrySet()) {
+                zip.putNextEntry(new ZipEntry("jcr_root" + getSubPackagePath(entry.getKey())));
+                InputStream in = new FileInputStream(entry.getValue());
+                try {
+                    copy(in, zip, buffer);
+                } finally {
+                    in.close();
+                }
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+        return f.length();
+    }
+
+    private Properties getProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("group", containerId.getGroup());
+        properties.setProperty("name", containerId.getName());
+        properties.setProperty("version", containerId.getVersion());
+        properties.setProperty("description", "Container for " + packageFiles.size() + " packages");
+        return properties;
+    }
+
+    String getFilterXml() {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<workspaceFilter version=\"1.0\">\n");
+        for (PackId packId : packageFiles.keySet()) {
+            xml.append("    <filter root=\"").append(StringEscapeUtils.escapeXml(getSubPackagePath(packId)))
+                    .append("\"/>\n");
+        }
+        return xml.append("</workspaceFilter>\n").toString();
+    }
+
+    static String getSubPackagePath(PackId packId) {
+        return packId.getInstallationPath() + ".zip";
+    }
+
+    private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+}
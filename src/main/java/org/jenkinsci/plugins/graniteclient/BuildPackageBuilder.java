@@ -68,6 +68,7 @@ public class BuildPackageBuilder extends AbstractBuildStep {
     private String wspFilter = null;
     private String localDirectory = null;
     private boolean download = false;
+    private boolean skipUnchanged = false;
 
     @DataBoundConstructor
     public BuildPackageBuilder(String packageId, String baseUrl) {
@@ -116,7 +117,7 @@ public class BuildPackageBuilder extends AbstractBuildStep {
         clientConfig.resolveCredentials();
 
         BuildPackageCallable callable =
-                new BuildPackageCallable(clientConfig, listener, packId, filter, download);
+                new BuildPackageCallable(clientConfig, listener, packId, filter, download, skipUnchanged);
 
         final String fLocalDirectory = getLocalDirectory(build, workspace, listener);
 
@@ -218,6 +219,10 @@ public class BuildPackageBuilder extends AbstractBuildStep {
         return download;
     }
 
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
     public String getLocalDirectory() {
         if (StringUtils.isBlank(localDirectory)) {
             return ".";
@@ -251,6 +256,11 @@ public class BuildPackageBuilder extends AbstractBuildStep {
         this.download = download;
     }
 
+    @DataBoundSetter
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
     @DataBoundSetter
     public void setRequestTimeout(long requestTimeout) {
         this.requestTimeout = requestTimeout;
@@ -29,12 +29,21 @@ package org.jenkinsci.plugins.graniteclient;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import net.adamcin.granite.client.packman.DetailedResponse;
-import net.adamcin.granite.client.packman.DownloadResponse;
 import net.adamcin.granite.client.packman.PackId;
 import net.adamcin.granite.client.packman.PackageManagerClient;
 import net.adamcin.granite.client.packman.ResponseProgressListener;
@@ -43,27 +52,53 @@ import net.adamcin.granite.client.packman.WspFilter;
 
 /**
  * Implementation of {@link hudson.FilePath.FileCallable} used by the {@link org.jenkinsci.plugins.graniteclient.BuildPackageBuilder}
+ * and the {@link org.jenkinsci.plugins.graniteclient.BuildPackagesBuilder}
  */
 public class BuildPackageCallable extends GraniteClientFileCallable<Result> {
 
     private static final long serialVersionUID = 1329103722879551699L;
     private final GraniteClientConfig clientConfig;
     private final TaskListener listener;
-    private final PackId packId;
-    private final WspFilter wspFilter;
+    private final LinkedHashMap<PackId, WspFilter> packages;
     private final boolean download;
+    private final int parallelBuilds;
+    private final boolean skipUnchanged;
     private final ResponseProgressListener progressListener;
 
     public BuildPackageCallable(GraniteClientConfig clientConfig,
                                 TaskListener listener, PackId packId, WspFilter wspFilter, boolean download) {
+        this(clientConfig, listener, packId, wspFilter, download, false);
+    }
+
+    public BuildPackageCallable(GraniteClientConfig clientConfig, TaskListener listener, PackId packId,
+                                WspFilter wspFilter, boolean download, boolean skipUnchanged) {
+        this(clientConfig, listener, singlePackage(packId, wspFilter), download, 1, skipUnchanged);
+    }
+
+    /**
+     * @param packages       the packages to build, in order, each mapped to the workspace filter to apply before
+     *                       building, or to null to keep the existing filter
+     * @param parallelBuilds the maximum number of packages to build at the same time
+     * @param skipUnchanged  skip building packages whose filter and content are unchanged since their last build
+     */
+    public BuildPackageCallable(GraniteClientConfig clientConfig, TaskListener listener,
+                                LinkedHashMap<PackId, WspFilter> packages, boolean download, int parallelBuilds,
+                                boolean skipUnchanged) {
         this.clientConfig = clientConfig;
         this.listener = listener;
-        this.packId = packId;
-        this.wspFilter = wspFilter;
+        this.packages = packages;
         this.download = download;
+        this.parallelBuilds = Math.max(1, parallelBuilds);
+        this.skipUnchanged = skipUnchanged;
         this.progressListener = new JenkinsResponseProgressListener(listener);
     }
 
+    private static LinkedHashMap<PackId, WspFilter> singlePackage(PackId packId, WspFilter wspFilter) {
+        LinkedHashMap<PackId, WspFilter> packages = new LinkedHashMap<PackId, WspFilter>();
+        packages.put(packId, wspFilter);
+        return packages;
+    }
+
     private class Execution implements PackageManagerClientCallable<Result> {
         final File toDirectory;
 
@@ -72,10 +107,84 @@ public class BuildPackageCallable extends GraniteClientFileCallable<Result> {
         }
 
         public Result doExecute(PackageManagerClient client) throws Exception {
-            Result result = Result.SUCCESS;
             client.setRequestTimeout(clientConfig.getRequestTimeout());
             client.setServiceTimeout(clientConfig.getServiceTimeout());
 
+            GraniteHttpSession session = download || skipUnchanged
+                    ? GraniteHttpSession.open(client, clientConfig, listener) : null;
+            final PackageDownloader downloader = download ? new PackageDownloader(session, listener) : null;
+            final PackageChangeDetector changeDetector = skipUnchanged ? new PackageChangeDetector(session) : null;
+
+            if (parallelBuilds > 1 && packages.size() > 1) {
+                return doExecuteParallel(client, downloader, changeDetector);
+            }
+
+            Result result = Result.SUCCESS;
+            for (Map.Entry<PackId, WspFilter> entry : packages.entrySet()) {
+                Result packResult = buildPackage(client, downloader, changeDetector, entry.getKey(),
+                        entry.getValue());
+                if (packResult == Result.FAILURE) {
+                    return Result.FAILURE;
+                }
+                result = result.combine(packResult);
+            }
+            return result;
+        }
+
+        /**
+         * Builds up to {@link #parallelBuilds} packages at a time. Each package is downloaded by the same task as soon
+         * as its build completes, so downloads overlap with the builds of the other packages. A failure cancels the
+         * remaining builds.
+         */
+        private Result doExecuteParallel(final PackageManagerClient client, final PackageDownloader downloader,
+                                         final PackageChangeDetector changeDetector) throws Exception {
+            listener.getLogger().printf("Building %d packages with up to %d concurrent builds.%n",
+                    packages.size(), parallelBuilds);
+
+            ExecutorService pool = ConcurrencyUtil.newFixedPool("build", parallelBuilds);
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            try {
+                CompletionService<Result> completions = new ExecutorCompletionService<Result>(pool);
+                for (final Map.Entry<PackId, WspFilter> entry : packages.entrySet()) {
+                    futures.add(completions.submit(new Callable<Result>() {
+                        public Result call() throws Exception {
+                            return buildPackage(client, downloader, changeDetector, entry.getKey(),
+                                    entry.getValue());
+                        }
+                    }));
+                }
+
+                Result result = Result.SUCCESS;
+                for (int i = 0; i < futures.size(); i++) {
+                    Result packResult;
+                    try {
+                        packResult = completions.take().get();
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace(listener.error("Failed to build package: %s",
+                                e.getCause().getMessage()));
+                        packResult = Result.FAILURE;
+                    }
+
+                    if (packResult == Result.FAILURE) {
+                        ConcurrencyUtil.cancelAll(futures);
+                        return Result.FAILURE;
+                    }
+                    result = result.combine(packResult);
+                }
+                return result;
+            } catch (InterruptedException e) {
+                ConcurrencyUtil.cancelAll(futures);
+                throw e;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private Result buildPackage(PackageManagerClient client, PackageDownloader downloader,
+                                    PackageChangeDetector changeDetector, PackId packId, WspFilter wspFilter)
+                throws Exception {
+            Result result = Result.SUCCESS;
+
             client.waitForService();
             listener.getLogger().printf(
                     "Checking for package %s on server %s%n", packId, clientConfig.getBaseUrl()
@@ -84,6 +193,9 @@ public class BuildPackageCallable extends GraniteClientFileCallable<Result> {
             // first, create the package if it doesn't exist.
             if (client.existsOnServer(packId)) {
                 listener.getLogger().printf("Found package: %s%n", client.getConsoleUiUrl(packId));
+                if (changeDetector != null && isUnchanged(changeDetector, packId, wspFilter)) {
+                    return downloadPackage(downloader, packId, result);
+                }
             } else {
                 listener.getLogger().printf("Creating package.%n");
                 SimpleResponse r_create = client.create(packId);
@@ -121,20 +233,32 @@ public class BuildPackageCallable extends GraniteClientFileCallable<Result> {
             }
 
             // finally, download the package if requested
-            if (download) {
-                listener.getLogger().printf("Downloading %s to %s%n", packId, toDirectory);
+            return downloadPackage(downloader, packId, result);
+        }
 
-                DownloadResponse response = client.downloadToDirectory(packId, toDirectory);
-                listener.getLogger().printf("Downloaded %d bytes to file %s.%n", response.getLength(), response.getContent());
-                listener.getLogger().printf("Verifying downloaded package...%n");
-                PackId reId = PackId.identifyPackage(response.getContent());
-                if (packId.equals(reId)) {
-                    listener.getLogger().printf("Package verified as %s.%n", packId);
-                } else {
-                    throw new Exception("Package verification failed: " + response.getContent());
+        private boolean isUnchanged(PackageChangeDetector changeDetector, PackId packId, WspFilter wspFilter) {
+            try {
+                String reason = changeDetector.getRebuildReason(packId, wspFilter);
+                if (reason == null) {
+                    listener.getLogger().printf("Package %s and its content are unchanged since the last build. "
+                            + "Skipping build.%n", packId);
+                    return true;
                 }
+                listener.getLogger().printf("Rebuilding package %s because %s.%n", packId, reason);
+            } catch (IOException e) {
+                listener.error("Failed to check package %s for changes. Rebuilding it: %s", packId, e.getMessage());
             }
+            return false;
+        }
+
+        private Result downloadPackage(PackageDownloader downloader, PackId packId, Result result) throws Exception {
+            if (downloader != null) {
+                listener.getLogger().printf("Downloading %s to %s%n", packId, toDirectory);
 
+                PackageDownloader.Download download = downloader.download(packId, toDirectory);
+                listener.getLogger().printf("Downloaded %d bytes to file %s.%n", download.getLength(), download.getFile());
+                listener.getLogger().printf("Package verified as %s (sha256 %s).%n", packId, download.getSha256());
+            }
             return result;
         }
     }
@@ -0,0 +1,357 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxModel;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.WspFilter;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.annotation.Nonnull;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of the "Build Content Packages on CRX" build step
+ */
+public class BuildPackagesBuilder extends AbstractBuildStep {
+    private String packageSpecs;
+    private String baseUrl;
+    private String credentialsId = null;
+    private long requestTimeout = 0L;
+    private long serviceTimeout = 0L;
+    private long waitDelay = 0L;
+    private String localDirectory = null;
+    private boolean download = false;
+    private boolean skipUnchanged = false;
+    private int parallelBuilds = 1;
+
+    @DataBoundConstructor
+    public BuildPackagesBuilder(String packageSpecs, String baseUrl) {
+        this.packageSpecs = packageSpecs;
+        this.baseUrl = baseUrl;
+    }
+
+    public void perform(@Nonnull Run<?, ?> build, @Nonnull FilePath workspace, @Nonnull Launcher launcher,
+                        @Nonnull TaskListener listener) throws InterruptedException, IOException {
+
+        Result result = Result.SUCCESS;
+        Result buildResult = build.getResult();
+        if (buildResult != null) {
+            result = buildResult;
+        }
+
+        LinkedHashMap<PackId, WspFilter> packages;
+        try {
+            packages = parsePackageSpecs(getPackageSpecs(build, workspace, listener));
+        } catch (IllegalArgumentException e) {
+            listener.fatalError("Failed to parse Package Specs: %s%n", e.getMessage());
+            build.setResult(result.combine(Result.FAILURE));
+            return;
+        }
+
+        if (packages.isEmpty()) {
+            listener.getLogger().println("No packages to build.");
+            return;
+        }
+
+        GraniteClientConfig clientConfig = new GraniteClientConfig(GraniteAHCFactory.getGlobalConfig(),
+                getBaseUrl(build, workspace, listener), credentialsId, requestTimeout, serviceTimeout, waitDelay);
+
+        clientConfig.resolveCredentials();
+
+        BuildPackageCallable callable =
+                new BuildPackageCallable(clientConfig, listener, packages, download, getParallelBuilds(),
+                        skipUnchanged);
+
+        final String fLocalDirectory = getLocalDirectory(build, workspace, listener);
+
+        Result actResult = workspace.child(fLocalDirectory).act(callable);
+        if (actResult != null) {
+            result = result.combine(actResult);
+        }
+
+        build.setResult(result);
+    }
+
+    /**
+     * Parses a list of package IDs, each optionally followed by the workspace filter to apply to that package in the
+     * simple spec format used by the "Build a Content Package on CRX" step. Lines beginning with "/", "+", or "-"
+     * belong to the filter of the preceding package ID. Every other non-empty, non-comment line is a package ID.
+     *
+     * @param packageSpecs the package specs
+     * @return the packages in the order they were listed, mapped to their filters, or to null if no filter lines
+     * followed the package ID
+     * @throws IllegalArgumentException if a package ID or filter fails to parse, or if a package is listed twice
+     */
+    static LinkedHashMap<PackId, WspFilter> parsePackageSpecs(String packageSpecs) {
+        LinkedHashMap<PackId, List<String>> filterLines = new LinkedHashMap<PackId, List<String>>();
+        List<String> currentLines = null;
+        if (packageSpecs != null) {
+            for (String rawLine : packageSpecs.split("\\r?\\n")) {
+                String line = rawLine.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith("/") || line.startsWith("+") || line.startsWith("-")) {
+                    if (currentLines == null) {
+                        throw new IllegalArgumentException("Filter line must follow a package ID: " + line);
+                    }
+                    currentLines.add(line);
+                } else {
+                    String pid = line.contains("#") ? line.substring(0, line.indexOf('#')).trim() : line;
+                    PackId packId = PackId.parsePid(pid);
+                    if (packId == null) {
+                        throw new IllegalArgumentException("Invalid package ID: " + pid);
+                    }
+                    if (filterLines.containsKey(packId)) {
+                        throw new IllegalArgumentException("Package is listed more than once: " + packId);
+                    }
+                    currentLines = new ArrayList<String>();
+                    filterLines.put(packId, currentLines);
+                }
+            }
+        }
+
+        LinkedHashMap<PackId, WspFilter> packages = new LinkedHashMap<PackId, WspFilter>();
+        for (Map.Entry<PackId, List<String>> entry : filterLines.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                packages.put(entry.getKey(), null);
+            } else {
+                try {
+                    packages.put(entry.getKey(),
+                            WspFilter.parseSimpleSpec(StringUtils.join(entry.getValue(), "\n")));
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Invalid filter for " + entry.getKey() + ": "
+                            + e.getMessage(), e);
+                }
+            }
+        }
+        return packages;
+    }
+
+    public String getPackageSpecs() {
+        return packageSpecs == null ? "" : packageSpecs;
+    }
+
+    public String getPackageSpecs(Run<?, ?> build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+        try {
+            return TokenMacro.expandAll(build, workspace, listener, getPackageSpecs());
+        } catch (MacroEvaluationException e) {
+            listener.error("Failed to expand macros in Package Specs: %s", getPackageSpecs());
+            return getPackageSpecs();
+        }
+    }
+
+    private String getBaseUrl(Run<?, ?> build, FilePath workspace, TaskListener listener) {
+        try {
+            return TokenMacro.expandAll(build, workspace, listener, getBaseUrl());
+        } catch (Exception e) {
+            listener.error("failed to expand tokens in: %s%n", getBaseUrl());
+        }
+        return getBaseUrl();
+    }
+
+    public String getCredentialsId() {
+        return credentialsId == null ? "" : credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        if (StringUtils.isBlank(credentialsId)) {
+            this.credentialsId = null;
+        } else {
+            this.credentialsId = credentialsId;
+        }
+    }
+
+    private String getLocalDirectory(Run<?, ?> build, FilePath workspace, TaskListener listener) {
+        try {
+            return TokenMacro.expandAll(build, workspace, listener, getLocalDirectory());
+        } catch (Exception e) {
+            listener.error("failed to expand tokens in: %s%n", getLocalDirectory());
+        }
+        return getLocalDirectory();
+    }
+
+    public String getBaseUrl() {
+        if (this.baseUrl != null) {
+            return this.baseUrl.trim();
+        } else {
+            return "";
+        }
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public long getServiceTimeout() {
+        return serviceTimeout;
+    }
+
+    public long getWaitDelay() {
+        return waitDelay;
+    }
+
+    @DataBoundSetter
+    public void setWaitDelay(long waitDelay) {
+        this.waitDelay = waitDelay;
+    }
+
+    public boolean isDownload() {
+        return download;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    public int getParallelBuilds() {
+        return parallelBuilds > 0 ? parallelBuilds : 1;
+    }
+
+    public String getLocalDirectory() {
+        if (StringUtils.isBlank(localDirectory)) {
+            return ".";
+        } else {
+            return localDirectory;
+        }
+    }
+
+    @DataBoundSetter
+    public void setLocalDirectory(String localDirectory) {
+        this.localDirectory = localDirectory;
+    }
+
+    @DataBoundSetter
+    public void setPackageSpecs(String packageSpecs) {
+        this.packageSpecs = packageSpecs;
+    }
+
+    @DataBoundSetter
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    @DataBoundSetter
+    public void setDownload(boolean download) {
+        this.download = download;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setParallelBuilds(int parallelBuilds) {
+        this.parallelBuilds = parallelBuilds;
+    }
+
+    @DataBoundSetter
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    @DataBoundSetter
+    public void setServiceTimeout(long serviceTimeout) {
+        this.serviceTimeout = serviceTimeout;
+    }
+
+    @Symbol("crxBuildAll")
+    @Extension // This indicates to Jenkins that this is an implementation of an extension point.
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        @RequirePOST
+        public AbstractIdCredentialsListBoxModel doFillCredentialsIdItems(@AncestorInPath Item context,
+                                                                          @QueryParameter("baseUrl") String baseUrl,
+                                                                          @QueryParameter("value") String value) {
+            context.checkPermission(Item.CONFIGURE);
+            return GraniteCredentialsListBoxModel.fillItems(value, context, baseUrl);
+        }
+
+        @RequirePOST
+        public FormValidation doTestConnection(@AncestorInPath Item context,
+                                               @QueryParameter("baseUrl") final String baseUrl,
+                                               @QueryParameter("credentialsId") final String credentialsId,
+                                               @QueryParameter("requestTimeout") final long requestTimeout,
+                                               @QueryParameter("serviceTimeout") final long serviceTimeout)
+                throws IOException, ServletException {
+            context.checkPermission(Item.CONFIGURE);
+            return BaseUrlUtil.testOneConnection(baseUrl, credentialsId, requestTimeout, serviceTimeout);
+        }
+
+        public FormValidation doCheckPackageSpecs(@QueryParameter String value) {
+            if (value != null && value.contains("$")) {
+                // tokens are expanded at build time
+                return FormValidation.ok();
+            }
+            try {
+                parsePackageSpecs(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Build Content Packages on CRX";
+        }
+    }
+
+}
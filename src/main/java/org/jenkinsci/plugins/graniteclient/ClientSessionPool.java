@@ -0,0 +1,160 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.ning.http.client.AsyncHttpClient;
+import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
+
+/**
+ * Holds logged-in clients in the JVM that runs the client callables, so that the connections and sessions opened by
+ * the warm-up phase of a step are reused by its package operations instead of connecting and logging in again.
+ * Clients are pooled per step execution, identified by a pool ID, and per base URL. A client is lent to one caller
+ * at a time. Clients idle for longer than {@link #IDLE_TIMEOUT_MS} are closed the next time the pool is used.
+ */
+final class ClientSessionPool {
+
+    static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Map<String, Deque<Session>> IDLE = new HashMap<String, Deque<Session>>();
+
+    private ClientSessionPool() {
+    }
+
+    /**
+     * A logged-in client along with the HTTP client which it owns
+     */
+    static final class Session {
+        private final String key;
+        private final AsyncHttpClient ahcClient;
+        private final AsyncPackageManagerClient client;
+        private long lastUsed;
+
+        Session(String poolId, GraniteClientConfig config, AsyncHttpClient ahcClient,
+                AsyncPackageManagerClient client) {
+            this.key = getKey(poolId, config);
+            this.ahcClient = ahcClient;
+            this.client = client;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        AsyncPackageManagerClient getClient() {
+            return client;
+        }
+
+        void close() {
+            ahcClient.close();
+        }
+    }
+
+    private static String getKey(String poolId, GraniteClientConfig config) {
+        return poolId + " " + config.getBaseUrl() + " " + config.getCredentialsId();
+    }
+
+    /**
+     * Borrows an idle session for the base URL of the config.
+     *
+     * @return the session, or null if none is idle
+     */
+    static Session acquire(String poolId, GraniteClientConfig config) {
+        synchronized (IDLE) {
+            reapIdle();
+            Deque<Session> sessions = IDLE.get(getKey(poolId, config));
+            return sessions != null ? sessions.pollFirst() : null;
+        }
+    }
+
+    /**
+     * Returns a session to the pool, or closes it if it is no longer usable.
+     *
+     * @param session the session
+     * @param healthy false if the last use of the session failed
+     */
+    static void release(Session session, boolean healthy) {
+        if (!healthy) {
+            session.close();
+            return;
+        }
+        synchronized (IDLE) {
+            session.lastUsed = System.currentTimeMillis();
+            Deque<Session> sessions = IDLE.get(session.key);
+            if (sessions == null) {
+                sessions = new ArrayDeque<Session>();
+                IDLE.put(session.key, sessions);
+            }
+            sessions.addFirst(session);
+        }
+    }
+
+    /**
+     * Closes every idle session of a pool, once the step which owns it is done with it.
+     *
+     * @param poolId the pool ID
+     * @return the number of sessions closed
+     */
+    static int close(String poolId) {
+        int closed = 0;
+        synchronized (IDLE) {
+            for (Iterator<Map.Entry<String, Deque<Session>>> entries = IDLE.entrySet().iterator();
+                 entries.hasNext(); ) {
+                Map.Entry<String, Deque<Session>> entry = entries.next();
+                if (entry.getKey().startsWith(poolId + " ")) {
+                    for (Session session : entry.getValue()) {
+                        session.close();
+                        closed++;
+                    }
+                    entries.remove();
+                }
+            }
+        }
+        return closed;
+    }
+
+    private static void reapIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+        for (Iterator<Deque<Session>> pools = IDLE.values().iterator(); pools.hasNext(); ) {
+            Deque<Session> sessions = pools.next();
+            for (Iterator<Session> it = sessions.iterator(); it.hasNext(); ) {
+                Session session = it.next();
+                if (session.lastUsed < cutoff) {
+                    session.close();
+                    it.remove();
+                }
+            }
+            if (sessions.isEmpty()) {
+                pools.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Common methods for running bounded groups of tasks concurrently within a single build step
+ */
+final class ConcurrencyUtil {
+
+    private ConcurrencyUtil() {
+    }
+
+    /**
+     * Creates a fixed-size pool of daemon threads, named for the step which uses them so that they are easy to find in
+     * a thread dump.
+     *
+     * @param name    a short name for the threads
+     * @param threads the maximum number of concurrent tasks. values less than 1 are treated as 1.
+     * @return a new executor service, which must be shut down by the caller
+     */
+    static ExecutorService newFixedPool(String name, int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads),
+                new NamingThreadFactory(new DaemonThreadFactory(), "crx-content-package-deployer " + name));
+    }
+
+    /**
+     * Creates a bounded pool of daemon threads for a master-wide service which is never shut down. Idle threads exit
+     * after a minute, so that the pool costs nothing while it is unused.
+     *
+     * @param name    a short name for the threads
+     * @param threads the maximum number of concurrent tasks. values less than 1 are treated as 1.
+     * @return a new executor service
+     */
+    static ExecutorService newSharedPool(String name, int threads) {
+        int size = Math.max(1, threads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "crx-content-package-deployer " + name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Waits for each future in order and returns the list of results. If the waiting thread is interrupted, all of
+     * the remaining futures are cancelled before the exception is rethrown.
+     *
+     * @param futures the futures to wait for
+     * @param <T>     the result type
+     * @return the results, in the same order as the futures
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException   the first exception thrown by a task
+     */
+    static <T> List<T> awaitAll(List<Future<T>> futures) throws InterruptedException, ExecutionException {
+        List<T> results = new ArrayList<T>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            throw e;
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            throw e;
+        } catch (CancellationException e) {
+            cancelAll(futures);
+            throw new ExecutionException(e);
+        }
+        return results;
+    }
+
+    static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Implementation of {@link hudson.FilePath.FileCallable} used by the {@link DeployPackagesBuilder} to resolve,
+ * connect, login and wait for the package manager service of every target instance concurrently before any package
+ * is deployed. The logged-in clients are left in the {@link ClientSessionPool} of the node for the package
+ * operations of the step to reuse.
+ */
+public final class ConnectionWarmUpCallable extends GraniteClientFileCallable<List<String>> {
+
+    private static final long serialVersionUID = 4188734020547612379L;
+
+    static final int MAX_CONCURRENT_WARM_UPS = 16;
+
+    private final List<GraniteClientConfig> clientConfigs;
+    private final TaskListener listener;
+
+    /**
+     * @param clientConfigs the instances to warm up, with resolved credentials and a session pool ID
+     */
+    public ConnectionWarmUpCallable(List<GraniteClientConfig> clientConfigs, TaskListener listener) {
+        this.clientConfigs = clientConfigs;
+        this.listener = listener;
+    }
+
+    /**
+     * @return a description of each instance which could not be reached, or an empty list if all of them are ready
+     */
+    public List<String> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        listener.getLogger().printf("Warming up connections to %d instances.%n", clientConfigs.size());
+
+        ExecutorService pool = ConcurrencyUtil.newFixedPool("warm-up",
+                Math.min(clientConfigs.size(), MAX_CONCURRENT_WARM_UPS));
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        try {
+            for (final GraniteClientConfig config : clientConfigs) {
+                futures.add(pool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return warmUp(config);
+                    }
+                }));
+            }
+
+            List<String> unreachable = new ArrayList<String>();
+            for (int i = 0; i < futures.size(); i++) {
+                String failure;
+                try {
+                    failure = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failure = String.valueOf(e.getCause().getMessage());
+                }
+                if (failure != null) {
+                    unreachable.add(clientConfigs.get(i).getBaseUrl() + ": " + failure);
+                }
+            }
+            return Collections.unmodifiableList(unreachable);
+        } catch (InterruptedException e) {
+            ConcurrencyUtil.cancelAll(futures);
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return null if the instance is ready, or the reason it is not
+     */
+    private String warmUp(GraniteClientConfig config) throws Exception {
+        long start = System.currentTimeMillis();
+        String host = URI.create(config.getBaseUrl()).getHost();
+        if (host == null) {
+            return "invalid base URL";
+        }
+        try {
+            InetAddress.getAllByName(host);
+        } catch (IOException e) {
+            return "failed to resolve host " + host + ": " + e.getMessage();
+        }
+        long resolved = System.currentTimeMillis();
+
+        ClientSessionPool.Session session;
+        try {
+            session = GraniteClientExecutor.openSession(config, listener);
+        } catch (IOException e) {
+            return "failed to connect and login: " + e.getMessage();
+        }
+        long loggedIn = System.currentTimeMillis();
+
+        boolean ready = false;
+        try {
+            ready = session.getClient().waitForService();
+        } finally {
+            ClientSessionPool.release(session, ready);
+        }
+        if (!ready) {
+            return "package manager service is not ready";
+        }
+
+        long finished = System.currentTimeMillis();
+        listener.getLogger().printf("Connected to %s in %d ms (resolve %d ms, connect and login %d ms, "
+                        + "service check %d ms).%n", config.getBaseUrl(), finished - start,
+                resolved - start, loggedIn - resolved, finished - loggedIn);
+        return null;
+    }
+
+    /**
+     * Closes the idle clients of a session pool at the end of a step
+     */
+    public static final class CloseSessions extends MasterToSlaveFileCallable<Integer> {
+
+        private static final long serialVersionUID = -2916602711858463707L;
+
+        private final String sessionPoolId;
+
+        public CloseSessions(String sessionPoolId) {
+            this.sessionPoolId = sessionPoolId;
+        }
+
+        public Integer invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            return ClientSessionPool.close(sessionPoolId);
+        }
+    }
+}
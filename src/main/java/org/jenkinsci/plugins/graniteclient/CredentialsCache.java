@@ -0,0 +1,96 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+
+/**
+ * Caches the results of {@link GraniteNamedIdCredentials#getCredentialsById(String)}, so that resolving the same
+ * credentials for every base URL, parameter render and form validation does not scan the system credentials store
+ * each time. Missing IDs are cached too. The whole cache, along with the {@link SignatureKeyCache}, is cleared
+ * whenever the system credentials store is saved.
+ */
+@Extension
+public final class CredentialsCache extends SaveableListener {
+
+    /**
+     * Marks a credentials ID which was not found, since the map does not accept null values
+     */
+    private static final Object MISSING = new Object();
+
+    private static final ConcurrentMap<String, Object> CACHE = new ConcurrentHashMap<String, Object>();
+
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    /**
+     * Loads the credentials for an ID when they are not cached
+     */
+    interface Loader {
+        @CheckForNull
+        Credentials load(String credentialsId);
+    }
+
+    @CheckForNull
+    static Credentials get(String credentialsId, Loader loader) {
+        Object cached = CACHE.get(credentialsId);
+        if (cached == null) {
+            long generation = GENERATION.get();
+            Credentials credentials = loader.load(credentialsId);
+            cached = credentials != null ? credentials : MISSING;
+            CACHE.put(credentialsId, cached);
+            if (GENERATION.get() != generation) {
+                // the store changed while loading, so the loaded value may already be stale
+                CACHE.remove(credentialsId, cached);
+            }
+        }
+        return cached == MISSING ? null : (Credentials) cached;
+    }
+
+    static void invalidateAll() {
+        GENERATION.incrementAndGet();
+        CACHE.clear();
+        SignatureKeyCache.clear();
+    }
+
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+        if (o instanceof SystemCredentialsProvider) {
+            invalidateAll();
+        }
+    }
+}
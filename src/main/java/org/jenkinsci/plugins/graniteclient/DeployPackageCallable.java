@@ -29,16 +29,25 @@ package org.jenkinsci.plugins.graniteclient;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import net.adamcin.granite.client.packman.DetailedResponse;
 import net.adamcin.granite.client.packman.ListResponse;
+import net.adamcin.granite.client.packman.ListResult;
 import net.adamcin.granite.client.packman.PackId;
 import net.adamcin.granite.client.packman.PackageManagerClient;
 import net.adamcin.granite.client.packman.ResponseProgressListener;
 import net.adamcin.granite.client.packman.SimpleResponse;
+import org.apache.commons.io.IOUtils;
 
 /**
  * Implementation of {@link hudson.FilePath.FileCallable} used by the {@link DeployPackagesBuilder}
@@ -52,16 +61,49 @@ public final class DeployPackageCallable extends GraniteClientFileCallable<Resul
     private final PackageInstallOptions options;
     private final ExistingPackageBehavior behavior;
     private final ResponseProgressListener progressListener;
+    private final ArrayList<PackId> subPackages;
+    private final String deltaCacheDirectory;
+
+    // measured in the JVM which runs the callable, for the Timed wrapper to report
+    private transient long installMillis = -1L;
+    private transient int installedEntries = -1;
+    private transient long replicationMillis = -1L;
+    // opened on the first replication of a deployment, so that all queue polls share one login
+    private transient ReplicationQueueWatcher replicationWatcher;
 
     public DeployPackageCallable(GraniteClientConfig clientConfig,
                                  TaskListener listener, PackId packId, PackageInstallOptions options,
                                  ExistingPackageBehavior behavior) {
+        this(clientConfig, listener, packId, options, behavior, null);
+    }
+
+    /**
+     * @param subPackages if not null, the package is a container of these packages. It is always installed
+     *                    recursively, the outcome for each sub package is reported, each installed sub package is
+     *                    replicated if requested, and the container itself is deleted once installed.
+     */
+    public DeployPackageCallable(GraniteClientConfig clientConfig,
+                                 TaskListener listener, PackId packId, PackageInstallOptions options,
+                                 ExistingPackageBehavior behavior, List<PackId> subPackages) {
+        this(clientConfig, listener, packId, options, behavior, subPackages, null);
+    }
+
+    /**
+     * @param deltaCacheDirectory if not null, the directory on the agent which records the archive last deployed to
+     *                            each instance, so that only the content which changed since then is deployed
+     */
+    public DeployPackageCallable(GraniteClientConfig clientConfig,
+                                 TaskListener listener, PackId packId, PackageInstallOptions options,
+                                 ExistingPackageBehavior behavior, List<PackId> subPackages,
+                                 String deltaCacheDirectory) {
         this.clientConfig = clientConfig;
         this.listener = listener;
         this.progressListener = new JenkinsResponseProgressListener(this.listener);
         this.options = options;
         this.behavior = behavior;
         this.packId = packId;
+        this.subPackages = subPackages != null ? new ArrayList<PackId>(subPackages) : null;
+        this.deltaCacheDirectory = deltaCacheDirectory;
     }
 
     private class Execution implements PackageManagerClientCallable<Result> {
@@ -92,24 +134,20 @@ public final class DeployPackageCallable extends GraniteClientFileCallable<Resul
                 progressListener.onLog(r_upload.getMessage());
                 listener.getLogger().println("Will attempt to install package.");
 
+                long installStart = System.currentTimeMillis();
                 DetailedResponse r_install = client.install(packId,
-                                                            options.isRecursive(),
+                                                            options.isRecursive() || subPackages != null,
                                                             options.getAutosave(),
                                                             options.getAcHandling(),
                                                             progressListener);
+                installMillis = System.currentTimeMillis() - installStart;
                 if (r_install.isSuccess()) {
                     progressListener.onLog(r_upload.getMessage());
                     Result r = r_install.hasErrors() ? Result.UNSTABLE : Result.SUCCESS;
-                    if (options.isReplicate()) {
-                        progressListener.onLog("Will attempt to replicate package.");
-                        SimpleResponse r_replicate = client.replicate(packId);
-                        if (r_replicate.isSuccess()) {
-                            progressListener.onLog(r_replicate.getMessage());
-                        } else {
-                            r = r.combine(Result.FAILURE);
-                            listener.fatalError("Failed to replicate %s: %s%n", r_replicate.getPath(),
-                                    r_replicate.getMessage());
-                        }
+                    if (subPackages != null) {
+                        return r.combine(reportSubPackages(client));
+                    } else if (options.isReplicate()) {
+                        r = r.combine(replicate(client, packId));
                     }
                     return r;
                 } else {
@@ -124,9 +162,128 @@ public final class DeployPackageCallable extends GraniteClientFileCallable<Resul
         }
     }
 
+    /**
+     * Uploads and installs a delta package, then deletes it, since it is only a part of the package it was made from.
+     * The version of the package which the installed content came from is recorded in the delta index, not in the
+     * package manager.
+     */
+    private class DeltaExecution implements PackageManagerClientCallable<Result> {
+        private final File deltaFile;
+        private final PackId deltaId;
+        private final int deltaEntries;
+
+        private DeltaExecution(File deltaFile, PackId deltaId, int deltaEntries) {
+            this.deltaFile = deltaFile;
+            this.deltaId = deltaId;
+            this.deltaEntries = deltaEntries;
+        }
+
+        public Result doExecute(PackageManagerClient client) throws Exception {
+            client.waitForService();
+            listener.getLogger().printf("Will attempt to upload delta package %s.%n", deltaId);
+            SimpleResponse r_upload = client.upload(deltaFile, true, deltaId);
+            if (!r_upload.isSuccess()) {
+                listener.fatalError(r_upload.getMessage());
+                return Result.FAILURE;
+            }
+            progressListener.onLog(r_upload.getMessage());
+
+            listener.getLogger().println("Will attempt to install delta package.");
+            long installStart = System.currentTimeMillis();
+            DetailedResponse r_install = client.install(deltaId, options.isRecursive(), options.getAutosave(),
+                    options.getAcHandling(), progressListener);
+            installMillis = System.currentTimeMillis() - installStart;
+            installedEntries = deltaEntries;
+            if (!r_install.isSuccess()) {
+                listener.fatalError("%s", r_install.getMessage());
+                return Result.FAILURE;
+            }
+            progressListener.onLog(r_install.getMessage());
+
+            client.waitForService();
+            SimpleResponse r_delete = client.delete(deltaId);
+            if (!r_delete.isSuccess()) {
+                listener.error("Failed to delete delta package %s: %s", deltaId, r_delete.getMessage());
+            }
+            return r_install.hasErrors() ? Result.UNSTABLE : Result.SUCCESS;
+        }
+    }
+
+    private Result replicate(PackageManagerClient client, PackId packId) throws Exception {
+        progressListener.onLog("Will attempt to replicate package " + packId + ".");
+        long replicatedAt = System.currentTimeMillis();
+        SimpleResponse r_replicate = client.replicate(packId);
+        if (r_replicate.isSuccess()) {
+            progressListener.onLog(r_replicate.getMessage());
+            if (options.isWaitForReplication()) {
+                if (replicationWatcher == null) {
+                    replicationWatcher = new ReplicationQueueWatcher(
+                            GraniteHttpSession.open(client, clientConfig, listener), listener);
+                }
+                Result result = replicationWatcher.awaitAndReport(packId, replicatedAt,
+                        options.getReplicationTimeout());
+                replicationMillis = replicationWatcher.getLastLatency();
+                return result;
+            }
+            return Result.SUCCESS;
+        } else {
+            listener.fatalError("Failed to replicate %s: %s%n", r_replicate.getPath(),
+                    r_replicate.getMessage());
+            return Result.FAILURE;
+        }
+    }
+
+    /**
+     * Reports whether each sub package of the container was installed, replicates those that were if requested,
+     * and then deletes the container, which is of no use once its sub packages are installed.
+     */
+    private Result reportSubPackages(PackageManagerClient client) throws Exception {
+        Result result = Result.SUCCESS;
+        for (PackId subPackage : subPackages) {
+            client.waitForService();
+            ListResponse r_list = client.list(subPackage, false);
+            boolean installed = false;
+            for (ListResult listResult : r_list.getResults()) {
+                if (subPackage.equals(listResult.getPackId()) && listResult.isHasSnapshot()) {
+                    installed = true;
+                }
+            }
+
+            if (installed) {
+                listener.getLogger().printf("Installed %s%n", subPackage);
+                if (options.isReplicate()) {
+                    result = result.combine(replicate(client, subPackage));
+                }
+            } else {
+                listener.error("Failed to install %s from container %s", subPackage, packId);
+                result = result.combine(Result.FAILURE);
+            }
+        }
+
+        client.waitForService();
+        SimpleResponse r_delete = client.delete(packId);
+        if (r_delete.isSuccess()) {
+            listener.getLogger().printf("Deleted container %s%n", packId);
+        } else {
+            listener.error("Failed to delete container %s: %s", packId, r_delete.getMessage());
+        }
+        return result;
+    }
+
     public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        installMillis = -1L;
+        installedEntries = -1;
+        replicationMillis = -1L;
+        replicationWatcher = null;
+        if (deltaCacheDirectory != null && subPackages == null) {
+            return deployDelta(f);
+        }
+        return execute(new Execution(f));
+    }
+
+    private Result execute(PackageManagerClientCallable<Result> execution) {
         try {
-            return GraniteClientExecutor.execute(new Execution(f), clientConfig, listener);
+            return GraniteClientExecutor.execute(execution, clientConfig, listener);
         } catch (Exception e) {
             e.printStackTrace(listener.fatalError("Failed to deploy package: %s", e.getMessage()));
         }
@@ -134,6 +291,101 @@ public final class DeployPackageCallable extends GraniteClientFileCallable<Resul
         return Result.FAILURE;
     }
 
+    /**
+     * Deploys only the content which changed since the package was last deployed to the instance, or the whole
+     * package if the delta can't be used. The index of the archive is recorded once it is deployed, and forgotten
+     * if the deployment fails, since the content of the instance is then unknown.
+     */
+    private Result deployDelta(File f) throws IOException, InterruptedException {
+        File cacheDir = new File(deltaCacheDirectory);
+        File indexFile = PackageDelta.getIndexFile(cacheDir, clientConfig.getBaseUrl(), packId);
+        PackageDelta.Index previous = PackageDelta.readIndex(indexFile);
+
+        Map<String, Long> current;
+        String fallbackReason = null;
+        PackId deltaId = null;
+        File deltaFile = null;
+        int deltaEntries = 0;
+        ZipFile zip = new ZipFile(f);
+        try {
+            current = PackageDelta.readCrcs(zip);
+            if (previous == null) {
+                fallbackReason = "no earlier deployment to this instance is recorded";
+            } else if (!packId.equals(previous.getPackId())) {
+                fallbackReason = previous.getPackId() + " was last deployed to this instance";
+            } else if (options.isReplicate()) {
+                fallbackReason = "replication is enabled";
+            } else if (behavior == ExistingPackageBehavior.SKIP) {
+                fallbackReason = "existing packages are skipped";
+            } else {
+                PackageDelta delta = PackageDelta.compute(previous.getCrcs(), current, PackageDelta.readSizes(zip),
+                        readFilterXml(zip));
+                fallbackReason = delta.getFallbackReason();
+                if (delta.isUnchanged()) {
+                    listener.getLogger().printf("Package %s is unchanged since it was last deployed to %s. "
+                            + "Skipping upload and install.%n", packId, clientConfig.getBaseUrl());
+                    return Result.SUCCESS;
+                } else if (fallbackReason == null) {
+                    if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                        throw new IOException("Failed to create directory " + cacheDir);
+                    }
+                    deltaId = PackId.createPackId(packId.getGroup(), packId.getName() + PackageDelta.DELTA_SUFFIX,
+                            packId.getVersion());
+                    deltaFile = File.createTempFile("delta-", ".zip", cacheDir);
+                    delta.write(zip, deltaId, deltaFile);
+                    deltaEntries = delta.getEntries().size();
+                    listener.getLogger().printf("Deploying %d of %d entries of %s (%d bytes) under %d changed "
+                                    + "paths:%n", delta.getEntries().size(), current.size(), packId,
+                            deltaFile.length(), delta.getRoots().size());
+                    for (String root : delta.getRoots()) {
+                        listener.getLogger().printf("  %s%n", root);
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        try {
+            Result result;
+            if (deltaFile != null) {
+                result = execute(new DeltaExecution(deltaFile, deltaId, deltaEntries));
+            } else {
+                listener.getLogger().printf("Deploying the whole package %s because %s.%n", packId, fallbackReason);
+                result = execute(new Execution(f));
+            }
+
+            if (result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                try {
+                    PackageDelta.writeIndex(indexFile, new PackageDelta.Index(packId, current));
+                } catch (IOException e) {
+                    listener.error("Failed to record the deployment of %s for delta deployments: %s", packId,
+                            e.getMessage());
+                }
+            } else if (indexFile.exists() && !indexFile.delete()) {
+                listener.error("Failed to delete %s", indexFile);
+            }
+            return result;
+        } finally {
+            if (deltaFile != null && !deltaFile.delete()) {
+                deltaFile.deleteOnExit();
+            }
+        }
+    }
+
+    private static String readFilterXml(ZipFile zip) throws IOException {
+        ZipEntry entry = zip.getEntry(PackageDelta.FILTER_XML);
+        if (entry == null) {
+            return "";
+        }
+        InputStream in = zip.getInputStream(entry);
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
     private boolean handleExisting(PackageManagerClient client, PackId packId) throws Exception {
         if (behavior == ExistingPackageBehavior.IGNORE
                 || behavior == ExistingPackageBehavior.OVERWRITE
@@ -173,4 +425,80 @@ public final class DeployPackageCallable extends GraniteClientFileCallable<Resul
 
         return true;
     }
+
+    /**
+     * @return a callable which deploys the package like this one, and also reports how long its install step took
+     */
+    public Timed timed() {
+        return new Timed(this);
+    }
+
+    /**
+     * Deploys a package with a {@link DeployPackageCallable} and reports how long the install step took, without the
+     * time spent on validation, upload, and the other requests, so that the install rate of the instance can be
+     * recorded. Also reports how long the package took to leave the replication queues, if it was awaited.
+     */
+    public static final class Timed extends GraniteClientFileCallable<Outcome> {
+
+        private static final long serialVersionUID = 6092465180376134112L;
+
+        private final DeployPackageCallable deployment;
+
+        private Timed(DeployPackageCallable deployment) {
+            this.deployment = deployment;
+        }
+
+        public Outcome invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            Result result = deployment.invoke(f, channel);
+            return new Outcome(result, deployment.installMillis, deployment.installedEntries,
+                    deployment.replicationMillis);
+        }
+    }
+
+    /**
+     * The result of a deployment and the durations of its install and replication steps
+     */
+    public static final class Outcome implements Serializable {
+
+        private static final long serialVersionUID = -1766209512484837261L;
+
+        private final Result result;
+        private final long installMillis;
+        private final int installedEntries;
+        private final long replicationMillis;
+
+        Outcome(Result result, long installMillis, int installedEntries, long replicationMillis) {
+            this.result = result;
+            this.installMillis = installMillis;
+            this.installedEntries = installedEntries;
+            this.replicationMillis = replicationMillis;
+        }
+
+        public Result getResult() {
+            return result;
+        }
+
+        /**
+         * @return how long the install request took, or -1 if nothing was installed
+         */
+        public long getInstallMillis() {
+            return installMillis;
+        }
+
+        /**
+         * @return the number of entries of the delta package when only a delta was installed, or -1 when the whole
+         * package was installed
+         */
+        public int getInstalledEntries() {
+            return installedEntries;
+        }
+
+        /**
+         * @return how long the package took to leave the replication queues after it was replicated, or -1 if that
+         * was not awaited or did not happen in time
+         */
+        public long getReplicationMillis() {
+            return replicationMillis;
+        }
+    }
 }
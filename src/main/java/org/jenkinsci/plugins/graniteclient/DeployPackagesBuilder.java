@@ -44,6 +44,8 @@ import hudson.util.ListBoxModel;
 import jenkins.MasterToSlaveFileCallable;
 import net.adamcin.granite.client.packman.ACHandling;
 import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.WspFilter;
+import net.adamcin.granite.client.packman.validation.DefaultValidationOptions;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
@@ -61,6 +63,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -69,6 +72,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static org.jenkinsci.plugins.graniteclient.BaseUrlUtil.splitByNewline;
 
@@ -76,6 +86,10 @@ import static org.jenkinsci.plugins.graniteclient.BaseUrlUtil.splitByNewline;
  * Implementation of the "Deploy Content Packages to CRX" build step
  */
 public class DeployPackagesBuilder extends AbstractBuildStep {
+    static final long DEFAULT_REPLICATION_TIMEOUT = 600L;
+    static final int DEFAULT_BATCH_THRESHOLD = 256;
+    static final String BATCH_GROUP = "jenkins-batch";
+    static final String DEFAULT_DELTA_CACHE_DIRECTORY = ".crx-delta";
 
     private String packageIdFilters;
     private String baseUrls;
@@ -84,12 +98,33 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
     private String behavior = null;
     private boolean recursive = false;
     private boolean replicate = false;
+    private boolean waitForReplication = false;
+    private long replicationTimeout = DEFAULT_REPLICATION_TIMEOUT;
     private int autosave = 1024;
     private String acHandling = null;
     private boolean disableForJobTesting = false;
     private long requestTimeout = 0L;
     private long serviceTimeout = 0L;
     private long waitDelay = 0L;
+    private boolean validate = false;
+    private String validationFilter = null;
+    private boolean allowNonCoveredRoots = false;
+    private String forbiddenExtensions = null;
+    private String forbiddenACHandlingModeSet = null;
+    private String forbiddenFilterRootPrefixes = null;
+    private String pathsDeniedForInclusion = null;
+    private int maxParallelPackages = 1;
+    private boolean canary = false;
+    private String healthProbePath = null;
+    private int waveSize = 1;
+    private int waveParallelism = 1;
+    private boolean batchSmallPackages = false;
+    private int batchThreshold = DEFAULT_BATCH_THRESHOLD;
+    private boolean deltaDeploy = false;
+    private String deltaCacheDirectory = null;
+    private boolean longestFirst = false;
+    private boolean adaptiveAutosave = false;
+    private boolean warmUpConnections = false;
 
     @DataBoundConstructor
     public DeployPackagesBuilder(@Nonnull String packageIdFilters, @Nonnull String baseUrls) {
@@ -188,6 +223,146 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
         this.replicate = replicate;
     }
 
+    public boolean isWaitForReplication() {
+        return waitForReplication;
+    }
+
+    @DataBoundSetter
+    public void setWaitForReplication(boolean waitForReplication) {
+        this.waitForReplication = waitForReplication;
+    }
+
+    public long getReplicationTimeout() {
+        return replicationTimeout > 0L ? replicationTimeout : DEFAULT_REPLICATION_TIMEOUT;
+    }
+
+    @DataBoundSetter
+    public void setReplicationTimeout(long replicationTimeout) {
+        this.replicationTimeout = replicationTimeout;
+    }
+
+    public int getMaxParallelPackages() {
+        return maxParallelPackages > 0 ? maxParallelPackages : 1;
+    }
+
+    @DataBoundSetter
+    public void setMaxParallelPackages(int maxParallelPackages) {
+        this.maxParallelPackages = maxParallelPackages;
+    }
+
+    public boolean isCanary() {
+        return canary;
+    }
+
+    @DataBoundSetter
+    public void setCanary(boolean canary) {
+        this.canary = canary;
+    }
+
+    public String getHealthProbePath() {
+        return healthProbePath == null ? "" : healthProbePath.trim();
+    }
+
+    @DataBoundSetter
+    public void setHealthProbePath(String healthProbePath) {
+        this.healthProbePath = healthProbePath;
+    }
+
+    public int getWaveSize() {
+        return waveSize > 0 ? waveSize : 1;
+    }
+
+    @DataBoundSetter
+    public void setWaveSize(int waveSize) {
+        this.waveSize = waveSize;
+    }
+
+    public int getWaveParallelism() {
+        return waveParallelism > 0 ? waveParallelism : 1;
+    }
+
+    @DataBoundSetter
+    public void setWaveParallelism(int waveParallelism) {
+        this.waveParallelism = waveParallelism;
+    }
+
+    public boolean isBatchSmallPackages() {
+        return batchSmallPackages;
+    }
+
+    @DataBoundSetter
+    public void setBatchSmallPackages(boolean batchSmallPackages) {
+        this.batchSmallPackages = batchSmallPackages;
+    }
+
+    /**
+     * @return the size in KB up to which packages are batched into a container
+     */
+    public int getBatchThreshold() {
+        return batchThreshold > 0 ? batchThreshold : DEFAULT_BATCH_THRESHOLD;
+    }
+
+    @DataBoundSetter
+    public void setBatchThreshold(int batchThreshold) {
+        this.batchThreshold = batchThreshold;
+    }
+
+    public boolean isLongestFirst() {
+        return longestFirst;
+    }
+
+    @DataBoundSetter
+    public void setLongestFirst(boolean longestFirst) {
+        this.longestFirst = longestFirst;
+    }
+
+    public boolean isDeltaDeploy() {
+        return deltaDeploy;
+    }
+
+    @DataBoundSetter
+    public void setDeltaDeploy(boolean deltaDeploy) {
+        this.deltaDeploy = deltaDeploy;
+    }
+
+    public String getDeltaCacheDirectory() {
+        return deltaCacheDirectory == null ? "" : deltaCacheDirectory.trim();
+    }
+
+    @DataBoundSetter
+    public void setDeltaCacheDirectory(String deltaCacheDirectory) {
+        if (StringUtils.isBlank(deltaCacheDirectory)) {
+            this.deltaCacheDirectory = null;
+        } else {
+            this.deltaCacheDirectory = deltaCacheDirectory;
+        }
+    }
+
+    /**
+     * Orders the instances of a wave by the estimated duration of the whole deployment to each, longest first
+     */
+    private List<GraniteClientConfig> orderLongestFirst(List<GraniteClientConfig> wave, Deployment deployment) {
+        Map<GraniteClientConfig, Long> totals = new HashMap<GraniteClientConfig, Long>();
+        for (GraniteClientConfig clientConfig : wave) {
+            long total = 0L;
+            for (Long estimate
+                    : deployment.estimate(clientConfig.getBaseUrl(), deployment.packageSizes.keySet()).values()) {
+                total += estimate;
+            }
+            totals.put(clientConfig, total);
+        }
+        return DeploymentPlan.longestFirst(wave, totals);
+    }
+
+    /**
+     * @return the remote path of the delta cache directory on the node of the workspace
+     */
+    private String getDeltaCacheDirectory(Run<?, ?> build, FilePath workspace, TaskListener listener) {
+        String directory = StringUtils.isBlank(getDeltaCacheDirectory())
+                ? DEFAULT_DELTA_CACHE_DIRECTORY : expandTokens(build, workspace, listener, getDeltaCacheDirectory());
+        return workspace.child(directory).getRemote();
+    }
+
     public boolean isRecursive() {
         return recursive;
     }
@@ -206,6 +381,24 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
         this.autosave = autosave;
     }
 
+    public boolean isAdaptiveAutosave() {
+        return adaptiveAutosave;
+    }
+
+    @DataBoundSetter
+    public void setAdaptiveAutosave(boolean adaptiveAutosave) {
+        this.adaptiveAutosave = adaptiveAutosave;
+    }
+
+    public boolean isWarmUpConnections() {
+        return warmUpConnections;
+    }
+
+    @DataBoundSetter
+    public void setWarmUpConnections(boolean warmUpConnections) {
+        this.warmUpConnections = warmUpConnections;
+    }
+
     public String getAcHandling() {
         if (acHandling == null) {
             return DescriptorImpl.ACHANDLING_DEFER_VALUE;
@@ -259,6 +452,86 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
         this.waitDelay = waitDelay;
     }
 
+    public boolean isValidate() {
+        return validate;
+    }
+
+    @DataBoundSetter
+    public void setValidate(boolean validate) {
+        this.validate = validate;
+    }
+
+    public String getValidationFilter() {
+        return validationFilter == null ? "" : validationFilter;
+    }
+
+    @DataBoundSetter
+    public void setValidationFilter(String validationFilter) {
+        this.validationFilter = validationFilter;
+    }
+
+    public boolean isAllowNonCoveredRoots() {
+        return allowNonCoveredRoots;
+    }
+
+    @DataBoundSetter
+    public void setAllowNonCoveredRoots(boolean allowNonCoveredRoots) {
+        this.allowNonCoveredRoots = allowNonCoveredRoots;
+    }
+
+    public String getForbiddenExtensions() {
+        return forbiddenExtensions == null ? "" : forbiddenExtensions;
+    }
+
+    @DataBoundSetter
+    public void setForbiddenExtensions(String forbiddenExtensions) {
+        this.forbiddenExtensions = forbiddenExtensions;
+    }
+
+    public String getForbiddenACHandlingModeSet() {
+        return forbiddenACHandlingModeSet == null
+                ? ValidatePackagesBuilder.ForbiddenACHandlingModeSet.SKIP_VALIDATION.name() : forbiddenACHandlingModeSet;
+    }
+
+    @DataBoundSetter
+    public void setForbiddenACHandlingModeSet(String forbiddenACHandlingModeSet) {
+        this.forbiddenACHandlingModeSet = forbiddenACHandlingModeSet;
+    }
+
+    public String getForbiddenFilterRootPrefixes() {
+        return forbiddenFilterRootPrefixes == null ? "" : forbiddenFilterRootPrefixes;
+    }
+
+    @DataBoundSetter
+    public void setForbiddenFilterRootPrefixes(String forbiddenFilterRootPrefixes) {
+        this.forbiddenFilterRootPrefixes = forbiddenFilterRootPrefixes;
+    }
+
+    public String getPathsDeniedForInclusion() {
+        return pathsDeniedForInclusion == null ? "" : pathsDeniedForInclusion;
+    }
+
+    @DataBoundSetter
+    public void setPathsDeniedForInclusion(String pathsDeniedForInclusion) {
+        this.pathsDeniedForInclusion = pathsDeniedForInclusion;
+    }
+
+    /**
+     * @return the validation options to apply before deployment, or null if validation is not enabled
+     */
+    private DefaultValidationOptions getValidationOptions(Run<?, ?> build, FilePath workspace, TaskListener listener) {
+        if (!isValidate()) {
+            return null;
+        }
+        return ValidatePackagesBuilder.createValidationOptions(isAllowNonCoveredRoots(),
+                expandTokens(build, workspace, listener, getForbiddenExtensions()),
+                expandTokens(build, workspace, listener, getPathsDeniedForInclusion()),
+                ValidatePackagesBuilder.ForbiddenACHandlingModeSet
+                        .safeValueOf(getForbiddenACHandlingModeSet()).getForbiddenModes(),
+                expandTokens(build, workspace, listener, getForbiddenFilterRootPrefixes()),
+                expandTokens(build, workspace, listener, getValidationFilter()));
+    }
+
     public PackageInstallOptions getPackageInstallOptions() {
         ACHandling _acHandling = null;
         if (getAcHandling() != null && !DescriptorImpl.ACHANDLING_DEFER_VALUE.equals(getAcHandling())) {
@@ -275,7 +548,8 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
             }
         }
 
-        return new PackageInstallOptions(isRecursive(), getAutosave(), _acHandling, isReplicate());
+        return new PackageInstallOptions(isRecursive(), getAutosave(), _acHandling, isReplicate(),
+                isWaitForReplication() ? getReplicationTimeout() * 1000L : 0L);
     }
 
     public ExistingPackageBehavior getExistingPackageBehavior() {
@@ -306,36 +580,493 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
             listener.getLogger().println("DEBUG: *** package deployment disabled for testing ***");
         }
 
-        for (String baseUrl : listBaseUrls(build, workspace, listener)) {
-            if (result.isBetterOrEqualTo(Result.UNSTABLE)) {
-                GraniteClientConfig clientConfig =
-                        new GraniteClientConfig(GraniteAHCFactory.getGlobalConfig(),
-                                baseUrl, credentialsId, requestTimeout, serviceTimeout, waitDelay);
+        final DefaultValidationOptions validationOptions = getValidationOptions(build, workspace, listener);
+
+        final String sessionPoolId = disableForJobTesting || !isWarmUpConnections()
+                ? null : UUID.randomUUID().toString();
+        final List<FilePath> containerFiles = new ArrayList<FilePath>();
+        List<GraniteClientConfig> clientConfigs = new ArrayList<GraniteClientConfig>();
+        final Map<String, InstanceGroup.Member> members = new HashMap<String, InstanceGroup.Member>();
+        for (InstanceGroup.Member member
+                : GraniteAHCFactory.resolveInstances(listBaseUrls(build, workspace, listener))) {
+            GraniteClientConfig clientConfig =
+                    new GraniteClientConfig(GraniteAHCFactory.getGlobalConfig(), member.getBaseUrl(),
+                            member.getCredentialsId(credentialsId), requestTimeout, serviceTimeout, waitDelay);
+
+            clientConfig.resolveCredentials();
+            clientConfig.setSessionPoolId(sessionPoolId);
+            clientConfigs.add(clientConfig);
+            members.put(clientConfig.getBaseUrl(), member);
+        }
 
-                clientConfig.resolveCredentials();
+        try {
+            if (sessionPoolId != null && !clientConfigs.isEmpty()) {
+                List<String> unreachable = warmUpConnections(workspace, clientConfigs, listener);
+                if (!unreachable.isEmpty()) {
+                    listener.fatalError("Failed to reach %d of %d instances. No packages were deployed.",
+                            unreachable.size(), clientConfigs.size());
+                    for (String failure : unreachable) {
+                        listener.getLogger().printf("  %s%n", failure);
+                    }
+                    build.setResult(Result.FAILURE);
+                    return;
+                }
+            }
 
-                listener.getLogger().printf("Deploying packages to %s%n", clientConfig.getBaseUrl());
-                for (Map.Entry<PackId, FilePath> selectedPackage : selectPackages(build, workspace, listener).entrySet()) {
-                    if (!result.isBetterOrEqualTo(Result.UNSTABLE)) {
-                        return;
+            final Map<PackId, FilePath> selectedPackages = selectPackages(build, workspace, listener);
+            DeploymentPlan plan = createDeploymentPlan(selectedPackages, listener);
+            if (plan == null) {
+                build.setResult(Result.FAILURE);
+                return;
+            }
+
+            if (validationOptions != null
+                    && !validatePackages(plan.getLevels(), selectedPackages, validationOptions, listener)) {
+                build.setResult(Result.FAILURE);
+                return;
+            }
+
+            final Map<PackId, FilePath> packageFiles = new HashMap<PackId, FilePath>(selectedPackages);
+            if (isBatchSmallPackages() && !disableForJobTesting) {
+                plan = batchSmallPackages(plan, packageFiles, containerFiles, workspace, listener);
+            }
+
+            final Map<PackId, Long> packageSizes = new HashMap<PackId, Long>();
+            for (Map.Entry<PackId, FilePath> entry : packageFiles.entrySet()) {
+                packageSizes.put(entry.getKey(), entry.getValue().length());
+            }
+            final Map<PackId, Integer> packageEntries = new HashMap<PackId, Integer>();
+            if (isAdaptiveAutosave() && !disableForJobTesting) {
+                for (Map.Entry<PackId, FilePath> entry : selectedPackages.entrySet()) {
+                    packageEntries.put(entry.getKey(), entry.getValue().act(new CountPackageEntriesCallable()));
+                }
+            }
+            final Deployment deployment = new Deployment(plan, packageFiles, packageSizes, packageEntries,
+                    isDeltaDeploy() ? getDeltaCacheDirectory(build, workspace, listener) : null);
+            final String probePath = expandTokens(build, workspace, listener, getHealthProbePath()).trim();
+            List<List<GraniteClientConfig>> waves =
+                    DeploymentPlan.planWaves(clientConfigs, isCanary(), getWaveSize());
+            if (waves.size() > 1 && (isCanary() || getWaveSize() > 1)) {
+                printRolloutPlan(waves, listener);
+            }
+
+            for (int i = 0; i < waves.size(); i++) {
+                if (!result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                    listener.getLogger().printf("Stopping rollout. Instances not deployed to:%n");
+                    for (List<GraniteClientConfig> skipped : waves.subList(i, waves.size())) {
+                        for (GraniteClientConfig clientConfig : skipped) {
+                            listener.getLogger().printf("  %s%n", clientConfig.getBaseUrl());
+                        }
+                    }
+                    break;
+                }
+                result = result.combine(deployWave(waves.get(i), members, deployment, probePath, workspace,
+                        listener));
+                build.setResult(result);
+            }
+        } finally {
+            if (!disableForJobTesting) {
+                InstallHistory.get().save();
+            }
+            for (FilePath containerFile : containerFiles) {
+                containerFile.delete();
+            }
+            if (sessionPoolId != null) {
+                closeSessions(workspace, sessionPoolId, listener);
+            }
+        }
+    }
+
+    /**
+     * Connects and logs in to every instance at the same time, leaving the clients in the session pool of the
+     * workspace node. If the warm-up itself fails, the configs leave the pool and each package operation opens its
+     * own client, as it does when warm-up is disabled.
+     *
+     * @return a description of each instance which could not be reached
+     */
+    static List<String> warmUpConnections(FilePath workspace, List<GraniteClientConfig> clientConfigs,
+                                          TaskListener listener) throws InterruptedException {
+        try {
+            return workspace.act(new ConnectionWarmUpCallable(clientConfigs, listener));
+        } catch (IOException e) {
+            listener.error("Failed to warm up connections: %s. Each package will be deployed on a new connection.",
+                    e.getMessage());
+            for (GraniteClientConfig clientConfig : clientConfigs) {
+                clientConfig.setSessionPoolId(null);
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Closes the pooled clients of the step, without hiding the outcome of the deployment if the node can't be
+     * reached. Clients left behind are closed when they have been idle for {@link ClientSessionPool#IDLE_TIMEOUT_MS}.
+     */
+    static void closeSessions(FilePath workspace, String sessionPoolId, TaskListener listener)
+            throws InterruptedException {
+        try {
+            workspace.act(new ConnectionWarmUpCallable.CloseSessions(sessionPoolId));
+        } catch (IOException e) {
+            listener.error("Failed to close pooled connections: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Assembles the packages of each level which are no larger than {@link #getBatchThreshold()} into a container
+     * package on the agent, so that they are uploaded and installed once per instance instead of once each. The
+     * packages of a level don't depend on each other, so installing them together keeps the planned order.
+     *
+     * @return the plan with each container in place of its packages
+     */
+    private DeploymentPlan batchSmallPackages(DeploymentPlan plan, Map<PackId, FilePath> packageFiles,
+                                              List<FilePath> containerFiles, FilePath workspace,
+                                              TaskListener listener) throws IOException, InterruptedException {
+        final long threshold = getBatchThreshold() * 1024L;
+        final String batchId = UUID.randomUUID().toString().substring(0, 8);
+        DeploymentPlan batched = plan;
+        for (int i = 0; i < plan.getLevels().size(); i++) {
+            LinkedHashMap<PackId, String> small = new LinkedHashMap<PackId, String>();
+            for (PackId packId : plan.getLevels().get(i)) {
+                FilePath packageFile = packageFiles.get(packId);
+                if (packageFile.length() <= threshold) {
+                    small.put(packId, packageFile.getRemote());
+                }
+            }
+            if (small.size() < 2) {
+                continue;
+            }
+
+            PackId containerId = PackId.createPackId(BATCH_GROUP, "batch-" + batchId + "-" + (i + 1), "1.0");
+            FilePath containerFile = workspace.child(".crx-batch").child(containerId.getName() + ".zip");
+            containerFiles.add(containerFile);
+            long length = containerFile.act(new BuildContainerPackageCallable(containerId, small));
+            listener.getLogger().printf("Batched %d packages of level %d into %s (%d bytes): %s%n",
+                    small.size(), i + 1, containerId, length, StringUtils.join(small.keySet(), ", "));
+
+            packageFiles.put(containerId, containerFile);
+            batched = batched.withContainer(i, containerId, new ArrayList<PackId>(small.keySet()));
+        }
+        return batched;
+    }
+
+    /**
+     * Validates each selected package once, on the agent, before anything is deployed to any instance. The
+     * validator only reads the zip central directory and the META-INF/vault entries, so this costs a fraction of
+     * an upload, and a violation aborts the deployment before any existing package is touched.
+     *
+     * @param levels   the packages in the order they will be deployed
+     * @param files    the package files
+     * @param options  the validation options
+     * @param listener the listener
+     * @return true if all of the packages are valid
+     */
+    static boolean validatePackages(List<List<PackId>> levels, Map<PackId, FilePath> files,
+                                    DefaultValidationOptions options, TaskListener listener)
+            throws IOException, InterruptedException {
+        for (List<PackId> level : levels) {
+            for (PackId packId : level) {
+                listener.getLogger().printf("Validating %s before deployment.%n", packId);
+                if (files.get(packId).act(new ValidateFileCallable(listener, options)) != Result.SUCCESS) {
+                    listener.error("Package %s failed validation. No packages were deployed.", packId);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the dependencies declared by each selected package and orders the packages into install levels. The
+     * plan is printed before anything is installed.
+     *
+     * @return the plan, or null if the packages depend on each other in a cycle
+     */
+    private DeploymentPlan createDeploymentPlan(Map<PackId, FilePath> selectedPackages, TaskListener listener)
+            throws IOException, InterruptedException {
+        Map<PackId, String> dependencies = new HashMap<PackId, String>();
+        for (Map.Entry<PackId, FilePath> entry : selectedPackages.entrySet()) {
+            try {
+                dependencies.put(entry.getKey(), entry.getValue().act(new ReadPackageDependenciesCallable()));
+            } catch (IOException e) {
+                listener.error("Failed to read dependencies of %s: %s", entry.getKey(), e.getMessage());
+            }
+        }
+
+        DeploymentPlan plan;
+        try {
+            plan = DeploymentPlan.create(new ArrayList<PackId>(selectedPackages.keySet()), dependencies);
+        } catch (PackageDependencyGraph.CycleException e) {
+            listener.fatalError("Failed to order packages by dependencies: %s%n", e.getMessage());
+            return null;
+        }
+
+        for (String external : plan.getExternalDependencies()) {
+            listener.getLogger().printf("[WARN] %s, which is not being deployed and must already be installed.%n",
+                    external);
+        }
+        listener.getLogger().println("Deployment plan:");
+        for (int i = 0; i < plan.getLevels().size(); i++) {
+            listener.getLogger().printf("  %d: %s%n", i + 1, StringUtils.join(plan.getLevels().get(i), ", "));
+        }
+        return plan;
+    }
+
+    private void printRolloutPlan(List<List<GraniteClientConfig>> waves, TaskListener listener) {
+        listener.getLogger().println("Rollout plan:");
+        for (int i = 0; i < waves.size(); i++) {
+            List<String> baseUrls = new ArrayList<String>();
+            for (GraniteClientConfig clientConfig : waves.get(i)) {
+                baseUrls.add(clientConfig.getBaseUrl());
+            }
+            listener.getLogger().printf("  %s: %s%n", i == 0 && isCanary() ? "canary" : "wave " + i,
+                    StringUtils.join(baseUrls, ", "));
+        }
+    }
+
+    /**
+     * The packages to deploy in one build and how to deploy them, which are the same for every instance
+     */
+    private static final class Deployment {
+        final DeploymentPlan plan;
+        final Map<PackId, FilePath> packageFiles;
+        final Map<PackId, Long> packageSizes;
+        final Map<PackId, Integer> packageEntries;
+        final String deltaCacheDirectory;
+
+        private Deployment(DeploymentPlan plan, Map<PackId, FilePath> packageFiles, Map<PackId, Long> packageSizes,
+                           Map<PackId, Integer> packageEntries, String deltaCacheDirectory) {
+            this.plan = plan;
+            this.packageFiles = packageFiles;
+            this.packageSizes = packageSizes;
+            this.packageEntries = packageEntries;
+            this.deltaCacheDirectory = deltaCacheDirectory;
+        }
+
+        /**
+         * @return the estimated duration of deploying each of the packages to the instance
+         */
+        Map<PackId, Long> estimate(String baseUrl, Collection<PackId> packIds) {
+            InstallHistory history = InstallHistory.get();
+            Map<PackId, Long> estimates = new HashMap<PackId, Long>();
+            for (PackId packId : packIds) {
+                estimates.put(packId, history.estimate(baseUrl, packId, packageSizes.get(packId)));
+            }
+            return estimates;
+        }
+    }
+
+    /**
+     * Deploys to the instances of one rollout wave, up to {@link #getWaveParallelism()} instances at a time. A
+     * failure on any instance cancels the deployments to the rest of the wave.
+     */
+    private Result deployWave(List<GraniteClientConfig> wave, final Map<String, InstanceGroup.Member> members,
+                              final Deployment deployment, final String probePath,
+                              final FilePath workspace, final TaskListener listener)
+            throws IOException, InterruptedException {
+        if (getWaveParallelism() <= 1 || wave.size() <= 1) {
+            Result result = Result.SUCCESS;
+            for (GraniteClientConfig clientConfig : wave) {
+                result = result.combine(deployAndProbe(clientConfig, members.get(clientConfig.getBaseUrl()),
+                        deployment, probePath, workspace, listener));
+                if (!result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                    return result;
+                }
+            }
+            return result;
+        }
+
+        ExecutorService pool = ConcurrencyUtil.newFixedPool("rollout", getWaveParallelism());
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        try {
+            CompletionService<Result> completions = new ExecutorCompletionService<Result>(pool);
+            for (final GraniteClientConfig clientConfig
+                    : isLongestFirst() ? orderLongestFirst(wave, deployment) : wave) {
+                futures.add(completions.submit(new Callable<Result>() {
+                    public Result call() throws Exception {
+                        return deployAndProbe(clientConfig, members.get(clientConfig.getBaseUrl()), deployment,
+                                probePath, workspace, listener);
                     }
-                    FilePath.FileCallable<Result> callable = null;
-                    if (disableForJobTesting) {
-                        callable = new DebugPackageCallable(selectedPackage.getKey(), listener);
-                    } else {
+                }));
+            }
+
+            Result result = Result.SUCCESS;
+            for (int i = 0; i < futures.size(); i++) {
+                Result instanceResult;
+                try {
+                    instanceResult = completions.take().get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("Failed to deploy packages: %s",
+                            e.getCause().getMessage()));
+                    instanceResult = Result.FAILURE;
+                }
 
-                        callable = new DeployPackageCallable(clientConfig, listener,
-                                selectedPackage.getKey(), getPackageInstallOptions(), getExistingPackageBehavior());
+                result = result.combine(instanceResult);
+                if (!result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                    ConcurrencyUtil.cancelAll(futures);
+                    return result;
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            ConcurrencyUtil.cancelAll(futures);
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Deploys the planned packages to one instance, then checks the health of the instance if a probe path is
+     * configured. Waits first if the instance group of the instance is at its concurrency limit.
+     */
+    private Result deployAndProbe(GraniteClientConfig clientConfig, InstanceGroup.Member member,
+                                  Deployment deployment, String probePath, FilePath workspace,
+                                  TaskListener listener)
+            throws IOException, InterruptedException {
+        InstanceThrottle.Permit permit = InstanceThrottle.acquire(member, listener);
+        try {
+            listener.getLogger().printf("Deploying packages to %s%n", member);
+            Result result = deployToInstance(clientConfig, deployment, listener);
+            if (result.isBetterOrEqualTo(Result.UNSTABLE) && !probePath.isEmpty() && !disableForJobTesting) {
+                Result probeResult = workspace.act(new HealthProbeCallable(clientConfig, listener, probePath));
+                result = result.combine(probeResult != null ? probeResult : Result.FAILURE);
+            }
+            return result;
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Installs the planned packages on one instance, one level at a time. Up to {@link #getMaxParallelPackages()}
+     * packages of a level are installed at the same time. A failure stops the deployment to the instance.
+     */
+    private Result deployToInstance(GraniteClientConfig clientConfig, Deployment deployment,
+                                    TaskListener listener)
+            throws IOException, InterruptedException {
+        Result result = Result.SUCCESS;
+        for (List<PackId> plannedLevel : deployment.plan.getLevels()) {
+            List<PackId> level = plannedLevel;
+            if (isLongestFirst() && getMaxParallelPackages() > 1 && level.size() > 1) {
+                level = DeploymentPlan.longestFirst(level, deployment.estimate(clientConfig.getBaseUrl(), level));
+            }
+            if (getMaxParallelPackages() > 1 && level.size() > 1) {
+                result = result.combine(deployLevel(clientConfig, deployment, level, listener));
+            } else {
+                for (PackId packId : level) {
+                    result = result.combine(deployPackage(clientConfig, deployment, packId, listener));
+                    if (!result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                        return result;
                     }
+                }
+            }
+            if (!result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                return result;
+            }
+        }
+        return result;
+    }
 
-                    Result actResult = selectedPackage.getValue().act(callable);
-                    if (actResult != null) {
-                        result = result.combine(actResult);
+    private Result deployLevel(final GraniteClientConfig clientConfig, final Deployment deployment,
+                               List<PackId> level, final TaskListener listener)
+            throws InterruptedException {
+        ExecutorService pool = ConcurrencyUtil.newFixedPool("deploy", getMaxParallelPackages());
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        try {
+            CompletionService<Result> completions = new ExecutorCompletionService<Result>(pool);
+            for (final PackId packId : level) {
+                futures.add(completions.submit(new Callable<Result>() {
+                    public Result call() throws Exception {
+                        return deployPackage(clientConfig, deployment, packId, listener);
                     }
-                    build.setResult(result);
+                }));
+            }
+
+            Result result = Result.SUCCESS;
+            for (int i = 0; i < futures.size(); i++) {
+                Result packResult;
+                try {
+                    packResult = completions.take().get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("Failed to deploy package: %s",
+                            e.getCause().getMessage()));
+                    packResult = Result.FAILURE;
                 }
+
+                result = result.combine(packResult);
+                if (!result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                    ConcurrencyUtil.cancelAll(futures);
+                    return result;
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            ConcurrencyUtil.cancelAll(futures);
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Result deployPackage(GraniteClientConfig clientConfig, Deployment deployment, PackId packId,
+                                 TaskListener listener)
+            throws IOException, InterruptedException {
+        List<PackId> subPackages = deployment.plan.getSubPackages(packId);
+        Integer entries = deployment.packageEntries.get(packId);
+        FilePath.FileCallable<Result> callable = null;
+        DeployPackageCallable timedCallable = null;
+        if (disableForJobTesting) {
+            callable = new DebugPackageCallable(packId, listener);
+        } else if (subPackages != null) {
+            listener.getLogger().printf("Deploying container %s of %d packages%n", packId, subPackages.size());
+            callable = new DeployPackageCallable(clientConfig, listener,
+                    packId, getPackageInstallOptions(), ExistingPackageBehavior.OVERWRITE, subPackages);
+        } else {
+            PackageInstallOptions options = getPackageInstallOptions();
+            if (entries != null) {
+                options = options.withAutosave(AdaptiveAutosave.choose(entries, deployment.packageSizes.get(packId),
+                        InstallHistory.get().getNodesPerSecond(clientConfig.getBaseUrl())));
+                listener.getLogger().printf("Installing %s on %s with autosave %d (%d entries, %d bytes).%n",
+                        packId, clientConfig.getBaseUrl(), options.getAutosave(), entries,
+                        deployment.packageSizes.get(packId));
+            }
+            timedCallable = new DeployPackageCallable(clientConfig, listener,
+                    packId, options, getExistingPackageBehavior(), null, deployment.deltaCacheDirectory);
+        }
+
+        long start = System.currentTimeMillis();
+        Result actResult;
+        DeployPackageCallable.Outcome outcome = null;
+        if (timedCallable != null) {
+            outcome = deployment.packageFiles.get(packId).act(timedCallable.timed());
+            actResult = outcome.getResult();
+        } else {
+            actResult = deployment.packageFiles.get(packId).act(callable);
+        }
+        if (actResult == null) {
+            actResult = Result.SUCCESS;
+        }
+        long duration = System.currentTimeMillis() - start;
+        if (!disableForJobTesting && subPackages == null && actResult.isBetterOrEqualTo(Result.UNSTABLE)) {
+            InstallHistory history = InstallHistory.get();
+            history.record(clientConfig.getBaseUrl(), packId, deployment.packageSizes.get(packId), duration);
+            if (outcome != null && entries != null && outcome.getInstallMillis() > 0L) {
+                // a delta installs only its own entries, and only the install request counts towards the rate
+                long installed = outcome.getInstalledEntries() >= 0 ? outcome.getInstalledEntries() : entries;
+                long installMillis = outcome.getInstallMillis();
+                history.recordInstall(clientConfig.getBaseUrl(), installed, installMillis);
+                listener.getLogger().printf("Installed %d entries of %s on %s in %d ms (%d nodes/s).%n",
+                        installed, packId, clientConfig.getBaseUrl(), installMillis,
+                        installed * 1000L / installMillis);
+            }
+            if (outcome != null && outcome.getReplicationMillis() >= 0L) {
+                history.recordReplication(clientConfig.getBaseUrl(), outcome.getReplicationMillis());
+                listener.getLogger().printf("Replicated %s from %s in %d ms (%d ms on average).%n",
+                        packId, clientConfig.getBaseUrl(), outcome.getReplicationMillis(),
+                        history.getReplicationMillis(clientConfig.getBaseUrl()));
             }
         }
+        return actResult;
     }
 
     private Map<PackId, FilePath> selectPackages(@Nonnull final Run<?, ?> build,
@@ -446,12 +1177,16 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
 
 
     private String getLocalDirectory(Run<?, ?> build, FilePath workspace, TaskListener listener) {
+        return expandTokens(build, workspace, listener, getLocalDirectory());
+    }
+
+    private static String expandTokens(Run<?, ?> build, FilePath workspace, TaskListener listener, String value) {
         try {
-            return TokenMacro.expandAll(build, workspace, listener, getLocalDirectory());
+            return TokenMacro.expandAll(build, workspace, listener, value);
         } catch (Exception e) {
-            listener.error("failed to expand tokens in: %s%n", getLocalDirectory());
+            listener.error("failed to expand tokens in: %s%n", value);
         }
-        return getLocalDirectory();
+        return value;
     }
 
     @Override
@@ -464,6 +1199,7 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
         public static final String ACHANDLING_DEFER_VALUE = "_DEFER"; // must be upper case
+        public static final String ACMODE_SKIP_VALIDATION = ValidatePackagesBuilder.DescriptorImpl.ACMODE_SKIP_VALIDATION;
 
         public DescriptorImpl() {
             load();
@@ -526,6 +1262,24 @@ public class DeployPackagesBuilder extends AbstractBuildStep {
             return model;
         }
 
+        public FormValidation doCheckValidationFilter(@QueryParameter String value) {
+            try {
+                WspFilter.parseSimpleSpec(value);
+                return FormValidation.ok();
+            } catch (RuntimeException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        public ListBoxModel doFillForbiddenACHandlingModeSetItems() {
+            ListBoxModel model = new ListBoxModel();
+            for (ValidatePackagesBuilder.ForbiddenACHandlingModeSet modeSet
+                    : ValidatePackagesBuilder.ForbiddenACHandlingModeSet.values()) {
+                model.add(modeSet.getListLabel(), modeSet.name());
+            }
+            return model;
+        }
+
         public ListBoxModel doFillBehaviorItems() {
             ListBoxModel model = new ListBoxModel();
             model.add("Overwrite existing", "Overwrite");
@@ -0,0 +1,239 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.adamcin.granite.client.packman.PackId;
+
+/**
+ * Orders the packages selected by the {@link DeployPackagesBuilder} by the dependencies declared in their
+ * {@code META-INF/vault/properties.xml}, so that independent packages can be installed concurrently while each
+ * package is installed only after the selected packages it depends on. Also splits the target instances into
+ * rollout waves, and orders work by its expected duration.
+ */
+final class DeploymentPlan {
+
+    private final List<List<PackId>> levels;
+    private final List<String> externalDependencies;
+    private final Map<PackId, List<PackId>> containers;
+
+    private DeploymentPlan(List<List<PackId>> levels, List<String> externalDependencies,
+                           Map<PackId, List<PackId>> containers) {
+        this.levels = levels;
+        this.externalDependencies = externalDependencies;
+        this.containers = containers;
+    }
+
+    /**
+     * @return the install levels, in order. The packages within a level do not depend on each other.
+     */
+    List<List<PackId>> getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return each declared dependency which is not satisfied by a selected package, as "package requires
+     * dependency". These must already be installed on the target instances.
+     */
+    List<String> getExternalDependencies() {
+        return externalDependencies;
+    }
+
+    /**
+     * @param packId a package in the plan
+     * @return the packages installed by the package if it is a container added by
+     * {@link #withContainer(int, PackId, List)}, or null otherwise
+     */
+    List<PackId> getSubPackages(PackId packId) {
+        return containers.get(packId);
+    }
+
+    /**
+     * Returns a copy of this plan in which some packages of a level are replaced by a container package which
+     * installs them as its sub packages.
+     *
+     * @param level       the index of the level
+     * @param containerId the container package
+     * @param subPackages the packages of the level to replace
+     * @return the new plan
+     */
+    DeploymentPlan withContainer(int level, PackId containerId, List<PackId> subPackages) {
+        List<List<PackId>> newLevels = new ArrayList<List<PackId>>(levels);
+        List<PackId> newLevel = new ArrayList<PackId>();
+        newLevel.add(containerId);
+        for (PackId packId : levels.get(level)) {
+            if (!subPackages.contains(packId)) {
+                newLevel.add(packId);
+            }
+        }
+        newLevels.set(level, Collections.unmodifiableList(newLevel));
+
+        Map<PackId, List<PackId>> newContainers = new LinkedHashMap<PackId, List<PackId>>(containers);
+        newContainers.put(containerId, Collections.unmodifiableList(new ArrayList<PackId>(subPackages)));
+        return new DeploymentPlan(Collections.unmodifiableList(newLevels), externalDependencies,
+                Collections.unmodifiableMap(newContainers));
+    }
+
+    /**
+     * Builds the plan for the selected packages.
+     *
+     * @param packIds      the selected packages, in selection order
+     * @param dependencies the raw {@code dependencies} property of each package, or null if it declares none
+     * @return the plan
+     * @throws PackageDependencyGraph.CycleException if the selected packages depend on each other in a cycle
+     */
+    static DeploymentPlan create(List<PackId> packIds, Map<PackId, String> dependencies)
+            throws PackageDependencyGraph.CycleException {
+        Map<String, PackId> byName = new LinkedHashMap<String, PackId>();
+        PackageDependencyGraph<PackId> graph = new PackageDependencyGraph<PackId>();
+        for (PackId packId : packIds) {
+            graph.addNode(packId);
+            byName.put(packId.getGroup() + ":" + packId.getName(), packId);
+        }
+
+        List<String> external = new ArrayList<String>();
+        for (PackId packId : packIds) {
+            for (String dependency : parseDependencies(dependencies.get(packId))) {
+                PackId selected = byName.get(getGroupAndName(dependency));
+                if (selected == null) {
+                    external.add(packId + " requires " + dependency);
+                } else if (!selected.equals(packId)) {
+                    graph.addDependency(packId, selected);
+                }
+            }
+        }
+
+        return new DeploymentPlan(graph.getLevels(), Collections.unmodifiableList(external),
+                Collections.<PackId, List<PackId>>emptyMap());
+    }
+
+    /**
+     * Splits a Vault {@code dependencies} property into its dependencies. Dependencies are separated by commas,
+     * except for the commas inside version ranges, like {@code my_packages:core:[1.0,2.0),my_packages:content}.
+     *
+     * @param value the property value
+     * @return the dependencies, trimmed
+     */
+    static List<String> parseDependencies(String value) {
+        List<String> parsed = new ArrayList<String>();
+        if (value == null) {
+            return parsed;
+        }
+
+        int depth = 0;
+        StringBuilder current = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '[' || c == '(') {
+                depth++;
+            } else if (c == ']' || c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == ',' && depth == 0) {
+                addDependency(parsed, current);
+                current.setLength(0);
+                continue;
+            }
+            current.append(c);
+        }
+        addDependency(parsed, current);
+        return parsed;
+    }
+
+    private static void addDependency(List<String> parsed, CharSequence dependency) {
+        String trimmed = dependency.toString().trim();
+        if (!trimmed.isEmpty()) {
+            parsed.add(trimmed);
+        }
+    }
+
+    /**
+     * @param dependency a dependency of the form {@code group:name[:versionRange]}
+     * @return the group and name of the dependency, without the version range
+     */
+    static String getGroupAndName(String dependency) {
+        String[] parts = dependency.split(":", 3);
+        if (parts.length == 1) {
+            return ":" + parts[0];
+        }
+        return parts[0] + ":" + parts[1];
+    }
+
+    /**
+     * Splits the target instances into rollout waves. With a canary, the first instance is deployed to alone
+     * before the others, which follow in waves of up to {@code waveSize} instances.
+     *
+     * @param instances the instances, in order
+     * @param canary    true to put the first instance in a wave of its own
+     * @param waveSize  the maximum number of instances in each following wave. values less than 1 are treated as 1.
+     * @param <T>       the instance type
+     * @return the waves, in order
+     */
+    static <T> List<List<T>> planWaves(List<T> instances, boolean canary, int waveSize) {
+        List<List<T>> waves = new ArrayList<List<T>>();
+        int size = Math.max(1, waveSize);
+        int from = 0;
+        if (canary && !instances.isEmpty()) {
+            waves.add(Collections.unmodifiableList(new ArrayList<T>(instances.subList(0, 1))));
+            from = 1;
+        }
+        for (; from < instances.size(); from += size) {
+            waves.add(Collections.unmodifiableList(
+                    new ArrayList<T>(instances.subList(from, Math.min(instances.size(), from + size)))));
+        }
+        return Collections.unmodifiableList(waves);
+    }
+
+    /**
+     * Orders items by their estimated duration, longest first, so that when they are handed to a fixed number of
+     * workers in this order, the longest items don't start last and stretch the total time.
+     *
+     * @param items     the items, in their planned order, which is kept for items with equal estimates
+     * @param estimates the estimated duration of each item. items without an estimate are treated as 0.
+     * @param <T>       the item type
+     * @return the ordered items
+     */
+    static <T> List<T> longestFirst(List<T> items, final Map<T, Long> estimates) {
+        List<T> ordered = new ArrayList<T>(items);
+        Collections.sort(ordered, new Comparator<T>() {
+            public int compare(T left, T right) {
+                return Long.compare(getEstimate(right), getEstimate(left));
+            }
+
+            private long getEstimate(T item) {
+                Long estimate = estimates.get(item);
+                return estimate != null ? estimate : 0L;
+            }
+        });
+        return ordered;
+    }
+}
@@ -61,6 +61,9 @@ import java.util.List;
  * Implementation of the "Download Content Packages from CRX" build step
  */
 public class DownloadPackagesBuilder extends AbstractBuildStep {
+    static final long DEFAULT_CACHE_SIZE_MB = 10240L;
+    static final int DEFAULT_DOWNLOAD_RETRIES = 3;
+
     private String packageIds;
     private String baseUrl;
     private String credentialsId = null;
@@ -70,6 +73,12 @@ public class DownloadPackagesBuilder extends AbstractBuildStep {
     private String localDirectory = null;
     private boolean ignoreErrors = false;
     private boolean rebuild = false;
+    private int parallelDownloads = 1;
+    private String cacheDirectory = null;
+    private long cacheSizeMB = DEFAULT_CACHE_SIZE_MB;
+    private int downloadRetries = DEFAULT_DOWNLOAD_RETRIES;
+    private boolean pipelineRebuild = false;
+    private int maxConcurrentBuilds = 1;
 
     @DataBoundConstructor
     public DownloadPackagesBuilder(String packageIds, String baseUrl) {
@@ -106,7 +115,9 @@ public class DownloadPackagesBuilder extends AbstractBuildStep {
         clientConfig.resolveCredentials();
 
         DownloadPackagesCallable callable = new DownloadPackagesCallable(clientConfig, listener,
-                listPackIds(build, workspace, listener), ignoreErrors, rebuild);
+                listPackIds(build, workspace, listener), ignoreErrors, rebuild, getParallelDownloads(),
+                getCacheDirectory(build, workspace, listener), getCacheSizeMB() * 1024L * 1024L,
+                getDownloadRetries(), pipelineRebuild, getMaxConcurrentBuilds());
 
         final String fLocalDirectory = getLocalDirectory(build, workspace, listener);
         final Result actResult = workspace.child(fLocalDirectory).act(callable);
@@ -166,6 +177,18 @@ public class DownloadPackagesBuilder extends AbstractBuildStep {
         return getLocalDirectory();
     }
 
+    private String getCacheDirectory(Run<?, ?> build, FilePath workspace, TaskListener listener) {
+        if (StringUtils.isBlank(getCacheDirectory())) {
+            return null;
+        }
+        try {
+            return TokenMacro.expandAll(build, workspace, listener, getCacheDirectory());
+        } catch (Exception e) {
+            listener.error("failed to expand tokens in: %s%n", getCacheDirectory());
+        }
+        return getCacheDirectory();
+    }
+
     public List<PackId> listPackIds(Run<?, ?> build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
         List<PackId> packIds = new ArrayList<PackId>();
 
@@ -212,6 +235,64 @@ public class DownloadPackagesBuilder extends AbstractBuildStep {
         return rebuild;
     }
 
+    public int getParallelDownloads() {
+        return parallelDownloads > 0 ? parallelDownloads : 1;
+    }
+
+    @DataBoundSetter
+    public void setParallelDownloads(int parallelDownloads) {
+        this.parallelDownloads = parallelDownloads;
+    }
+
+    public boolean isPipelineRebuild() {
+        return pipelineRebuild;
+    }
+
+    @DataBoundSetter
+    public void setPipelineRebuild(boolean pipelineRebuild) {
+        this.pipelineRebuild = pipelineRebuild;
+    }
+
+    public int getMaxConcurrentBuilds() {
+        return maxConcurrentBuilds > 0 ? maxConcurrentBuilds : 1;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentBuilds(int maxConcurrentBuilds) {
+        this.maxConcurrentBuilds = maxConcurrentBuilds;
+    }
+
+    public int getDownloadRetries() {
+        return downloadRetries > 0 ? downloadRetries : 0;
+    }
+
+    @DataBoundSetter
+    public void setDownloadRetries(int downloadRetries) {
+        this.downloadRetries = downloadRetries;
+    }
+
+    public String getCacheDirectory() {
+        return cacheDirectory == null ? "" : cacheDirectory.trim();
+    }
+
+    @DataBoundSetter
+    public void setCacheDirectory(String cacheDirectory) {
+        if (StringUtils.isBlank(cacheDirectory)) {
+            this.cacheDirectory = null;
+        } else {
+            this.cacheDirectory = cacheDirectory;
+        }
+    }
+
+    public long getCacheSizeMB() {
+        return cacheSizeMB > 0 ? cacheSizeMB : DEFAULT_CACHE_SIZE_MB;
+    }
+
+    @DataBoundSetter
+    public void setCacheSizeMB(long cacheSizeMB) {
+        this.cacheSizeMB = cacheSizeMB;
+    }
+
     public String getLocalDirectory() {
         if (StringUtils.isBlank(localDirectory)) {
             return ".";
@@ -29,13 +29,25 @@ package org.jenkinsci.plugins.graniteclient;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import hudson.Util;
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import net.adamcin.granite.client.packman.DetailedResponse;
-import net.adamcin.granite.client.packman.DownloadResponse;
 import net.adamcin.granite.client.packman.PackId;
 import net.adamcin.granite.client.packman.PackageManagerClient;
 import net.adamcin.granite.client.packman.ResponseProgressListener;
@@ -51,77 +63,433 @@ public class DownloadPackagesCallable extends GraniteClientFileCallable<Result>
     private final List<PackId> packIds;
     private final boolean ignoreErrors;
     private final boolean rebuild;
+    private final int parallelDownloads;
+    private final String cacheDirectory;
+    private final long cacheSize;
+    private final int downloadRetries;
+    private final boolean pipelineRebuild;
+    private final int maxConcurrentBuilds;
     private final ResponseProgressListener progressListener;
 
     public DownloadPackagesCallable(GraniteClientConfig clientConfig,
                                     TaskListener listener, List<PackId> packIds,
                                     boolean ignoreErrors, boolean rebuild) {
+        this(clientConfig, listener, packIds, ignoreErrors, rebuild, 1);
+    }
+
+    public DownloadPackagesCallable(GraniteClientConfig clientConfig,
+                                    TaskListener listener, List<PackId> packIds,
+                                    boolean ignoreErrors, boolean rebuild, int parallelDownloads) {
+        this(clientConfig, listener, packIds, ignoreErrors, rebuild, parallelDownloads, null, 0L, 0, false, 1);
+    }
+
+    /**
+     * @param cacheDirectory the package cache directory on the agent, resolved against the local directory if
+     *                       relative, or null to disable the cache
+     * @param cacheSize      the maximum size of the package cache in bytes
+     * @param downloadRetries the number of times an interrupted download is resumed before giving up
+     * @param pipelineRebuild rebuild the next packages while the previous packages download
+     * @param maxConcurrentBuilds the maximum number of packages to rebuild at the same time when pipelining
+     */
+    public DownloadPackagesCallable(GraniteClientConfig clientConfig,
+                                    TaskListener listener, List<PackId> packIds,
+                                    boolean ignoreErrors, boolean rebuild, int parallelDownloads,
+                                    String cacheDirectory, long cacheSize, int downloadRetries,
+                                    boolean pipelineRebuild, int maxConcurrentBuilds) {
         this.clientConfig = clientConfig;
         this.listener = listener;
         this.packIds = packIds;
         this.ignoreErrors = ignoreErrors;
         this.rebuild = rebuild;
+        this.parallelDownloads = Math.max(1, parallelDownloads);
+        this.cacheDirectory = cacheDirectory;
+        this.cacheSize = cacheSize;
+        this.downloadRetries = Math.max(0, downloadRetries);
+        this.pipelineRebuild = pipelineRebuild;
+        this.maxConcurrentBuilds = Math.max(1, maxConcurrentBuilds);
         this.progressListener = new JenkinsResponseProgressListener(listener);
     }
 
+    /**
+     * The outcome of checking for (and rebuilding) a package before it is downloaded
+     */
+    static final class Prepared {
+        final Result result;
+        final boolean found;
+
+        Prepared(Result result, boolean found) {
+            this.result = result;
+            this.found = found;
+        }
+    }
+
     private class Execution implements PackageManagerClientCallable<Result> {
         final File toDirectory;
+        final PackageCache cache;
 
         private Execution(File toDirectory) {
             this.toDirectory = toDirectory;
+            if (cacheDirectory == null || cacheDirectory.trim().isEmpty()) {
+                this.cache = null;
+            } else {
+                File cacheDir = new File(cacheDirectory.trim());
+                if (!cacheDir.isAbsolute()) {
+                    cacheDir = new File(toDirectory, cacheDir.getPath());
+                }
+                this.cache = new PackageCache(cacheDir, cacheSize);
+            }
         }
 
-        public Result doExecute(PackageManagerClient client) throws Exception {
-            Result result = Result.SUCCESS;
+        public Result doExecute(final PackageManagerClient client) throws Exception {
+            GraniteHttpSession session = GraniteHttpSession.open(client, clientConfig, listener);
+            final PackageDownloader downloader = new PackageDownloader(session, listener, downloadRetries);
+            final Map<PackId, String> cacheKeys = listCacheKeys(session);
+            PackageSteps steps = new PackageSteps() {
+                public Prepared prepare(PackId packId) throws Exception {
+                    return preparePackage(client, packId);
+                }
 
+                public Result fetch(PackId packId, Result result) throws Exception {
+                    return fetchPackage(downloader, cacheKeys, packId, result);
+                }
+            };
+
+            if (rebuild && pipelineRebuild && packIds.size() > 1) {
+                return downloadPipelined(steps);
+            } else if (parallelDownloads > 1 && packIds.size() > 1) {
+                return downloadParallel(steps);
+            }
+
+            Result result = Result.SUCCESS;
             for (PackId packId : packIds) {
-                client.waitForService();
-                listener.getLogger().printf(
-                        "Checking for package %s on server %s%n", packId, clientConfig.getBaseUrl()
-                );
-                if (client.existsOnServer(packId)) {
-                    listener.getLogger().printf("Found package: %s%n", client.getConsoleUiUrl(packId));
-                    if (rebuild) {
-                        listener.getLogger().printf("Rebuilding %s.%n", packId);
-                        DetailedResponse r_rebuild = client.build(packId, progressListener);
-                        if (!r_rebuild.isSuccess()) {
-                            listener.error(r_rebuild.getMessage());
-                            if (ignoreErrors) {
-                                result = result.combine(Result.UNSTABLE);
-                            } else {
-                                return Result.FAILURE;
-                            }
+                Result packResult = download(steps, packId);
+                if (packResult == Result.FAILURE) {
+                    return Result.FAILURE;
+                }
+                result = result.combine(packResult);
+            }
+
+            return result;
+        }
 
+        /**
+         * Lists the server packages once, so that unchanged packages can be restored from the cache. Rebuilt packages
+         * always change on the server, so the cache is bypassed entirely when rebuilding.
+         */
+        private Map<PackId, String> listCacheKeys(GraniteHttpSession session) {
+            if (cache == null) {
+                return Collections.emptyMap();
+            } else if (rebuild) {
+                listener.getLogger().printf("Rebuilding packages, so the package cache will not be used.%n");
+                return Collections.emptyMap();
+            }
+            try {
+                return PackageCache.listCacheKeys(session);
+            } catch (IOException e) {
+                listener.error("Failed to list packages for the package cache. Downloading all packages: %s",
+                        e.getMessage());
+                return Collections.emptyMap();
+            }
+        }
+
+        /**
+         * Checks that the package exists on the server, and rebuilds it if requested.
+         */
+        private Prepared preparePackage(PackageManagerClient client, PackId packId) throws Exception {
+            Result result = Result.SUCCESS;
+            client.waitForService();
+            listener.getLogger().printf(
+                    "Checking for package %s on server %s%n", packId, clientConfig.getBaseUrl()
+            );
+            if (client.existsOnServer(packId)) {
+                listener.getLogger().printf("Found package: %s%n", client.getConsoleUiUrl(packId));
+                if (rebuild) {
+                    listener.getLogger().printf("Rebuilding %s.%n", packId);
+                    DetailedResponse r_rebuild = client.build(packId, progressListener);
+                    if (!r_rebuild.isSuccess()) {
+                        listener.error(r_rebuild.getMessage());
+                        if (ignoreErrors) {
+                            result = result.combine(Result.UNSTABLE);
                         } else {
-                            if (r_rebuild.hasErrors()) {
-                                result = result.combine(Result.UNSTABLE);
-                            }
+                            return new Prepared(Result.FAILURE, true);
                         }
-                    }
-                    listener.getLogger().printf("Downloading %s to %s%n", packId, toDirectory);
-
-                    DownloadResponse response = client.downloadToDirectory(packId, toDirectory);
-                    listener.getLogger().printf("Downloaded %d bytes to file %s.%n", response.getLength(), response.getContent());
-                    listener.getLogger().printf("Verifying downloaded package...%n");
-                    PackId reId = PackId.identifyPackage(response.getContent());
-                    if (packId.equals(reId)) {
-                        listener.getLogger().printf("Package verified as %s.%n", packId);
+
                     } else {
-                        throw new Exception("Package verification failed: " + response.getContent());
+                        if (r_rebuild.hasErrors()) {
+                            result = result.combine(Result.UNSTABLE);
+                        }
                     }
+                }
+                return new Prepared(result, true);
+            } else {
+                listener.error("Package %s does not exist on server.", packId);
+                if (ignoreErrors) {
+                    return new Prepared(Result.UNSTABLE.combine(result), false);
+                } else  {
+                    return new Prepared(Result.FAILURE, false);
+                }
+            }
+        }
+
+        /**
+         * Restores the package from the cache, or downloads it.
+         */
+        private Result fetchPackage(PackageDownloader downloader, Map<PackId, String> cacheKeys, PackId packId,
+                                    Result result) throws Exception {
+            String cacheKey = cacheKeys.get(packId);
+            if (cacheKey != null && restoreFromCache(cacheKey, packId)) {
+                return result;
+            }
+
+            listener.getLogger().printf("Downloading %s to %s%n", packId, toDirectory);
 
-                } else {
-                    listener.error("Package %s does not exist on server.", packId);
-                    if (ignoreErrors) {
-                        result = Result.UNSTABLE.combine(result);
-                    } else  {
-                        return Result.FAILURE;
+            PackageDownloader.Download download = downloader.download(packId, toDirectory);
+            listener.getLogger().printf("Downloaded %d bytes to file %s.%n", download.getLength(), download.getFile());
+            listener.getLogger().printf("Package verified as %s (sha256 %s).%n", packId, download.getSha256());
+
+            if (cacheKey != null) {
+                try {
+                    cache.store(cacheKey, download);
+                } catch (IOException e) {
+                    listener.error("Failed to add %s to the package cache: %s", packId, e.getMessage());
+                }
+            }
+            return result;
+        }
+
+        private boolean restoreFromCache(String cacheKey, PackId packId) {
+            try {
+                File restored = cache.restore(cacheKey, packId, toDirectory);
+                if (restored != null) {
+                    listener.getLogger().printf("Package %s is unchanged on the server. Restored %s from cache %s.%n",
+                            packId, restored, cache.getDirectory());
+                    return true;
+                }
+            } catch (IOException e) {
+                listener.error("Failed to restore %s from the package cache: %s", packId, e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The two steps of getting one package, which are scheduled separately when rebuilds are pipelined
+     */
+    interface PackageSteps {
+
+        /**
+         * Checks that the package exists on the server, and rebuilds it if requested.
+         */
+        Prepared prepare(PackId packId) throws Exception;
+
+        /**
+         * Restores the package from the cache, or downloads it.
+         */
+        Result fetch(PackId packId, Result result) throws Exception;
+    }
+
+    private static Result download(PackageSteps steps, PackId packId) throws Exception {
+        Prepared prepared = steps.prepare(packId);
+        if (!prepared.found || prepared.result == Result.FAILURE) {
+            return prepared.result;
+        }
+        return steps.fetch(packId, prepared.result);
+    }
+
+    /**
+     * Downloads up to {@link #parallelDownloads} packages at a time, sharing the client's connection pool and
+     * login session. A failure stops the remaining downloads unless errors are ignored.
+     */
+    Result downloadParallel(final PackageSteps steps) throws Exception {
+        listener.getLogger().printf("Downloading %d packages with up to %d concurrent downloads.%n",
+                packIds.size(), parallelDownloads);
+
+        ExecutorService pool = ConcurrencyUtil.newFixedPool("download", parallelDownloads);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        try {
+            CompletionService<Result> completions = new ExecutorCompletionService<Result>(pool);
+            for (final PackId packId : packIds) {
+                futures.add(completions.submit(new Callable<Result>() {
+                    public Result call() throws Exception {
+                        return download(steps, packId);
                     }
+                }));
+            }
+
+            Result result = Result.SUCCESS;
+            for (int i = 0; i < futures.size(); i++) {
+                Result packResult;
+                try {
+                    packResult = completions.take().get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("Failed to download package: %s",
+                            e.getCause().getMessage()));
+                    packResult = ignoreErrors ? Result.UNSTABLE : Result.FAILURE;
+                }
+
+                if (packResult == Result.FAILURE) {
+                    ConcurrencyUtil.cancelAll(futures);
+                    return Result.FAILURE;
                 }
+                result = result.combine(packResult);
             }
+            return result;
+        } catch (InterruptedException e) {
+            ConcurrencyUtil.cancelAll(futures);
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Rebuilds packages on one pool and downloads them on another, so that the server can build the next packages
+     * while the previous packages are downloading. Up to {@link #maxConcurrentBuilds} packages are built at a
+     * time, and each download starts as soon as its package has been rebuilt. Results are collected in the listed
+     * order, and a failure cancels the remaining builds and downloads unless errors are ignored.
+     */
+    Result downloadPipelined(final PackageSteps steps) throws Exception {
+        listener.getLogger().printf(
+                "Pipelining %d packages with up to %d concurrent rebuilds and %d concurrent downloads.%n",
+                packIds.size(), maxConcurrentBuilds, parallelDownloads);
 
+        final AtomicLong buildNanos = new AtomicLong();
+        final AtomicLong downloadNanos = new AtomicLong();
+        final List<long[]> buildIntervals = Collections.synchronizedList(new ArrayList<long[]>());
+        final List<long[]> downloadIntervals = Collections.synchronizedList(new ArrayList<long[]>());
+        final long started = System.nanoTime();
+
+        ExecutorService buildPool = ConcurrencyUtil.newFixedPool("rebuild", maxConcurrentBuilds);
+        ExecutorService downloadPool = ConcurrencyUtil.newFixedPool("download", parallelDownloads);
+        List<Future<?>> allFutures = new ArrayList<Future<?>>();
+        List<Future<Result>> downloads = new ArrayList<Future<Result>>();
+        try {
+            for (final PackId packId : packIds) {
+                final Future<Prepared> build = buildPool.submit(new Callable<Prepared>() {
+                    public Prepared call() throws Exception {
+                        long start = System.nanoTime();
+                        try {
+                            return steps.prepare(packId);
+                        } finally {
+                            long end = System.nanoTime();
+                            buildNanos.addAndGet(end - start);
+                            buildIntervals.add(new long[]{start, end});
+                        }
+                    }
+                });
+                allFutures.add(build);
+
+                Future<Result> download = downloadPool.submit(new Callable<Result>() {
+                    public Result call() throws Exception {
+                        Prepared prepared = build.get();
+                        if (!prepared.found || prepared.result == Result.FAILURE) {
+                            return prepared.result;
+                        }
+                        long start = System.nanoTime();
+                        try {
+                            return steps.fetch(packId, prepared.result);
+                        } finally {
+                            long end = System.nanoTime();
+                            downloadNanos.addAndGet(end - start);
+                            downloadIntervals.add(new long[]{start, end});
+                        }
+                    }
+                });
+                allFutures.add(download);
+                downloads.add(download);
+            }
+
+            Result result = Result.SUCCESS;
+            for (Future<Result> download : downloads) {
+                Result packResult;
+                try {
+                    packResult = download.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof ExecutionException && cause.getCause() != null) {
+                        // the rebuild failed, so the download rethrew its exception.
+                        cause = cause.getCause();
+                    }
+                    cause.printStackTrace(listener.error("Failed to download package: %s", cause.getMessage()));
+                    packResult = ignoreErrors ? Result.UNSTABLE : Result.FAILURE;
+                }
+
+                if (packResult == Result.FAILURE) {
+                    ConcurrencyUtil.cancelAll(allFutures);
+                    return Result.FAILURE;
+                }
+                result = result.combine(packResult);
+            }
+
+            long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            long buildMillis = TimeUnit.NANOSECONDS.toMillis(buildNanos.get());
+            long downloadMillis = TimeUnit.NANOSECONDS.toMillis(downloadNanos.get());
+            long overlapMillis;
+            synchronized (buildIntervals) {
+                synchronized (downloadIntervals) {
+                    overlapMillis = TimeUnit.NANOSECONDS.toMillis(overlap(buildIntervals, downloadIntervals));
+                }
+            }
+            listener.getLogger().printf(
+                    "Pipeline finished in %s: %s rebuilding and %s downloading, with rebuilds and downloads "
+                            + "running at the same time for %s.%n",
+                    Util.getTimeSpanString(wallMillis), Util.getTimeSpanString(buildMillis),
+                    Util.getTimeSpanString(downloadMillis), Util.getTimeSpanString(overlapMillis));
             return result;
+        } catch (InterruptedException e) {
+            ConcurrencyUtil.cancelAll(allFutures);
+            throw e;
+        } finally {
+            buildPool.shutdownNow();
+            downloadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return how long any of the first intervals ran at the same time as any of the second intervals, which is
+     * the length of the intersection of the union of each list. Each interval is a start and end time.
+     */
+    static long overlap(List<long[]> first, List<long[]> second) {
+        List<long[]> a = union(first);
+        List<long[]> b = union(second);
+        long overlap = 0L;
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            long start = Math.max(a.get(i)[0], b.get(j)[0]);
+            long end = Math.min(a.get(i)[1], b.get(j)[1]);
+            if (end > start) {
+                overlap += end - start;
+            }
+            if (a.get(i)[1] < b.get(j)[1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return overlap;
+    }
+
+    /**
+     * @return the disjoint intervals covering the given intervals, ordered by start time
+     */
+    static List<long[]> union(List<long[]> intervals) {
+        List<long[]> sorted = new ArrayList<long[]>(intervals);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            public int compare(long[] left, long[] right) {
+                return left[0] < right[0] ? -1 : (left[0] == right[0] ? 0 : 1);
+            }
+        });
+        List<long[]> union = new ArrayList<long[]>();
+        for (long[] interval : sorted) {
+            long[] last = union.isEmpty() ? null : union.get(union.size() - 1);
+            if (last != null && interval[0] <= last[1]) {
+                last[1] = Math.max(last[1], interval[1]);
+            } else {
+                union.add(new long[]{interval[0], interval[1]});
+            }
         }
+        return union;
     }
 
     public Result invoke(File toDirectory, VirtualChannel channel) throws IOException, InterruptedException {
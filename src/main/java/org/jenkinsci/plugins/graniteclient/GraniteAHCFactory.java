@@ -27,14 +27,15 @@
 
 package org.jenkinsci.plugins.graniteclient;
 
-import static org.jenkinsci.plugins.graniteclient.GraniteClientGlobalConfig.getPreemptLoginPatterns;
-
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import javax.annotation.Nonnull;
 import javax.servlet.ServletException;
@@ -42,6 +43,7 @@ import javax.servlet.ServletException;
 import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxModel;
 import com.ning.http.client.AsyncHttpClient;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.ProxyConfiguration;
 import hudson.model.Describable;
@@ -75,6 +77,8 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory>
     private int connectionTimeoutInMs = DEFAULT_TIMEOUT;
     private int idleConnectionTimeoutInMs = DEFAULT_TIMEOUT;
     private int requestTimeoutInMs = DEFAULT_TIMEOUT;
+    private List<InstanceGroup> instanceGroups;
+    private transient volatile PreemptLoginPolicy preemptLoginPolicy;
 
     /**
      * The parent type is not responsible for loading
@@ -90,7 +94,26 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory>
      */
     @Override
     public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
-        req.bindJSON(this, json.getJSONObject("GraniteAHCFactory"));
+        JSONObject factoryJson = json.getJSONObject("GraniteAHCFactory");
+        PreemptLoginPolicy policy;
+        try {
+            policy = PreemptLoginPolicy.compile(factoryJson.optString("preemptLoginForBaseUrls", null));
+        } catch (PatternSyntaxException e) {
+            throw new FormException("Invalid regular expression in Preempt Login for Base URLs: " + e.getMessage(),
+                    e, "preemptLoginForBaseUrls");
+        }
+        List<InstanceGroup> groups = req.bindJSONToList(InstanceGroup.class, factoryJson.opt("instanceGroups"));
+        Set<String> names = new HashSet<String>();
+        for (InstanceGroup group : groups) {
+            if (!InstanceGroup.isValidName(group.getName())) {
+                throw new FormException("Invalid instance group name: " + group.getName(), "instanceGroups");
+            } else if (!names.add(group.getName())) {
+                throw new FormException("Duplicate instance group name: " + group.getName(), "instanceGroups");
+            }
+        }
+        req.bindJSON(this, factoryJson);
+        this.instanceGroups = groups;
+        this.preemptLoginPolicy = policy;
         save();
         return true;
     }
@@ -140,6 +163,17 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory>
         this.requestTimeoutInMs = requestTimeoutInMs;
     }
 
+    public List<InstanceGroup> getInstanceGroups() {
+        if (instanceGroups == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(instanceGroups);
+    }
+
+    public void setInstanceGroups(List<InstanceGroup> instanceGroups) {
+        this.instanceGroups = instanceGroups == null ? null : new ArrayList<InstanceGroup>(instanceGroups);
+    }
+
     @Override
     public String getDisplayName() {
         return "CRX Content Package Deployer - HTTP Client";
@@ -162,7 +196,7 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory>
     public FormValidation doCheckPreemptLoginForBaseUrls(@QueryParameter String value)
             throws IOException, ServletException {
         try {
-            List<Pattern> patterns = getPreemptLoginPatterns(value);
+            PreemptLoginPolicy.compile(value);
             return FormValidation.ok();
         } catch (PatternSyntaxException e) {
             return FormValidation.error("Invalid regular expression: %n%s%n", e.getMessage());
@@ -191,11 +225,31 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory>
         }
     }
 
+    /**
+     * Returns the compiled preempt login policy. It is compiled once when the configuration is saved, or on first
+     * use after it is loaded, and again only if the patterns change.
+     */
+    PreemptLoginPolicy getPreemptLoginPolicy() {
+        PreemptLoginPolicy policy = this.preemptLoginPolicy;
+        String source = this.preemptLoginForBaseUrls;
+        if (policy == null || !policy.getSource().equals(source == null || source.trim().isEmpty() ? "" : source)) {
+            try {
+                policy = PreemptLoginPolicy.compile(source);
+            } catch (PatternSyntaxException e) {
+                LOGGER.log(Level.WARNING, "Invalid regular expression in Preempt Login for Base URLs", e);
+                policy = PreemptLoginPolicy.NONE;
+            }
+            this.preemptLoginPolicy = policy;
+        }
+        return policy;
+    }
+
     public GraniteClientGlobalConfig createGlobalConfig() {
         GraniteClientGlobalConfig globalConfig =
                 new GraniteClientGlobalConfig(
                         this.getDefaultCredentials(),
                         this.getPreemptLoginForBaseUrls(),
+                        this.getPreemptLoginPolicy(),
                         this.getConnectionTimeoutInMs(),
                         this.getIdleConnectionTimeoutInMs(),
                         this.getRequestTimeoutInMs(),
@@ -208,6 +262,17 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory>
         return factory.createGlobalConfig();
     }
 
+    /**
+     * Expands references to the configured instance groups in a list of base URLs.
+     *
+     * @param baseUrls the base URLs and {@code @name} group references
+     * @return the instances to deploy to
+     * @throws AbortException if a reference names a group which is not configured
+     */
+    static List<InstanceGroup.Member> resolveInstances(List<String> baseUrls) throws AbortException {
+        return InstanceGroup.resolve(baseUrls, getFactoryInstance().getInstanceGroups());
+    }
+
     public static ProxyConfiguration getProxyConfig() {
         Jenkins j = Jenkins.getActiveInstance();
         if (j != null && j.proxy != null) {
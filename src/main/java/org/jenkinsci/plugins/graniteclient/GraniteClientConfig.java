@@ -70,6 +70,7 @@ public final class GraniteClientConfig implements Serializable {
     private final String urlUserInfo;
     private Credentials credentials;
     private boolean resolvedCredentials;
+    private String sessionPoolId;
 
     public GraniteClientConfig(@Nonnull GraniteClientGlobalConfig globalConfig, String baseUrl, String credentialsId) {
         this(globalConfig, baseUrl, credentialsId, 0L, 0L, 0L);
@@ -170,6 +171,18 @@ public final class GraniteClientConfig implements Serializable {
         return waitDelay;
     }
 
+    /**
+     * @return the ID of the {@link ClientSessionPool} to borrow logged-in clients from, or null to open a new client
+     * for each execution
+     */
+    public String getSessionPoolId() {
+        return sessionPoolId;
+    }
+
+    public void setSessionPoolId(String sessionPoolId) {
+        this.sessionPoolId = sessionPoolId;
+    }
+
     public String getUrlUserInfo() {
         return urlUserInfo;
     }
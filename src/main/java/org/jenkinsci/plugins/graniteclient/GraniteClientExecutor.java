@@ -43,11 +43,8 @@ import com.ning.http.client.Response;
 import hudson.model.TaskListener;
 import hudson.util.LogTaskListener;
 import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
-import net.adamcin.httpsig.api.KeyId;
-import net.adamcin.httpsig.api.Keychain;
 import net.adamcin.httpsig.api.Signer;
 import net.adamcin.httpsig.http.ning.AsyncUtil;
-import net.adamcin.httpsig.ssh.jce.UserKeysFingerprintKeyId;
 
 /**
  * Executes {@link PackageManagerClientCallable} instances by injecting an {@link AsyncPackageManagerClient}
@@ -74,26 +71,14 @@ public final class GraniteClientExecutor {
                                 TaskListener _listener) throws Exception {
         final TaskListener listener = _listener != null ? _listener : DEFAULT_LISTENER;
 
-        final GraniteClientGlobalConfig globalConfig = config.getGlobalConfig();
-        final AsyncHttpClient ahcClient = new AsyncHttpClient(new AsyncHttpClientConfig.Builder().setProxyServer(globalConfig.getProxyServer())
-                .setConnectTimeout(globalConfig.getConnectionTimeoutInMs())
-                .setReadTimeout(config.getServiceTimeout() > 0 ? (int) config.getServiceTimeout() : globalConfig.getIdleConnectionTimeoutInMs())
-                .setRequestTimeout(config.getRequestTimeout() > 0 ? (int) config.getRequestTimeout() : globalConfig.getRequestTimeoutInMs())
-                .build()
-        );
-        
-        try {
-            AsyncPackageManagerClient client = new AsyncPackageManagerClient(ahcClient);
-
-            boolean preemptLogin = isPreemptLogin(config, listener);
-
-            client.setBaseUrl(config.getBaseUrl());
-            client.setRequestTimeout(config.getRequestTimeout());
-            client.setServiceTimeout(config.getServiceTimeout());
-            client.setWaitDelay(config.getWaitDelay());
+        if (config.getSessionPoolId() != null) {
+            return executePooled(callable, config, listener);
+        }
 
-            if (doLogin(client, config.getCredentials(), preemptLogin, listener,
-                    globalConfig.getDefaultCredentials())) {
+        final AsyncHttpClient ahcClient = newAsyncHttpClient(config);
+        try {
+            AsyncPackageManagerClient client = newClient(ahcClient, config);
+            if (login(client, config, listener)) {
                 return callable.doExecute(client);
             } else {
                 throw new IOException("Failed to login to " + config.getBaseUrl());
@@ -103,6 +88,75 @@ public final class GraniteClientExecutor {
         }
     }
 
+    /**
+     * Executes the callable with a logged-in client borrowed from the config's session pool, or with a new one which
+     * joins the pool afterwards. A client whose execution throws is closed instead of being returned.
+     */
+    private static <T> T executePooled(PackageManagerClientCallable<T> callable, GraniteClientConfig config,
+                                       TaskListener listener) throws Exception {
+        ClientSessionPool.Session session = ClientSessionPool.acquire(config.getSessionPoolId(), config);
+        if (session == null) {
+            session = openSession(config, listener);
+        }
+
+        boolean healthy = false;
+        try {
+            T result = callable.doExecute(session.getClient());
+            healthy = true;
+            return result;
+        } finally {
+            ClientSessionPool.release(session, healthy);
+        }
+    }
+
+    /**
+     * Connects and logs in to the base URL of the config, for the config's session pool.
+     *
+     * @throws IOException if the login fails
+     */
+    static ClientSessionPool.Session openSession(GraniteClientConfig config, TaskListener listener)
+            throws IOException {
+        final AsyncHttpClient ahcClient = newAsyncHttpClient(config);
+        boolean loggedIn = false;
+        try {
+            AsyncPackageManagerClient client = newClient(ahcClient, config);
+            loggedIn = login(client, config, listener);
+            if (!loggedIn) {
+                throw new IOException("Failed to login to " + config.getBaseUrl());
+            }
+            return new ClientSessionPool.Session(config.getSessionPoolId(), config, ahcClient, client);
+        } finally {
+            if (!loggedIn) {
+                ahcClient.close();
+            }
+        }
+    }
+
+    private static AsyncHttpClient newAsyncHttpClient(GraniteClientConfig config) {
+        final GraniteClientGlobalConfig globalConfig = config.getGlobalConfig();
+        return new AsyncHttpClient(new AsyncHttpClientConfig.Builder().setProxyServer(globalConfig.getProxyServer())
+                .setConnectTimeout(globalConfig.getConnectionTimeoutInMs())
+                .setReadTimeout(config.getServiceTimeout() > 0 ? (int) config.getServiceTimeout() : globalConfig.getIdleConnectionTimeoutInMs())
+                .setRequestTimeout(config.getRequestTimeout() > 0 ? (int) config.getRequestTimeout() : globalConfig.getRequestTimeoutInMs())
+                .build()
+        );
+    }
+
+    private static AsyncPackageManagerClient newClient(AsyncHttpClient ahcClient, GraniteClientConfig config) {
+        AsyncPackageManagerClient client = new AsyncPackageManagerClient(ahcClient);
+        client.setBaseUrl(config.getBaseUrl());
+        client.setRequestTimeout(config.getRequestTimeout());
+        client.setServiceTimeout(config.getServiceTimeout());
+        client.setWaitDelay(config.getWaitDelay());
+        return client;
+    }
+
+    private static boolean login(AsyncPackageManagerClient client, GraniteClientConfig config,
+                                 TaskListener listener) throws IOException {
+        return doLogin(client, config.getCredentials(), isPreemptLogin(config, listener), listener,
+                config.getGlobalConfig().getDefaultCredentials());
+    }
+
     private static boolean doLogin(AsyncPackageManagerClient client, Credentials credentials, boolean preemptLogin,
                                    final TaskListener listener, Credentials defaultCredentials) throws IOException {
         final Credentials _creds = credentials != null ? credentials : defaultCredentials;
@@ -151,13 +205,13 @@ public final class GraniteClientExecutor {
     private static boolean doLoginSignature(AsyncPackageManagerClient client, SSHUserPrivateKey key,
                                             final TaskListener listener) throws IOException {
 
-        Keychain sshkeys = GraniteNamedIdCredentials.getKeychainFromCredentials(key);
-        if (sshkeys.isEmpty()) {
+        SignatureKeyCache.Entry keys = SignatureKeyCache.get(key);
+        if (keys.getKeychain().isEmpty()) {
             return false;
         }
 
-        KeyId keyId = new UserKeysFingerprintKeyId(key.getUsername());
-        Signer signer = new Signer(sshkeys, keyId);
+        // the signer tracks key rotation for a single login, so only the decoded keys are shared
+        Signer signer = new Signer(keys.getKeychain(), keys.getKeyId());
         Future<Boolean> fResponse = AsyncUtil.login(
                 client.getClient(),
                 signer, client.getClient().prepareGet(
@@ -181,24 +235,21 @@ public final class GraniteClientExecutor {
     }
 
     public static boolean validateBaseUrl(final GraniteClientConfig config) throws IOException {
-        final TaskListener listener = DEFAULT_LISTENER;
         final AsyncHttpClient asyncHttpClient = config.getGlobalConfig().getInstance();
         try {
-
-            AsyncPackageManagerClient client = new AsyncPackageManagerClient(asyncHttpClient);
-
-            client.setBaseUrl(config.getBaseUrl());
-            client.setRequestTimeout(config.getRequestTimeout());
-            client.setServiceTimeout(config.getServiceTimeout());
-            client.setWaitDelay(config.getWaitDelay());
-
-            return doLogin(client, config.getCredentials(),
-                    isPreemptLogin(config, listener), listener,
-                    config.getGlobalConfig().getDefaultCredentials());
+            return validateBaseUrl(config, asyncHttpClient);
         } finally {
             asyncHttpClient.close();
         }
+    }
 
+    /**
+     * Attempts to login using a client owned by the caller, which is left open so that it can be shared by
+     * concurrent validations.
+     */
+    static boolean validateBaseUrl(final GraniteClientConfig config, final AsyncHttpClient asyncHttpClient)
+            throws IOException {
+        return login(newClient(asyncHttpClient, config), config, DEFAULT_LISTENER);
     }
 
     static boolean isPreemptLogin(final GraniteClientConfig config, final TaskListener _listener) {
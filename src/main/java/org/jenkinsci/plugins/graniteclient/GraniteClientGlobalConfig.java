@@ -35,10 +35,23 @@ public class GraniteClientGlobalConfig implements Serializable {
     private final int idleConnectionTimeoutInMs;
     private final int requestTimeoutInMs;
     private final ProxyConfiguration proxy;
+    private volatile PreemptLoginPolicy preemptLoginPolicy;
 
     public GraniteClientGlobalConfig(Credentials defaultCredentials, String preemptLoginForBaseUrls, int connectionTimeoutInMs, int idleConnectionTimeoutInMs, int requestTimeoutInMs, ProxyConfiguration proxy) {
+        this(defaultCredentials, preemptLoginForBaseUrls, null, connectionTimeoutInMs, idleConnectionTimeoutInMs,
+                requestTimeoutInMs, proxy);
+    }
+
+    /**
+     * @param preemptLoginPolicy the already compiled preempt login policy, or null to compile it from
+     *                           preemptLoginForBaseUrls when it is first needed
+     */
+    GraniteClientGlobalConfig(Credentials defaultCredentials, String preemptLoginForBaseUrls,
+                              @CheckForNull PreemptLoginPolicy preemptLoginPolicy, int connectionTimeoutInMs,
+                              int idleConnectionTimeoutInMs, int requestTimeoutInMs, ProxyConfiguration proxy) {
         this.defaultCredentials = defaultCredentials;
         this.preemptLoginForBaseUrls = preemptLoginForBaseUrls;
+        this.preemptLoginPolicy = preemptLoginPolicy;
         this.connectionTimeoutInMs = connectionTimeoutInMs;
         this.idleConnectionTimeoutInMs = idleConnectionTimeoutInMs;
         this.requestTimeoutInMs = requestTimeoutInMs;
@@ -102,25 +115,22 @@ public class GraniteClientGlobalConfig implements Serializable {
      * @return true if preemptive basic auth should be enabled
      */
     public boolean shouldPreemptLoginForBaseUrl(String baseUrl, @CheckForNull TaskListener _listener) {
-        final TaskListener listener = _listener != null ? _listener : DEFAULT_LISTENER;
-        if (baseUrl != null && !baseUrl.trim().isEmpty()) {
-            boolean matched = false;
+        return getPreemptLoginPolicy(_listener).shouldPreemptLogin(baseUrl);
+    }
+
+    PreemptLoginPolicy getPreemptLoginPolicy(@CheckForNull TaskListener _listener) {
+        if (preemptLoginPolicy == null) {
+            final TaskListener listener = _listener != null ? _listener : DEFAULT_LISTENER;
             try {
-                List<Pattern> patterns = getPreemptLoginPatterns(getPreemptLoginForBaseUrls());
-                for (Pattern pattern : patterns) {
-                    if (pattern.matcher(baseUrl).find()) {
-                        matched = true;
-                    }
-                }
+                preemptLoginPolicy = PreemptLoginPolicy.compile(preemptLoginForBaseUrls);
             } catch (PatternSyntaxException e) {
                 listener.getLogger()
                         .printf("[WARN] exception encountered when attempting to compile Preempt Login patterns: %n%s%n",
                                 e.getMessage());
+                preemptLoginPolicy = PreemptLoginPolicy.NONE;
             }
-            return matched;
         }
-        return false;
-
+        return preemptLoginPolicy;
     }
 
     public static List<Pattern> getPreemptLoginPatterns(final String _patterns) throws PatternSyntaxException {
@@ -0,0 +1,287 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Realm;
+import com.ning.http.client.Response;
+import com.ning.http.client.cookie.Cookie;
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
+import net.adamcin.httpsig.api.Signer;
+import net.adamcin.httpsig.http.ning.AsyncUtil;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * Authenticated access to server endpoints which are not exposed by the {@link PackageManagerClient}, like streamed
+ * package downloads and JSON queries. A session shares the {@link AsyncHttpClient} (and so the connection pool) of
+ * the client it was opened for. The client does not expose its login, so the session logs in once more with the
+ * same credentials and the same preemptive login policy, and authenticates each of its requests with the resulting
+ * login token cookies, or with preemptive basic auth where the policy calls for it.
+ */
+final class GraniteHttpSession {
+
+    /**
+     * Sling's form login handler accepts credentials posted to any path ending in {@code /j_security_check}
+     */
+    static final String LOGIN_PATH = "/crx/packmgr/j_security_check";
+
+    private static final AsyncCompletionHandler<List<Cookie>> LOGIN_COOKIES_HANDLER =
+            new AsyncCompletionHandler<List<Cookie>>() {
+                @Override
+                public List<Cookie> onCompleted(Response response) throws Exception {
+                    if (response.getStatusCode() == 405 || response.getStatusCode() == 200) {
+                        return response.getCookies();
+                    }
+                    return null;
+                }
+            };
+
+    private final AsyncHttpClient client;
+    private final String baseUrl;
+    private final long requestTimeout;
+    private final Realm realm;
+    private final List<Cookie> cookies;
+
+    GraniteHttpSession(AsyncHttpClient client, String baseUrl, long requestTimeout, Realm realm,
+                       List<Cookie> cookies) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        this.requestTimeout = requestTimeout;
+        this.realm = realm;
+        this.cookies = cookies;
+    }
+
+    /**
+     * Opens a session for the same server and credentials as an already logged-in client, logging in the same way
+     * the {@link GraniteClientExecutor} logged in the client: with HTTP Signature authentication for SSH keys, with
+     * preemptive basic auth if the global config requests it for the base URL, and otherwise with a form login whose
+     * login token cookies are sent with each request. Like the client, a config without credentials logs in as admin.
+     *
+     * @param client   a client returned by the {@link GraniteClientExecutor}
+     * @param config   the config the client was created with
+     * @param listener a listener for reporting login details
+     * @return a new session
+     * @throws IOException if the client is not backed by an {@link AsyncHttpClient}, or if the login fails
+     */
+    static GraniteHttpSession open(PackageManagerClient client, GraniteClientConfig config, TaskListener listener)
+            throws IOException {
+        if (!(client instanceof AsyncPackageManagerClient)) {
+            throw new IOException("Unsupported package manager client: " + client.getClass().getName());
+        }
+        AsyncHttpClient ahcClient = ((AsyncPackageManagerClient) client).getClient();
+
+        Credentials credentials = config.getCredentials() != null
+                ? config.getCredentials() : config.getGlobalConfig().getDefaultCredentials();
+
+        if (credentials instanceof SSHUserPrivateKey) {
+            SSHUserPrivateKey key = (SSHUserPrivateKey) credentials;
+            SignatureKeyCache.Entry keys = SignatureKeyCache.get(key);
+            if (keys.getKeychain().isEmpty()) {
+                throw new IOException("Failed to read SSH keys for " + key.getUsername());
+            }
+
+            Signer signer = new Signer(keys.getKeychain(), keys.getKeyId());
+            Future<List<Cookie>> fCookies = AsyncUtil.login(ahcClient, signer,
+                    ahcClient.prepareGet(config.getBaseUrl() + "?sling:authRequestLogin=Signature&j_validate=true")
+                            .build(), LOGIN_COOKIES_HANDLER);
+            List<Cookie> cookies = awaitLogin(fCookies, config, "HTTP Signature");
+            if (cookies == null) {
+                throw new IOException("Failed to login to " + config.getBaseUrl() + " as " + key.getUsername());
+            }
+            return new GraniteHttpSession(ahcClient, config.getBaseUrl(), config.getRequestTimeout(), null,
+                    Collections.unmodifiableList(cookies));
+        }
+
+        String username = "admin";
+        String password = "admin";
+        if (credentials instanceof UsernamePasswordCredentials) {
+            username = ((UsernamePasswordCredentials) credentials).getUsername();
+            password = ((UsernamePasswordCredentials) credentials).getPassword().getPlainText();
+        } else {
+            listener.getLogger().printf("[ALERT] No credentials are configured for %s. Logging in as admin.%n",
+                    config.getBaseUrl());
+        }
+
+        if (GraniteClientExecutor.isPreemptLogin(config, listener)) {
+            Realm realm = new Realm.RealmBuilder()
+                    .setPrincipal(username)
+                    .setPassword(password)
+                    .setUsePreemptiveAuth(true)
+                    .setScheme(Realm.AuthScheme.BASIC)
+                    .build();
+            return new GraniteHttpSession(ahcClient, config.getBaseUrl(), config.getRequestTimeout(), realm,
+                    Collections.<Cookie>emptyList());
+        }
+
+        Future<List<Cookie>> fCookies = ahcClient.preparePost(config.getBaseUrl() + LOGIN_PATH)
+                .addFormParam("j_username", username)
+                .addFormParam("j_password", password)
+                .addFormParam("j_validate", "true")
+                .addFormParam("_charset_", "utf-8")
+                .execute(LOGIN_COOKIES_HANDLER);
+        List<Cookie> cookies = awaitLogin(fCookies, config, "form");
+        if (cookies == null) {
+            throw new IOException("Failed to login to " + config.getBaseUrl() + " as " + username);
+        }
+        return new GraniteHttpSession(ahcClient, config.getBaseUrl(), config.getRequestTimeout(), null,
+                Collections.unmodifiableList(cookies));
+    }
+
+    private static List<Cookie> awaitLogin(Future<List<Cookie>> fCookies, GraniteClientConfig config, String scheme)
+            throws IOException {
+        try {
+            if (config.getServiceTimeout() > 0) {
+                return fCookies.get(config.getServiceTimeout(), TimeUnit.MILLISECONDS);
+            } else {
+                return fCookies.get();
+            }
+        } catch (Exception e) {
+            throw new IOException("Failed to login using " + scheme + " authentication.", e);
+        }
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Prepares an authenticated GET request.
+     *
+     * @param path an absolute, already encoded path on the server, which may include a query string
+     * @return a request builder
+     */
+    AsyncHttpClient.BoundRequestBuilder prepareGet(String path) {
+        return authenticate(client.prepareGet(baseUrl + path));
+    }
+
+    /**
+     * Prepares an authenticated POST request.
+     *
+     * @param path an absolute, already encoded path on the server
+     * @return a request builder
+     */
+    AsyncHttpClient.BoundRequestBuilder preparePost(String path) {
+        return authenticate(client.preparePost(baseUrl + path));
+    }
+
+    private AsyncHttpClient.BoundRequestBuilder authenticate(AsyncHttpClient.BoundRequestBuilder builder) {
+        if (requestTimeout > 0) {
+            builder.setRequestTimeout((int) requestTimeout);
+        }
+        if (realm != null) {
+            builder.setRealm(realm);
+        }
+        for (Cookie cookie : cookies) {
+            builder.addCookie(cookie);
+        }
+        return builder;
+    }
+
+    /**
+     * Executes a GET request and waits for the complete response.
+     *
+     * @param path an absolute, already encoded path on the server, which may include a query string
+     * @return the response
+     * @throws IOException if the request fails
+     */
+    Response get(String path) throws IOException {
+        try {
+            return prepareGet(path).execute().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + path, e);
+        } catch (Exception e) {
+            throw new IOException("Request failed: " + path, e);
+        }
+    }
+
+    /**
+     * Executes a GET request which is expected to return a JSON object.
+     *
+     * @param path an absolute, already encoded path on the server, which may include a query string
+     * @return the parsed JSON object
+     * @throws IOException if the request fails, does not return 200, or does not return a JSON object
+     */
+    JSONObject getJson(String path) throws IOException {
+        Response response = get(path);
+        if (response.getStatusCode() != 200) {
+            throw new IOException("Unexpected response for " + path + ": " + response.getStatusCode() + " "
+                    + response.getStatusText());
+        }
+        try {
+            return JSONObject.fromObject(response.getResponseBody("UTF-8"));
+        } catch (JSONException e) {
+            throw new IOException("Failed to parse JSON response for " + path, e);
+        }
+    }
+
+    /**
+     * Encodes each segment of a repository path for use in a request URL.
+     *
+     * @param path an unencoded repository path, like a package installation path
+     * @return the encoded path
+     */
+    static String encodePath(String path) {
+        StringBuilder encoded = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                encoded.append('/').append(encodeParam(segment));
+            }
+        }
+        return encoded.length() > 0 ? encoded.toString() : "/";
+    }
+
+    /**
+     * Encodes a query parameter value.
+     *
+     * @param value the unencoded value
+     * @return the encoded value
+     */
+    static String encodeParam(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("UTF-8 is not supported");
+        }
+    }
+}
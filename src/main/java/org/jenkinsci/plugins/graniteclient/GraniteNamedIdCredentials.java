@@ -73,8 +73,25 @@ abstract class GraniteNamedIdCredentials implements IdCredentials {
 
     private static final long serialVersionUID = -7611025520557823267L;
 
+    private static final CredentialsCache.Loader LOADER = new CredentialsCache.Loader() {
+        public Credentials load(String credentialsId) {
+            return findCredentialsById(credentialsId);
+        }
+    };
+
+    /**
+     * Returns the global system credentials with the given ID, from the {@link CredentialsCache} when possible.
+     */
     @CheckForNull
     public static Credentials getCredentialsById(String credentialsId) {
+        if (sanityCheck() && StringUtils.isNotBlank(credentialsId)) {
+            return CredentialsCache.get(credentialsId, LOADER);
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private static Credentials findCredentialsById(String credentialsId) {
         if (sanityCheck()) {
             if (StringUtils.isNotBlank(credentialsId)) {
                 CredentialsMatcher matcher = new CredentialsIdMatcher(credentialsId);
@@ -301,7 +318,17 @@ abstract class GraniteNamedIdCredentials implements IdCredentials {
         }
     }
 
+    /**
+     * Returns the decoded keys of the credentials, from the {@link SignatureKeyCache} when possible.
+     */
     public static Keychain getKeychainFromCredentials(@CheckForNull SSHUserPrivateKey creds) {
+        if (creds == null) {
+            return new DefaultKeychain(new ArrayList<Key>());
+        }
+        return SignatureKeyCache.get(creds).getKeychain();
+    }
+
+    static Keychain decodeKeychain(@CheckForNull SSHUserPrivateKey creds) {
         List<Key> keys = new ArrayList<>();
         if (creds == null) {
             return new DefaultKeychain(keys);
@@ -0,0 +1,93 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.ning.http.client.Response;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+
+/**
+ * Implementation of {@link hudson.FilePath.FileCallable} used by the {@link DeployPackagesBuilder} to check the
+ * health of an instance after packages are deployed to it, by waiting for the package manager service and then
+ * requesting a path which must respond with a 2xx status.
+ */
+public final class HealthProbeCallable extends GraniteClientFileCallable<Result> {
+
+    private static final long serialVersionUID = 2739167415902771655L;
+
+    private final GraniteClientConfig clientConfig;
+    private final TaskListener listener;
+    private final String path;
+
+    public HealthProbeCallable(GraniteClientConfig clientConfig, TaskListener listener, String path) {
+        this.clientConfig = clientConfig;
+        this.listener = listener;
+        this.path = path.startsWith("/") ? path : "/" + path;
+    }
+
+    private class Execution implements PackageManagerClientCallable<Result> {
+        public Result doExecute(PackageManagerClient client) throws Exception {
+            client.setRequestTimeout(clientConfig.getRequestTimeout());
+            client.setServiceTimeout(clientConfig.getServiceTimeout());
+
+            if (!client.waitForService()) {
+                listener.fatalError("Health check failed: package manager service on %s is not ready.",
+                        clientConfig.getBaseUrl());
+                return Result.FAILURE;
+            }
+
+            GraniteHttpSession session = GraniteHttpSession.open(client, clientConfig, listener);
+            long start = System.currentTimeMillis();
+            Response response = session.get(path);
+            int status = response.getStatusCode();
+            if (status >= 200 && status < 300) {
+                listener.getLogger().printf("Health check passed: %s%s returned %d in %d ms.%n",
+                        clientConfig.getBaseUrl(), path, status, System.currentTimeMillis() - start);
+                return Result.SUCCESS;
+            }
+            listener.fatalError("Health check failed: %s%s returned %d %s", clientConfig.getBaseUrl(), path,
+                    status, response.getStatusText());
+            return Result.FAILURE;
+        }
+    }
+
+    public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        try {
+            return GraniteClientExecutor.execute(new Execution(), clientConfig, listener);
+        } catch (Exception e) {
+            e.printStackTrace(listener.fatalError("Health check failed for %s: %s", clientConfig.getBaseUrl(),
+                    e.getMessage()));
+            return Result.FAILURE;
+        }
+    }
+}
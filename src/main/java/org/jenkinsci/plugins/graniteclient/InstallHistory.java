@@ -0,0 +1,261 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+import net.adamcin.granite.client.packman.PackId;
+
+/**
+ * Records how long packages took to deploy to each instance, persisted on the master, so that later deployments can
+ * be ordered by their expected duration. Durations are kept per instance and package group and name, as a moving
+ * average over recent deployments. For packages without a recorded duration, the duration is estimated from their
+ * size and the throughput recorded for the instance. Also records the rate at which each instance installs nodes,
+ * for choosing the autosave threshold of later installs, and how long packages take to leave the replication queues
+ * of each instance.
+ */
+final class InstallHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(InstallHistory.class.getName());
+
+    static final int MAX_RECORDS = 4096;
+
+    /**
+     * The weight of the latest deployment in the moving averages
+     */
+    static final double WEIGHT = 0.5;
+
+    private static InstallHistory instance;
+
+    private final Map<String, Record> packages = new HashMap<String, Record>();
+    private final Map<String, Record> instances = new HashMap<String, Record>();
+    private final Map<String, Record> installRates = new HashMap<String, Record>();
+    private final Map<String, Record> replicationLatencies = new HashMap<String, Record>();
+    private transient XmlFile file;
+    private transient boolean dirty;
+
+    InstallHistory() {
+    }
+
+    /**
+     * @return the history of this master, loaded on first use
+     */
+    static synchronized InstallHistory get() {
+        if (instance == null) {
+            InstallHistory history = new InstallHistory();
+            history.file = new XmlFile(Jenkins.XSTREAM2,
+                    new File(Jenkins.getActiveInstance().getRootDir(), InstallHistory.class.getName() + ".xml"));
+            if (history.file.exists()) {
+                try {
+                    history.file.unmarshal(history);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load package install history", e);
+                }
+            }
+            instance = history;
+        }
+        return instance;
+    }
+
+    /**
+     * A moving average of the duration and size of deployments. For install rates, the size is the number of nodes
+     * installed rather than bytes.
+     */
+    static final class Record {
+        long durationMs;
+        long bytes;
+        long updated;
+
+        Record(long durationMs, long bytes, long updated) {
+            this.durationMs = durationMs;
+            this.bytes = bytes;
+            this.updated = updated;
+        }
+
+        void add(long durationMs, long bytes, long updated) {
+            this.durationMs = Math.round(WEIGHT * durationMs + (1 - WEIGHT) * this.durationMs);
+            this.bytes = Math.round(WEIGHT * bytes + (1 - WEIGHT) * this.bytes);
+            this.updated = updated;
+        }
+    }
+
+    static String getKey(String baseUrl, PackId packId) {
+        return baseUrl + "|" + packId.getGroup() + ":" + packId.getName();
+    }
+
+    /**
+     * Records a successful deployment.
+     *
+     * @param baseUrl    the instance
+     * @param packId     the package
+     * @param bytes      the size of the package file
+     * @param durationMs how long the deployment took
+     */
+    synchronized void record(String baseUrl, PackId packId, long bytes, long durationMs) {
+        long now = System.currentTimeMillis();
+        add(packages, getKey(baseUrl, packId), bytes, durationMs, now);
+        add(instances, baseUrl, bytes, durationMs, now);
+        evict(packages);
+        evict(instances);
+        dirty = true;
+    }
+
+    /**
+     * Records the number of nodes installed by a successful deployment.
+     *
+     * @param baseUrl    the instance
+     * @param nodes      the number of nodes in the package
+     * @param durationMs how long the deployment took
+     */
+    synchronized void recordInstall(String baseUrl, long nodes, long durationMs) {
+        if (nodes <= 0L || durationMs <= 0L) {
+            return;
+        }
+        add(installRates, baseUrl, nodes, durationMs, System.currentTimeMillis());
+        evict(installRates);
+        dirty = true;
+    }
+
+    /**
+     * @param baseUrl the instance
+     * @return the rate at which the instance installed nodes in recent deployments, or 0 if none are recorded
+     */
+    synchronized double getNodesPerSecond(String baseUrl) {
+        Record record = installRates.get(baseUrl);
+        if (record == null || record.durationMs <= 0L) {
+            return 0;
+        }
+        return record.bytes * 1000.0 / record.durationMs;
+    }
+
+    /**
+     * Records how long a replicated package took to leave the replication queues of an author instance.
+     *
+     * @param baseUrl    the instance
+     * @param durationMs the time from replicating the package until the queues drained
+     */
+    synchronized void recordReplication(String baseUrl, long durationMs) {
+        if (durationMs < 0L) {
+            return;
+        }
+        add(replicationLatencies, baseUrl, 0L, durationMs, System.currentTimeMillis());
+        evict(replicationLatencies);
+        dirty = true;
+    }
+
+    /**
+     * @param baseUrl the instance
+     * @return the moving average of the replication latency of the instance, or -1 if none is recorded
+     */
+    synchronized long getReplicationMillis(String baseUrl) {
+        Record record = replicationLatencies.get(baseUrl);
+        return record == null ? -1L : record.durationMs;
+    }
+
+    private static void add(Map<String, Record> records, String key, long bytes, long durationMs, long now) {
+        Record record = records.get(key);
+        if (record == null) {
+            records.put(key, new Record(durationMs, bytes, now));
+        } else {
+            record.add(durationMs, bytes, now);
+        }
+    }
+
+    private static void evict(Map<String, Record> records) {
+        if (records.size() <= MAX_RECORDS) {
+            return;
+        }
+        List<Map.Entry<String, Record>> entries = new ArrayList<Map.Entry<String, Record>>(records.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Record>>() {
+            public int compare(Map.Entry<String, Record> left, Map.Entry<String, Record> right) {
+                return Long.compare(left.getValue().updated, right.getValue().updated);
+            }
+        });
+        for (Map.Entry<String, Record> entry : entries.subList(0, records.size() - MAX_RECORDS)) {
+            records.remove(entry.getKey());
+        }
+    }
+
+    /**
+     * Estimates how long a package will take to deploy to an instance: its recorded duration if there is one,
+     * otherwise its size divided by the throughput recorded for the instance, or by the average throughput of all
+     * instances.
+     *
+     * @param baseUrl the instance
+     * @param packId  the package
+     * @param bytes   the size of the package file
+     * @return the estimated duration in milliseconds, or the size if nothing is recorded yet
+     */
+    synchronized long estimate(String baseUrl, PackId packId, long bytes) {
+        Record record = packages.get(getKey(baseUrl, packId));
+        if (record != null) {
+            return record.durationMs;
+        }
+
+        Record throughput = instances.get(baseUrl);
+        if (throughput == null) {
+            long totalDuration = 0L;
+            long totalBytes = 0L;
+            for (Record instanceRecord : instances.values()) {
+                totalDuration += instanceRecord.durationMs;
+                totalBytes += instanceRecord.bytes;
+            }
+            throughput = totalBytes > 0L ? new Record(totalDuration, totalBytes, 0L) : null;
+        }
+        if (throughput == null || throughput.bytes <= 0L) {
+            return bytes;
+        }
+        return Math.round((double) bytes * throughput.durationMs / throughput.bytes);
+    }
+
+    /**
+     * Writes the history if anything was recorded since it was last written.
+     */
+    synchronized void save() {
+        if (!dirty || file == null) {
+            return;
+        }
+        try {
+            file.write(this);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save package install history", e);
+        }
+    }
+}
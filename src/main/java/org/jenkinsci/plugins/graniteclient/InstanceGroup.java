@@ -0,0 +1,284 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxModel;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * A named group of instances configured globally in the {@link GraniteAHCFactory}. Jobs reference a group in their
+ * Base URLs as {@code @name}, which expands to the base URLs of the group, and deployments to the group are limited
+ * to a number of concurrent instances per group and per host.
+ */
+public final class InstanceGroup extends AbstractDescribableImpl<InstanceGroup> implements Serializable {
+
+    private static final long serialVersionUID = 4083915736651520237L;
+
+    static final String REFERENCE_PREFIX = "@";
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+    private final String name;
+    private final String baseUrls;
+    private String credentialsId = null;
+    private int maxConcurrent = 0;
+    private int maxConcurrentPerHost = 0;
+
+    @DataBoundConstructor
+    public InstanceGroup(String name, String baseUrls) {
+        this.name = name == null ? "" : name.trim();
+        this.baseUrls = baseUrls;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBaseUrls() {
+        return baseUrls == null ? "" : baseUrls.trim();
+    }
+
+    public String getCredentialsId() {
+        return credentialsId == null ? "" : credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        if (StringUtils.isBlank(credentialsId)) {
+            this.credentialsId = null;
+        } else {
+            this.credentialsId = credentialsId;
+        }
+    }
+
+    /**
+     * @return the maximum number of instances of this group deployed to at the same time, or 0 for no limit
+     */
+    public int getMaxConcurrent() {
+        return Math.max(0, maxConcurrent);
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * @return the maximum number of instances on one host deployed to at the same time, or 0 for no limit
+     */
+    public int getMaxConcurrentPerHost() {
+        return Math.max(0, maxConcurrentPerHost);
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPerHost(int maxConcurrentPerHost) {
+        this.maxConcurrentPerHost = maxConcurrentPerHost;
+    }
+
+    List<String> listBaseUrls() {
+        return BaseUrlUtil.splitByNewline(getBaseUrls());
+    }
+
+    static boolean isValidName(String name) {
+        return name != null && NAME_PATTERN.matcher(name).matches();
+    }
+
+    /**
+     * Returns the host an instance runs on, which is shared by instances listening on different ports of one server.
+     *
+     * @param baseUrl the base URL of the instance
+     * @return the lower case host name, or the base URL itself if it has no host
+     */
+    static String getHost(String baseUrl) {
+        try {
+            String host = new URI(baseUrl.trim()).getHost();
+            if (host != null) {
+                return host.toLowerCase();
+            }
+        } catch (URISyntaxException ignored) {
+            // fall through
+        }
+        return baseUrl.trim();
+    }
+
+    /**
+     * Expands the {@code @name} references to instance groups in a list of base URLs. Base URLs listed more than once
+     * are only deployed to once, as a member of the first group that lists them. Base URLs which are not listed by a
+     * group reference are not throttled at all, even when a group lists other instances on the same host.
+     *
+     * @param baseUrls the base URLs and group references, in order
+     * @param groups   the configured instance groups
+     * @return the instances, in order
+     * @throws AbortException if a reference names a group which is not configured
+     */
+    static List<Member> resolve(List<String> baseUrls, List<InstanceGroup> groups) throws AbortException {
+        Map<String, InstanceGroup> groupsByName = new LinkedHashMap<String, InstanceGroup>();
+        for (InstanceGroup group : groups) {
+            if (!groupsByName.containsKey(group.getName())) {
+                groupsByName.put(group.getName(), group);
+            }
+        }
+
+        Map<String, Integer> hostLimits = getHostLimits(groups);
+        Map<String, Member> members = new LinkedHashMap<String, Member>();
+        for (String line : baseUrls) {
+            String value = line.trim();
+            if (value.startsWith(REFERENCE_PREFIX)) {
+                String name = value.substring(REFERENCE_PREFIX.length()).trim();
+                InstanceGroup group = groupsByName.get(name);
+                if (group == null) {
+                    throw new AbortException("No instance group is configured with the name " + name);
+                }
+                for (String baseUrl : group.listBaseUrls()) {
+                    if (!members.containsKey(baseUrl.trim())) {
+                        Integer hostLimit = hostLimits.get(getHost(baseUrl));
+                        members.put(baseUrl.trim(), new Member(baseUrl.trim(), group,
+                                hostLimit == null ? 0 : hostLimit));
+                    }
+                }
+            } else if (!value.isEmpty() && !members.containsKey(value)) {
+                members.put(value, new Member(value, null, 0));
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<Member>(members.values()));
+    }
+
+    /**
+     * Resolves one limit per host, since groups listing instances on the same host share the host's permits. The
+     * smallest limit of the groups listing an instance on a host applies to all instances on that host.
+     *
+     * @param groups the configured instance groups
+     * @return the limit of each host with a limit
+     */
+    static Map<String, Integer> getHostLimits(List<InstanceGroup> groups) {
+        Map<String, Integer> hostLimits = new LinkedHashMap<String, Integer>();
+        for (InstanceGroup group : groups) {
+            if (group.getMaxConcurrentPerHost() > 0) {
+                for (String baseUrl : group.listBaseUrls()) {
+                    String host = getHost(baseUrl);
+                    Integer limit = hostLimits.get(host);
+                    if (limit == null || group.getMaxConcurrentPerHost() < limit) {
+                        hostLimits.put(host, group.getMaxConcurrentPerHost());
+                    }
+                }
+            }
+        }
+        return hostLimits;
+    }
+
+    /**
+     * An instance to deploy to, with the group it was listed by, if any.
+     */
+    static final class Member {
+        private final String baseUrl;
+        private final InstanceGroup group;
+        private final int maxConcurrentPerHost;
+
+        Member(String baseUrl, InstanceGroup group, int maxConcurrentPerHost) {
+            this.baseUrl = baseUrl;
+            this.group = group;
+            this.maxConcurrentPerHost = maxConcurrentPerHost;
+        }
+
+        String getBaseUrl() {
+            return baseUrl;
+        }
+
+        InstanceGroup getGroup() {
+            return group;
+        }
+
+        /**
+         * @return the maximum number of instances on the host of this instance deployed to at the same time, or 0
+         * for no limit
+         */
+        int getMaxConcurrentPerHost() {
+            return maxConcurrentPerHost;
+        }
+
+        /**
+         * @param credentialsId the credentials selected by the job, which take precedence over those of the group
+         * @return the credentials to log in to the instance with, or null to use the default credentials
+         */
+        String getCredentialsId(String credentialsId) {
+            if (StringUtils.isNotBlank(credentialsId)) {
+                return credentialsId;
+            } else if (group != null && StringUtils.isNotBlank(group.getCredentialsId())) {
+                return group.getCredentialsId();
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return group != null ? baseUrl + " (" + REFERENCE_PREFIX + group.getName() + ")" : baseUrl;
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<InstanceGroup> {
+
+        @Override
+        public String getDisplayName() {
+            return "Instance Group";
+        }
+
+        public FormValidation doCheckName(@QueryParameter String value) {
+            if (!isValidName(value == null ? null : value.trim())) {
+                return FormValidation.error("Name must start with a letter or digit and contain only letters, "
+                        + "digits, '.', '_', and '-'.");
+            }
+            return FormValidation.ok();
+        }
+
+        @RequirePOST
+        public AbstractIdCredentialsListBoxModel doFillCredentialsIdItems(@QueryParameter("value") String value) {
+            Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+            return GraniteCredentialsListBoxModel.fillItems(value, null);
+        }
+    }
+}
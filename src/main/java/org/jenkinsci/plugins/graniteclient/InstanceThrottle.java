@@ -0,0 +1,148 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import hudson.model.TaskListener;
+
+/**
+ * Limits how many instances of an {@link InstanceGroup}, and how many instances on one host, are deployed to at the
+ * same time across all builds. Permits are held on the master for as long as an instance is being deployed to. All
+ * groups share one semaphore per host, limited to the smallest limit of the groups on that host. Instances which are
+ * not listed by a group reference are not throttled.
+ */
+final class InstanceThrottle {
+
+    private static final ConcurrentMap<String, LimitSemaphore> SEMAPHORES =
+            new ConcurrentHashMap<String, LimitSemaphore>();
+
+    private InstanceThrottle() {
+        // no instances
+    }
+
+    /**
+     * Waits until the instance may be deployed to. The group permit is always acquired before the host permit, so
+     * builds waiting for each other can't deadlock.
+     *
+     * @param member   the instance
+     * @param listener the build listener, told when the build has to wait
+     * @return the permit to release when done with the instance
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static Permit acquire(InstanceGroup.Member member, TaskListener listener) throws InterruptedException {
+        InstanceGroup group = member.getGroup();
+        if (group == null) {
+            return new Permit(null, null);
+        }
+
+        Semaphore groupSemaphore = null;
+        if (group.getMaxConcurrent() > 0) {
+            groupSemaphore = getSemaphore("group/" + group.getName(), group.getMaxConcurrent());
+            acquire(groupSemaphore, listener, "instance group " + InstanceGroup.REFERENCE_PREFIX + group.getName());
+        }
+
+        Semaphore hostSemaphore = null;
+        if (member.getMaxConcurrentPerHost() > 0) {
+            String host = InstanceGroup.getHost(member.getBaseUrl());
+            hostSemaphore = getSemaphore("host/" + host, member.getMaxConcurrentPerHost());
+            try {
+                acquire(hostSemaphore, listener, "host " + host);
+            } catch (InterruptedException e) {
+                if (groupSemaphore != null) {
+                    groupSemaphore.release();
+                }
+                throw e;
+            }
+        }
+        return new Permit(groupSemaphore, hostSemaphore);
+    }
+
+    private static void acquire(Semaphore semaphore, TaskListener listener, String description)
+            throws InterruptedException {
+        if (!semaphore.tryAcquire()) {
+            listener.getLogger().printf("Waiting for another deployment to %s to finish.%n", description);
+            semaphore.acquire();
+        }
+    }
+
+    /**
+     * A semaphore is replaced when its limit changes, so a changed limit takes effect for new deployments while the
+     * deployments already running release their permits to the old semaphore.
+     */
+    private static Semaphore getSemaphore(String key, int permits) {
+        while (true) {
+            LimitSemaphore semaphore = SEMAPHORES.get(key);
+            if (semaphore != null && semaphore.limit == permits) {
+                return semaphore;
+            }
+            LimitSemaphore created = new LimitSemaphore(permits);
+            if (semaphore == null ? SEMAPHORES.putIfAbsent(key, created) == null
+                    : SEMAPHORES.replace(key, semaphore, created)) {
+                return created;
+            }
+        }
+    }
+
+    private static final class LimitSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private final int limit;
+
+        private LimitSemaphore(int limit) {
+            super(limit, true);
+            this.limit = limit;
+        }
+    }
+
+    static final class Permit {
+        private final Semaphore groupSemaphore;
+        private final Semaphore hostSemaphore;
+        private boolean released;
+
+        private Permit(Semaphore groupSemaphore, Semaphore hostSemaphore) {
+            this.groupSemaphore = groupSemaphore;
+            this.hostSemaphore = hostSemaphore;
+        }
+
+        synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (hostSemaphore != null) {
+                hostSemaphore.release();
+            }
+            if (groupSemaphore != null) {
+                groupSemaphore.release();
+            }
+        }
+    }
+}
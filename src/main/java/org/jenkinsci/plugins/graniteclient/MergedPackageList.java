@@ -0,0 +1,134 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.adamcin.granite.client.packman.ListResult;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.PackIdFilter;
+
+/**
+ * The package lists of several instances merged into one list without duplicates, recording which instances
+ * list each package. Instances which failed to respond are ignored when deciding whether a package is listed on all
+ * instances.
+ */
+final class MergedPackageList {
+
+    private final List<String> baseUrls;
+    private final BitSet available;
+    private final Map<PackId, BitSet> presence;
+    private final Map<String, String> failures;
+
+    /**
+     * @param baseUrls            the instance base URLs
+     * @param results             the list results of each instance, in the same order as the base URLs, or null for
+     *                            an instance which failed to respond
+     * @param failures            the reason each unavailable instance failed to respond, keyed by base URL
+     * @param excludeNotInstalled skip packages which are not installed on an instance
+     * @param excludeModified     skip packages which have been modified on an instance
+     * @param packIdFilter        the filter that packages must match
+     */
+    MergedPackageList(List<String> baseUrls, List<List<ListResult>> results, Map<String, String> failures,
+                      boolean excludeNotInstalled, boolean excludeModified, PackIdFilter packIdFilter) {
+        this.baseUrls = Collections.unmodifiableList(new ArrayList<String>(baseUrls));
+        this.available = new BitSet(baseUrls.size());
+        this.presence = new LinkedHashMap<PackId, BitSet>();
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<String, String>(failures));
+
+        for (int i = 0; i < results.size(); i++) {
+            List<ListResult> instanceResults = results.get(i);
+            if (instanceResults == null) {
+                continue;
+            }
+            available.set(i);
+            for (ListResult result : instanceResults) {
+                if ((!excludeNotInstalled || result.isHasSnapshot())
+                        && (!excludeModified || !result.isNeedsRewrap())
+                        && packIdFilter.includes(result.getPackId())) {
+                    BitSet instances = presence.get(result.getPackId());
+                    if (instances == null) {
+                        instances = new BitSet(baseUrls.size());
+                        presence.put(result.getPackId(), instances);
+                    }
+                    instances.set(i);
+                }
+            }
+        }
+    }
+
+    List<String> getBaseUrls() {
+        return baseUrls;
+    }
+
+    /**
+     * @return the reason each unavailable instance failed to respond, keyed by base URL
+     */
+    Map<String, String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns the merged packages, in the order they were first listed.
+     *
+     * @param requireAll true to include only packages listed on every available instance, false to include packages
+     *                   listed on any instance
+     * @return the merged package IDs
+     */
+    List<PackId> getPackIds(boolean requireAll) {
+        List<PackId> packIds = new ArrayList<PackId>();
+        int availableCount = available.cardinality();
+        for (Map.Entry<PackId, BitSet> entry : presence.entrySet()) {
+            if (!requireAll || entry.getValue().cardinality() == availableCount) {
+                packIds.add(entry.getKey());
+            }
+        }
+        return packIds;
+    }
+
+    /**
+     * @param packId the package ID
+     * @return the base URLs of the instances which list the package
+     */
+    List<String> getInstances(PackId packId) {
+        BitSet instances = presence.get(packId);
+        if (instances == null) {
+            return Collections.emptyList();
+        }
+        List<String> urls = new ArrayList<String>(instances.cardinality());
+        for (int i = instances.nextSetBit(0); i >= 0; i = instances.nextSetBit(i + 1)) {
+            urls.add(baseUrls.get(i));
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import hudson.Util;
+import net.adamcin.granite.client.packman.PackId;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * An agent-local cache of downloaded packages. Entries are keyed by a digest of the package ID and the server's
+ * last modified date and size for the package, so an entry only matches while the package on the server is
+ * unchanged. Cached packages are hard-linked into the target directory when the file system allows it, and copied
+ * otherwise. Entries are left writable, because a read-only entry would make every file linked to it read-only as
+ * well, including the download it was stored from. A linked package should therefore be replaced rather than
+ * modified in place, since writing to it also modifies the entry. The total size of the cache is capped by evicting
+ * the least recently used entries, where the last use of an entry is the modification time of its digest file,
+ * which is never linked.
+ */
+final class PackageCache {
+
+    static final String LIST_PATH = "/crx/packmgr/list.jsp";
+
+    private static final String ENTRY_SUFFIX = ".zip";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Guards eviction for cache directories shared by concurrent builds on the same agent.
+     */
+    private static final ConcurrentMap<File, Object> LOCKS = new ConcurrentHashMap<File, Object>();
+
+    private final File directory;
+    private final long maxBytes;
+
+    PackageCache(File directory, long maxBytes) {
+        this.directory = directory.getAbsoluteFile();
+        this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Lists the packages on the server with a single request, and returns a cache key for each package that has
+     * been built.
+     *
+     * @param session the session to query
+     * @return a map of package IDs to cache keys
+     * @throws IOException if the list request fails
+     */
+    static Map<PackId, String> listCacheKeys(GraniteHttpSession session) throws IOException {
+        JSONObject json = session.getJson(LIST_PATH);
+        JSONArray results = json.optJSONArray("results");
+        if (results == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<PackId, String> keys = new HashMap<PackId, String>();
+        for (int i = 0; i < results.size(); i++) {
+            JSONObject result = results.optJSONObject(i);
+            if (result == null) {
+                continue;
+            }
+            PackId packId = PackId.parsePid(result.optString("pid", ""));
+            long size = result.optLong("size", -1L);
+            if (packId != null && size > 0) {
+                keys.put(packId, getKey(packId, result.optLong("lastModified", -1L),
+                        result.optLong("lastWrapped", -1L), size));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Creates a cache key for a package. The last wrapped date is included because rebuilding a package replaces
+     * its content without always updating its last modified date.
+     */
+    static String getKey(PackId packId, long lastModified, long lastWrapped, long size) {
+        String identity = packId.toString() + "|" + lastModified + "|" + lastWrapped + "|" + size;
+        return Util.toHexString(PackageDownloader.newSha256().digest(identity.getBytes(UTF_8)));
+    }
+
+    /**
+     * Restores a cached package into the target directory, and marks the entry as recently used.
+     *
+     * @param key         the cache key
+     * @param packId      the cached package
+     * @param toDirectory the target directory
+     * @return the restored file, or null if the package is not cached
+     * @throws IOException if the cached package could not be linked or copied
+     */
+    File restore(String key, PackId packId, File toDirectory) throws IOException {
+        File entry = getEntryFile(key);
+        File entrySidecar = PackageDownloader.getSidecarFile(entry);
+        if (!entry.isFile() || !entrySidecar.isFile()) {
+            return null;
+        }
+        String sha256 = FileUtils.readFileToString(entrySidecar, UTF_8).trim();
+        touch(entrySidecar);
+
+        FileUtils.forceMkdir(toDirectory);
+        File target = new File(toDirectory, PackageDownloader.getFileName(packId));
+        File partFile = File.createTempFile("." + target.getName() + "-", ".part", toDirectory);
+        try {
+            Files.delete(partFile.toPath());
+            linkOrCopy(entry, partFile);
+            PackageDownloader.moveIntoPlace(partFile, target);
+        } finally {
+            FileUtils.deleteQuietly(partFile);
+        }
+        FileUtils.writeStringToFile(PackageDownloader.getSidecarFile(target),
+                sha256 + "  " + target.getName() + "\n", UTF_8);
+        return target;
+    }
+
+    /**
+     * Adds a downloaded package to the cache, then evicts the least recently used entries until the cache fits
+     * within its size cap.
+     *
+     * @param key      the cache key
+     * @param download the verified download
+     * @throws IOException if the package could not be linked or copied into the cache
+     */
+    void store(String key, PackageDownloader.Download download) throws IOException {
+        FileUtils.forceMkdir(directory);
+        File entry = getEntryFile(key);
+        File partFile = File.createTempFile("." + entry.getName() + "-", ".part", directory);
+        try {
+            Files.delete(partFile.toPath());
+            linkOrCopy(download.getFile(), partFile);
+            // write the digest first, because an entry is only used when both files exist
+            FileUtils.writeStringToFile(PackageDownloader.getSidecarFile(entry), download.getSha256() + "\n", UTF_8);
+            PackageDownloader.moveIntoPlace(partFile, entry);
+        } finally {
+            FileUtils.deleteQuietly(partFile);
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size of the cache is within the cap. The most
+     * recently used entry is always kept, even if it exceeds the cap by itself.
+     *
+     * @return the number of evicted entries
+     */
+    int evict() {
+        Object lock = LOCKS.putIfAbsent(directory, new Object());
+        if (lock == null) {
+            lock = LOCKS.get(directory);
+        }
+        synchronized (lock) {
+            File[] entries = directory.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    return file.isFile() && !file.getName().startsWith(".")
+                            && file.getName().endsWith(ENTRY_SUFFIX);
+                }
+            });
+            if (entries == null) {
+                return 0;
+            }
+
+            long total = 0L;
+            for (File entry : entries) {
+                total += entry.length();
+            }
+
+            Arrays.sort(entries, new Comparator<File>() {
+                public int compare(File left, File right) {
+                    return Long.compare(getLastUsed(left), getLastUsed(right));
+                }
+            });
+
+            int evicted = 0;
+            for (int i = 0; i < entries.length - 1 && total > maxBytes; i++) {
+                long length = entries[i].length();
+                FileUtils.deleteQuietly(PackageDownloader.getSidecarFile(entries[i]));
+                if (entries[i].delete()) {
+                    total -= length;
+                    evicted++;
+                }
+            }
+            return evicted;
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(directory, key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * The package file of an entry may be linked into any number of target directories, so its modification time is
+     * left alone, and the last use is tracked on the digest file instead.
+     */
+    private static void touch(File entrySidecar) {
+        // not fatal if this fails, the entry may just be evicted sooner than necessary
+        entrySidecar.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the last use of the entry, or 0 if its digest file is missing
+     */
+    static long getLastUsed(File entry) {
+        return PackageDownloader.getSidecarFile(entry).lastModified();
+    }
+
+    private static void linkOrCopy(File source, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException e) {
+            FileUtils.copyFile(source, target);
+        } catch (UnsupportedOperationException e) {
+            FileUtils.copyFile(source, target);
+        }
+    }
+}
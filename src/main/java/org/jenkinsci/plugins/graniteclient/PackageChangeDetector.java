@@ -0,0 +1,198 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.WspFilter;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Decides whether a package can be reused without rebuilding it. A package is unchanged when it has been built
+ * before, its filter on the server matches the requested filter, and a bounded query finds no content under the
+ * filter roots which was modified after the package was last built. The query only sees nodes with a modification
+ * date, so deletions and moves are not detected.
+ */
+final class PackageChangeDetector {
+
+    static final String QUERY_PATH = "/bin/querybuilder.json";
+
+    private static final String[] LAST_MODIFIED_PROPERTIES = {"jcr:lastModified", "cq:lastModified"};
+
+    private final GraniteHttpSession session;
+
+    PackageChangeDetector(GraniteHttpSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Checks whether the package built on the server still matches the requested filter and content.
+     *
+     * @param packId    the package to check
+     * @param wspFilter the requested filter, or null if the existing filter will be kept
+     * @return a reason for rebuilding the package, or null if it is unchanged
+     * @throws IOException if the package could not be listed or the content could not be queried
+     */
+    String getRebuildReason(PackId packId, WspFilter wspFilter) throws IOException {
+        JSONObject info = getPackageInfo(packId);
+        if (info == null) {
+            return "the package was not found in the package list";
+        }
+
+        long lastWrapped = info.optLong("lastWrapped", -1L);
+        if (lastWrapped <= 0L || info.optLong("size", -1L) <= 0L) {
+            return "the package has not been built";
+        }
+
+        WspFilter serverFilter = parseServerFilter(info.optJSONArray("filter"));
+        if (wspFilter != null && !toSpec(wspFilter).equals(toSpec(serverFilter))) {
+            return "the requested filter differs from the package filter";
+        }
+
+        WspFilter effectiveFilter = wspFilter != null ? wspFilter : serverFilter;
+        if (effectiveFilter == null || effectiveFilter.getRoots().isEmpty()) {
+            return "the package has no filter roots";
+        }
+
+        for (WspFilter.Root root : effectiveFilter.getRoots()) {
+            String modifiedPath = findModifiedSince(root.getPath(), lastWrapped);
+            if (modifiedPath != null) {
+                return modifiedPath + " was modified after the package was built";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the package definition with a single request.
+     */
+    JSONObject getPackageInfo(PackId packId) throws IOException {
+        JSONObject json = session.getJson(PackageCache.LIST_PATH + "?path="
+                + GraniteHttpSession.encodeParam(packId.getInstallationPath() + ".zip"));
+        JSONArray results = json.optJSONArray("results");
+        if (results != null) {
+            for (int i = 0; i < results.size(); i++) {
+                JSONObject result = results.optJSONObject(i);
+                if (result != null && packId.equals(PackId.parsePid(result.optString("pid", "")))) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queries for a single node under the root with a modification date after the given time.
+     *
+     * @return the path of a modified node, or null if none was found
+     */
+    String findModifiedSince(String rootPath, long since) throws IOException {
+        String lowerBound = formatDate(since);
+        StringBuilder query = new StringBuilder(QUERY_PATH)
+                .append("?path=").append(GraniteHttpSession.encodeParam(rootPath))
+                .append("&group.p.or=true");
+        for (int i = 0; i < LAST_MODIFIED_PROPERTIES.length; i++) {
+            String prefix = "&group." + (i + 1) + "_daterange.";
+            query.append(prefix).append("property=").append(GraniteHttpSession.encodeParam(LAST_MODIFIED_PROPERTIES[i]))
+                    .append(prefix).append("lowerBound=").append(GraniteHttpSession.encodeParam(lowerBound))
+                    .append(prefix).append("lowerOperation=").append(GraniteHttpSession.encodeParam(">"));
+        }
+        query.append("&p.limit=1&p.guessTotal=true&p.hits=selective&p.properties=jcr%3Apath");
+
+        JSONObject json = session.getJson(query.toString());
+        if (!json.optBoolean("success", true)) {
+            throw new IOException("Query failed for " + rootPath);
+        }
+        JSONArray hits = json.optJSONArray("hits");
+        if (hits != null && !hits.isEmpty()) {
+            JSONObject hit = hits.optJSONObject(0);
+            return hit != null ? hit.optString("jcr:path", rootPath) : rootPath;
+        } else if (json.optLong("results", 0L) > 0L) {
+            return rootPath;
+        }
+        return null;
+    }
+
+    /**
+     * Converts the filter returned by the package list into a {@link WspFilter}, by way of the simple spec format.
+     */
+    static WspFilter parseServerFilter(JSONArray filter) {
+        if (filter == null || filter.isEmpty()) {
+            return null;
+        }
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < filter.size(); i++) {
+            JSONObject root = filter.optJSONObject(i);
+            if (root == null || root.optString("root", "").isEmpty()) {
+                continue;
+            }
+            lines.add(root.getString("root"));
+            JSONArray rules = root.optJSONArray("rules");
+            if (rules != null) {
+                for (int j = 0; j < rules.size(); j++) {
+                    JSONObject rule = rules.optJSONObject(j);
+                    if (rule != null) {
+                        lines.add(("exclude".equals(rule.optString("modifier")) ? "-" : "+")
+                                + rule.optString("pattern", ""));
+                    }
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        StringBuilder spec = new StringBuilder();
+        for (String line : lines) {
+            spec.append(line).append('\n');
+        }
+        return WspFilter.parseSimpleSpec(spec.toString());
+    }
+
+    static String toSpec(WspFilter filter) {
+        StringBuilder spec = new StringBuilder();
+        if (filter != null) {
+            for (WspFilter.Root root : filter.getRoots()) {
+                spec.append(root.toSpec()).append('\n');
+            }
+        }
+        return spec.toString();
+    }
+
+    static String formatDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+}
@@ -30,8 +30,10 @@ package org.jenkinsci.plugins.graniteclient;
 import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxModel;
 import hudson.Extension;
 import hudson.model.Item;
+import hudson.model.Job;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
 import hudson.util.FormValidation;
 import net.adamcin.granite.client.packman.ListResponse;
 import net.adamcin.granite.client.packman.ListResult;
@@ -43,16 +45,27 @@ import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Implementation of the "CRX Content Package Choice Parameter" type
@@ -61,6 +74,23 @@ public class PackageChoiceParameterDefinition extends ParameterDefinition {
 
     private static final long serialVersionUID = 2160382112619250912L;
 
+    /**
+     * Default number of seconds that a package list is served from the cache before it is refreshed
+     */
+    public static final long DEFAULT_CACHE_TTL = 60L;
+
+    /**
+     * Default number of seconds to wait for the package lists of all instances
+     */
+    public static final long DEFAULT_LIST_TIMEOUT = 10L;
+
+    /**
+     * The maximum number of package list requests in flight at the same time, across all parameters
+     */
+    static final int LIST_THREADS = 8;
+
+    private static final ExecutorService LIST_POOL = ConcurrencyUtil.newSharedPool("package list", LIST_THREADS);
+
     @Extension
     public static class DescriptorImpl extends ParameterDescriptor {
 
@@ -77,7 +107,7 @@ public class PackageChoiceParameterDefinition extends ParameterDefinition {
                                                @QueryParameter("serviceTimeout") final long serviceTimeout)
                 throws IOException, ServletException {
             context.checkPermission(Item.CONFIGURE);
-            return BaseUrlUtil.testOneConnection(baseUrl, credentialsId, requestTimeout, serviceTimeout);
+            return BaseUrlUtil.testManyConnections(baseUrl, credentialsId, requestTimeout, serviceTimeout);
         }
 
         @RequirePOST
@@ -88,6 +118,32 @@ public class PackageChoiceParameterDefinition extends ParameterDefinition {
             return GraniteCredentialsListBoxModel.fillItems(value, context, baseUrl);
         }
 
+        /**
+         * Serves one page of the package chooser for the named parameter of the job as JSON.
+         */
+        public void doSearch(@AncestorInPath Job<?, ?> job,
+                             @QueryParameter("name") String name,
+                             @QueryParameter("q") String query,
+                             @QueryParameter("page") int page,
+                             StaplerResponse rsp) throws IOException {
+            if (job == null) {
+                rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            job.checkPermission(Item.BUILD);
+
+            ParametersDefinitionProperty property = job.getProperty(ParametersDefinitionProperty.class);
+            ParameterDefinition definition = property != null ? property.getParameterDefinition(name) : null;
+            if (!(definition instanceof PackageChoiceParameterDefinition)) {
+                rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+
+            JSONObject json = ((PackageChoiceParameterDefinition) definition).searchPackages(query, page);
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().print(json.toString());
+        }
+
     }
 
     @Override
@@ -146,27 +202,188 @@ public class PackageChoiceParameterDefinition extends ParameterDefinition {
     }
 
     public List<PackId> getPackageList() {
-        GraniteClientConfig config = getGraniteClientConfig();
+        try {
+            return getIndexedList().index.getPackIds();
+        } catch (Exception e) {
+            return getSelectedPackIds();
+        }
+    }
 
+    /**
+     * Returns one page of the packages matching the query, for the package chooser on the build form.
+     *
+     * @param query the search text
+     * @param page  the zero-based page number
+     * @return the page as JSON, with an error message if the package list could not be loaded from every instance
+     */
+    public JSONObject searchPackages(String query, int page) {
+        JSONObject json = new JSONObject();
+        JSONArray items = new JSONArray();
         try {
-            config.resolveCredentials();
-
-            ListResponse response = GraniteClientExecutor.execute(new Execution(this.query), config);
-
-            List<PackId> packIds = new ArrayList<PackId>();
-            List<ListResult> results = response.getResults();
-            if (results != null) {
-                for (ListResult result : results) {
-                    if ((!excludeNotInstalled || result.isHasSnapshot())
-                            && (!excludeModified || !result.isNeedsRewrap())
-                            && getPackIdFilter().includes(result.getPackId())) {
-                        packIds.add(result.getPackId());
-                    }
-                }
+            IndexedList indexedList = getIndexedList();
+            PackageListIndex.Page results = indexedList.index.search(query, page, (int) getVisibleItemCount());
+            MergedPackageList merged = indexedList.merged;
+            JSONObject presence = new JSONObject();
+            for (PackId packId : results.getPackIds()) {
+                items.add(packId.toString());
+                presence.put(packId.toString(), merged.getInstances(packId));
+            }
+            json.put("page", results.getPage());
+            json.put("pageCount", results.getPageCount());
+            json.put("total", results.getTotal());
+            if (merged.getBaseUrls().size() > 1) {
+                json.put("instanceCount", merged.getBaseUrls().size());
+                json.put("presence", presence);
+            }
+            if (!merged.getFailures().isEmpty()) {
+                json.put("error", "Not listed: " + formatFailures(merged.getFailures()));
             }
-            return Collections.unmodifiableList(packIds);
         } catch (Exception e) {
-            return getSelectedPackIds();
+            for (PackId packId : getSelectedPackIds()) {
+                items.add(packId.toString());
+            }
+            json.put("page", 0);
+            json.put("pageCount", 1);
+            json.put("total", items.size());
+            json.put("error", e.getMessage());
+        }
+        json.put("items", items);
+        return json;
+    }
+
+    private static String formatFailures(Map<String, String> failures) {
+        List<String> messages = new ArrayList<String>();
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            messages.add(failure.getKey() + " (" + failure.getValue() + ")");
+        }
+        return StringUtils.join(messages, ", ");
+    }
+
+    /**
+     * Returns the search index over the merged and filtered package lists of every base URL. The index is rebuilt
+     * only when one of the cached lists changes.
+     */
+    PackageListIndex getPackageIndex() throws Exception {
+        return getIndexedList().index;
+    }
+
+    private IndexedList getIndexedList() throws Exception {
+        List<String> baseUrls = getBaseUrls();
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        List<List<ListResult>> sources = listAll(baseUrls, failures);
+        if (failures.size() == baseUrls.size()) {
+            throw new IOException("Failed to list packages on " + formatFailures(failures));
+        }
+
+        IndexedList current = this.indexed;
+        if (current != null && current.isIndexOf(sources)) {
+            return current;
+        }
+
+        MergedPackageList merged = new MergedPackageList(baseUrls, sources, failures,
+                excludeNotInstalled, excludeModified, getPackIdFilter());
+        IndexedList indexedList = new IndexedList(sources, merged,
+                new PackageListIndex(merged.getPackIds(isRequireAllInstances())));
+        this.indexed = indexedList;
+        return indexedList;
+    }
+
+    /**
+     * Lists the packages of every base URL concurrently, through the master-wide package list cache.
+     */
+    private List<List<ListResult>> listAll(List<String> baseUrls, Map<String, String> failures)
+            throws InterruptedException {
+        final long ttl = getCacheTtl() * 1000L;
+        final String query = this.query;
+        List<Callable<List<ListResult>>> loaders = new ArrayList<Callable<List<ListResult>>>();
+        for (String baseUrl : baseUrls) {
+            final GraniteClientConfig config = getGraniteClientConfig(baseUrl);
+            loaders.add(new Callable<List<ListResult>>() {
+                public List<ListResult> call() throws Exception {
+                    PackageListCache.Key key =
+                            new PackageListCache.Key(config.getBaseUrl(), config.getCredentialsId(), query);
+                    return PackageListCache.getInstance().get(key, ttl, new Callable<List<ListResult>>() {
+                        public List<ListResult> call() throws Exception {
+                            config.resolveCredentials();
+                            ListResponse response = GraniteClientExecutor.execute(new Execution(query), config);
+                            return response.getResults();
+                        }
+                    });
+                }
+            });
+        }
+        return listConcurrently(baseUrls, loaders, getListTimeout() * 1000L, failures);
+    }
+
+    /**
+     * Runs the loaders on a bounded pool of their own and waits for them up to a shared deadline. Instances which
+     * fail, or which do not respond before the deadline, are recorded in the failures map and their list is null.
+     * Requests which time out are cancelled, so that an unresponsive server can't hold on to the pool's threads.
+     *
+     * @param baseUrls      the base URLs, in the same order as the loaders
+     * @param loaders       lists the packages of each base URL
+     * @param timeoutMillis how long to wait for all of the lists
+     * @param failures      collects the reason each failed instance did not respond, keyed by base URL
+     * @return the list of each base URL, or null for each failed instance
+     * @throws InterruptedException if interrupted while waiting. the remaining requests are cancelled.
+     */
+    static List<List<ListResult>> listConcurrently(List<String> baseUrls, List<Callable<List<ListResult>>> loaders,
+                                                   long timeoutMillis, Map<String, String> failures)
+            throws InterruptedException {
+        List<Future<List<ListResult>>> futures = new ArrayList<Future<List<ListResult>>>();
+        try {
+            for (Callable<List<ListResult>> loader : loaders) {
+                futures.add(LIST_POOL.submit(loader));
+            }
+
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            List<List<ListResult>> sources = new ArrayList<List<ListResult>>(baseUrls.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+                    List<ListResult> results = futures.get(i).get(remaining, TimeUnit.MILLISECONDS);
+                    sources.add(results != null ? results : Collections.<ListResult>emptyList());
+                } catch (TimeoutException e) {
+                    futures.get(i).cancel(true);
+                    sources.add(null);
+                    failures.put(baseUrls.get(i), "timed out");
+                } catch (ExecutionException e) {
+                    sources.add(null);
+                    failures.put(baseUrls.get(i), String.valueOf(e.getCause().getMessage()));
+                }
+            }
+            return sources;
+        } catch (InterruptedException e) {
+            ConcurrencyUtil.cancelAll(futures);
+            throw e;
+        }
+    }
+
+    private static final class IndexedList {
+        private final List<List<ListResult>> sources;
+        private final MergedPackageList merged;
+        private final PackageListIndex index;
+
+        private IndexedList(List<List<ListResult>> sources, MergedPackageList merged, PackageListIndex index) {
+            this.sources = sources;
+            this.merged = merged;
+            this.index = index;
+        }
+
+        /**
+         * The cache returns the same list instance until an entry is reloaded, so comparing identities is enough to
+         * tell whether the index is current.
+         */
+        private boolean isIndexOf(List<List<ListResult>> otherSources) {
+            if (sources.size() != otherSources.size()) {
+                return false;
+            }
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i) != otherSources.get(i)) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
@@ -196,6 +413,10 @@ public class PackageChoiceParameterDefinition extends ParameterDefinition {
     private String query;
     private String packageIdFilter;
     private String value;
+    private Long cacheTtl;
+    private boolean requireAllInstances;
+    private long listTimeout;
+    private transient volatile IndexedList indexed;
 
     @DataBoundConstructor
     public PackageChoiceParameterDefinition(String name, String description, String baseUrl, String credentialsId,
@@ -308,6 +529,58 @@ public class PackageChoiceParameterDefinition extends ParameterDefinition {
         this.value = value;
     }
 
+    /**
+     * @return the number of seconds a package list is served from the cache, or 0 to list packages on every request
+     */
+    public long getCacheTtl() {
+        if (cacheTtl == null || cacheTtl < 0) {
+            return DEFAULT_CACHE_TTL;
+        } else {
+            return cacheTtl;
+        }
+    }
+
+    @DataBoundSetter
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * @return true to list only packages found on every instance, false to list packages found on any instance
+     */
+    public boolean isRequireAllInstances() {
+        return requireAllInstances;
+    }
+
+    @DataBoundSetter
+    public void setRequireAllInstances(boolean requireAllInstances) {
+        this.requireAllInstances = requireAllInstances;
+    }
+
+    public long getListTimeout() {
+        if (listTimeout <= 0) {
+            return DEFAULT_LIST_TIMEOUT;
+        } else {
+            return listTimeout;
+        }
+    }
+
+    @DataBoundSetter
+    public void setListTimeout(long listTimeout) {
+        this.listTimeout = listTimeout;
+    }
+
+    /**
+     * @return the base URLs to list packages from, one per line in the Base URL field
+     */
+    public List<String> getBaseUrls() {
+        return BaseUrlUtil.splitByNewline(getBaseUrl());
+    }
+
+    public String getBaseUrlsDisplayName() {
+        return StringUtils.join(getBaseUrls(), ", ");
+    }
+
     public String getEffectiveValue() {
         if (this.value == null) {
             return "";
@@ -321,7 +594,12 @@ public class PackageChoiceParameterDefinition extends ParameterDefinition {
     }
 
     public GraniteClientConfig getGraniteClientConfig() {
-        return new GraniteClientConfig(GraniteAHCFactory.getGlobalConfig(), getBaseUrl(),
+        List<String> baseUrls = getBaseUrls();
+        return getGraniteClientConfig(baseUrls.isEmpty() ? getBaseUrl() : baseUrls.get(0));
+    }
+
+    GraniteClientConfig getGraniteClientConfig(String baseUrl) {
+        return new GraniteClientConfig(GraniteAHCFactory.getGlobalConfig(), baseUrl,
                 getCredentialsId(), requestTimeout, serviceTimeout);
 
     }
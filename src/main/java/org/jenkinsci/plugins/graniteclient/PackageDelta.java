@@ -0,0 +1,595 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import hudson.Util;
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Computes the difference between a package archive and the archive last deployed to an instance, and writes a
+ * reduced package which only contains the changed content. Archives are compared entry by entry using the CRCs in
+ * their central directories, so only the index of the last deployed archive needs to be kept, not the archive.
+ * <p>
+ * Each changed, added, or removed entry is mapped to the subtree of the repository it serializes. The reduced
+ * package contains every entry of those subtrees and a filter with each subtree as a root, so importing it replaces
+ * exactly those subtrees. The subtree of a removed entry stays in the filter without any content, so its nodes are
+ * removed just as they would be by the whole package: where the covering filter root uses the merge or update
+ * import mode, they are kept. Nodes removed from the instance by other means are not tracked.
+ */
+final class PackageDelta {
+
+    static final String JCR_ROOT = "jcr_root";
+    static final String VAULT_PREFIX = "META-INF/vault/";
+    static final String FILTER_XML = "META-INF/vault/filter.xml";
+    static final String DELTA_SUFFIX = "-delta";
+
+    /**
+     * A delta which adds up to more than this fraction of the compressed size of the package is not worth it.
+     */
+    static final double MAX_DELTA_RATIO = 0.5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String INDEX_SUFFIX = ".crc";
+
+    /**
+     * Records the package ID in the index. Archive entry names are relative, so they never start with a slash.
+     */
+    private static final String PID_KEY = "/pid";
+
+    private final String fallbackReason;
+    private final List<String> roots;
+    private final Set<String> entries;
+    private final List<FilterRoot> filter;
+
+    private PackageDelta(String fallbackReason, List<String> roots, Set<String> entries, List<FilterRoot> filter) {
+        this.fallbackReason = fallbackReason;
+        this.roots = roots;
+        this.entries = entries;
+        this.filter = filter;
+    }
+
+    private static PackageDelta fallback(String reason) {
+        return new PackageDelta(reason, Collections.<String>emptyList(), Collections.<String>emptySet(),
+                Collections.<FilterRoot>emptyList());
+    }
+
+    /**
+     * @return why the whole package must be deployed instead, or null if the delta can be deployed
+     */
+    String getFallbackReason() {
+        return fallbackReason;
+    }
+
+    /**
+     * @return true if the package is unchanged since it was last deployed
+     */
+    boolean isUnchanged() {
+        return fallbackReason == null && roots.isEmpty();
+    }
+
+    /**
+     * @return the repository paths of the changed subtrees
+     */
+    List<String> getRoots() {
+        return roots;
+    }
+
+    /**
+     * @return the names of the archive entries included in the delta
+     */
+    Set<String> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Compares the archive with the one last deployed.
+     *
+     * @param previous  the CRC of each entry of the last deployed archive
+     * @param current   the CRC of each entry of the archive
+     * @param sizes     the compressed size of each entry of the archive
+     * @param filterXml the filter.xml of the archive
+     * @return the delta
+     */
+    static PackageDelta compute(Map<String, Long> previous, Map<String, Long> current, Map<String, Long> sizes,
+                                String filterXml) {
+        Set<String> changed = new TreeSet<String>();
+        for (Map.Entry<String, Long> entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String name : previous.keySet()) {
+            if (!current.containsKey(name)) {
+                changed.add(name);
+            }
+        }
+
+        // a subtree is identified by its repository path, and maps to the archive entries that serialize it
+        Map<String, Subtree> subtrees = new TreeMap<String, Subtree>();
+        for (String name : changed) {
+            if (name.startsWith(VAULT_PREFIX)) {
+                if (isSignificantMetadata(name)) {
+                    return fallback(name + " changed");
+                }
+            } else if (name.startsWith(JCR_ROOT + "/")) {
+                Subtree subtree = getSubtree(name);
+                Subtree existing = subtrees.get(subtree.path);
+                if (existing == null || subtree.directory) {
+                    subtrees.put(subtree.path, subtree);
+                }
+            }
+        }
+
+        if (subtrees.isEmpty()) {
+            return new PackageDelta(null, Collections.<String>emptyList(), Collections.<String>emptySet(),
+                    Collections.<FilterRoot>emptyList());
+        }
+
+        // drop the subtrees contained by other subtrees. sorted paths put each ancestor before its descendants.
+        List<Subtree> kept = new ArrayList<Subtree>();
+        for (Subtree subtree : subtrees.values()) {
+            boolean contained = false;
+            for (Subtree ancestor : kept) {
+                if (isAncestorOrSelf(ancestor.path, subtree.path)) {
+                    contained = true;
+                    break;
+                }
+            }
+            if (!contained) {
+                kept.add(subtree);
+            }
+        }
+
+        List<FilterRoot> originalFilter;
+        try {
+            originalFilter = FilterRoot.parse(filterXml);
+        } catch (IOException e) {
+            return fallback("its filter could not be read: " + e.getMessage());
+        }
+
+        List<String> roots = new ArrayList<String>();
+        List<FilterRoot> filter = new ArrayList<FilterRoot>();
+        for (Subtree subtree : kept) {
+            FilterRoot covering = null;
+            for (FilterRoot filterRoot : originalFilter) {
+                if (isAncestorOrSelf(filterRoot.root, subtree.path)) {
+                    covering = filterRoot;
+                    break;
+                }
+            }
+            if (covering == null) {
+                return fallback(subtree.path + " is not covered by its filter");
+            }
+            roots.add(subtree.path);
+            filter.add(new FilterRoot(subtree.path, covering.mode, covering.rules));
+        }
+
+        Set<String> entries = new TreeSet<String>();
+        long deltaSize = 0L;
+        long totalSize = 0L;
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            totalSize += entry.getValue();
+            for (Subtree subtree : kept) {
+                if (subtree.contains(entry.getKey())) {
+                    entries.add(entry.getKey());
+                    deltaSize += entry.getValue();
+                    break;
+                }
+            }
+        }
+        if (deltaSize > totalSize * MAX_DELTA_RATIO) {
+            return fallback(String.format("the changes add up to %d of %d bytes", deltaSize, totalSize));
+        }
+
+        return new PackageDelta(null, Collections.unmodifiableList(roots), Collections.unmodifiableSet(entries),
+                Collections.unmodifiableList(filter));
+    }
+
+    /**
+     * The package definition, thumbnail, manifest, and properties change with every build of a package without
+     * changing what it installs. Any other metadata, like the filter or node types, requires a full deployment.
+     */
+    private static boolean isSignificantMetadata(String name) {
+        return !name.equals(ReadPackageDependenciesCallable.PROPERTIES_XML)
+                && !name.startsWith(VAULT_PREFIX + "definition/");
+    }
+
+    static boolean isAncestorOrSelf(String ancestor, String path) {
+        return ancestor.equals(path) || "/".equals(ancestor) || path.startsWith(ancestor + "/");
+    }
+
+    private static final class Subtree {
+        final String path;
+        final String entryPath;
+        final boolean directory;
+
+        private Subtree(String path, String entryPath, boolean directory) {
+            this.path = path;
+            this.entryPath = entryPath;
+            this.directory = directory;
+        }
+
+        boolean contains(String name) {
+            if (directory) {
+                return name.startsWith(entryPath + "/");
+            }
+            return name.equals(entryPath) || name.startsWith(entryPath + ".dir/");
+        }
+    }
+
+    /**
+     * Maps an archive entry to the subtree it serializes. A {@code .content.xml} serializes the node of its folder
+     * and possibly its descendants, and any other XML file may be the full serialization of a child node, so both
+     * map to the folder. Other files are file nodes, with their properties in a {@code .dir} folder next to them.
+     */
+    private static Subtree getSubtree(String name) {
+        int lastSlash = name.lastIndexOf('/');
+        String folder = name.substring(0, lastSlash);
+        String fileName = name.substring(lastSlash + 1);
+        if (fileName.endsWith(".xml")) {
+            if (folder.endsWith(".dir")) {
+                String fileEntry = folder.substring(0, folder.length() - ".dir".length());
+                return new Subtree(toRepositoryPath(fileEntry), fileEntry, false);
+            }
+            return new Subtree(toRepositoryPath(folder), folder, true);
+        }
+        return new Subtree(toRepositoryPath(name), name, false);
+    }
+
+    /**
+     * Converts an archive entry path to a repository path, reversing the escaping of names by FileVault: a leading
+     * {@code _prefix_} stands for a namespace prefix, and other special characters are percent-encoded.
+     */
+    static String toRepositoryPath(String entryPath) {
+        String relative = entryPath.substring(JCR_ROOT.length());
+        if (relative.isEmpty()) {
+            return "/";
+        }
+        StringBuilder path = new StringBuilder();
+        for (String segment : relative.substring(1).split("/")) {
+            path.append('/').append(decodeName(segment));
+        }
+        return path.toString();
+    }
+
+    private static String decodeName(String segment) {
+        String name = segment;
+        if (name.startsWith("__")) {
+            name = name.substring(1);
+        } else if (name.startsWith("_")) {
+            int end = name.indexOf('_', 1);
+            if (end > 1) {
+                name = name.substring(1, end) + ":" + name.substring(end + 1);
+            }
+        }
+        if (name.indexOf('%') >= 0) {
+            try {
+                name = URLDecoder.decode(name.replace("+", "%2B"), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // keep the name as it is
+            } catch (IllegalArgumentException e) {
+                // keep the name as it is
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Writes the delta as a package of its own, with the ID of the package and a {@code -delta} suffix on its name,
+     * so that it never replaces the package itself on the server.
+     *
+     * @param source  the archive
+     * @param deltaId the ID of the delta package
+     * @param target  the file to write
+     */
+    void write(ZipFile source, PackId deltaId, File target) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            Properties properties = new Properties();
+            ZipEntry propertiesEntry = source.getEntry(ReadPackageDependenciesCallable.PROPERTIES_XML);
+            if (propertiesEntry != null) {
+                InputStream in = source.getInputStream(propertiesEntry);
+                try {
+                    properties.loadFromXML(in);
+                } finally {
+                    in.close();
+                }
+            }
+            properties.setProperty("group", deltaId.getGroup());
+            properties.setProperty("name", deltaId.getName());
+            properties.setProperty("version", deltaId.getVersion());
+            zip.putNextEntry(new ZipEntry(ReadPackageDependenciesCallable.PROPERTIES_XML));
+            properties.storeToXML(zip, null, "UTF-8");
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry(FILTER_XML));
+            Writer writer = new OutputStreamWriter(zip, UTF_8);
+            writer.write(FilterRoot.toXml(filter));
+            writer.flush();
+            zip.closeEntry();
+
+            byte[] buffer = new byte[64 * 1024];
+            Enumeration<? extends ZipEntry> sourceEntries = source.entries();
+            while (sourceEntries.hasMoreElements()) {
+                ZipEntry entry = sourceEntries.nextElement();
+                boolean included = entries.contains(entry.getName()) || isCopiedMetadata(entry.getName());
+                if (entry.isDirectory() || !included) {
+                    continue;
+                }
+                zip.putNextEntry(new ZipEntry(entry.getName()));
+                InputStream in = source.getInputStream(entry);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        zip.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static boolean isCopiedMetadata(String name) {
+        return name.startsWith(VAULT_PREFIX) && isSignificantMetadata(name) && !name.equals(FILTER_XML);
+    }
+
+    /**
+     * Reads the CRC of each file entry from the central directory of an archive.
+     */
+    static Map<String, Long> readCrcs(ZipFile zip) {
+        Map<String, Long> crcs = new LinkedHashMap<String, Long>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory()) {
+                crcs.put(entry.getName(), entry.getCrc());
+            }
+        }
+        return crcs;
+    }
+
+    /**
+     * Reads the compressed size of each file entry from the central directory of an archive.
+     */
+    static Map<String, Long> readSizes(ZipFile zip) {
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory()) {
+                sizes.put(entry.getName(), Math.max(0L, entry.getCompressedSize()));
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns the file which records the index of the archive last deployed to an instance.
+     *
+     * @param cacheDir the cache directory
+     * @param baseUrl  the base URL of the instance
+     * @param packId   the package. only its group and name are used, so that a new version replaces the index of
+     *                 the last one.
+     * @return the index file
+     */
+    static File getIndexFile(File cacheDir, String baseUrl, PackId packId) {
+        String identity = baseUrl + "|" + packId.getGroup() + ":" + packId.getName();
+        return new File(cacheDir, Util.toHexString(PackageDownloader.newSha256().digest(identity.getBytes(UTF_8)))
+                + INDEX_SUFFIX);
+    }
+
+    /**
+     * The archive last deployed to an instance: the ID of the package and the CRC of each of its entries
+     */
+    static final class Index {
+        private final PackId packId;
+        private final Map<String, Long> crcs;
+
+        Index(PackId packId, Map<String, Long> crcs) {
+            this.packId = packId;
+            this.crcs = crcs;
+        }
+
+        PackId getPackId() {
+            return packId;
+        }
+
+        Map<String, Long> getCrcs() {
+            return crcs;
+        }
+    }
+
+    /**
+     * @return the recorded index, or null if none is recorded, it can't be read, or it doesn't record the package ID
+     */
+    static Index readIndex(File indexFile) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(indexFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            PackId packId = PackId.parsePid(properties.getProperty(PID_KEY, ""));
+            if (packId == null) {
+                return null;
+            }
+            Map<String, Long> crcs = new LinkedHashMap<String, Long>();
+            for (String name : properties.stringPropertyNames()) {
+                if (!PID_KEY.equals(name)) {
+                    crcs.put(name, Long.parseLong(properties.getProperty(name), 16));
+                }
+            }
+            return new Index(packId, crcs);
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the index of the archive deployed to an instance. The index is written to a temporary file first, so
+     * a concurrent build never reads a partial index.
+     */
+    static void writeIndex(File indexFile, Index index) throws IOException {
+        File dir = indexFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory " + dir);
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> entry : index.getCrcs().entrySet()) {
+            properties.setProperty(entry.getKey(), Long.toHexString(entry.getValue()));
+        }
+        properties.setProperty(PID_KEY, index.getPackId().toString());
+        File temp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(indexFile)) {
+                if (!indexFile.delete() || !temp.renameTo(indexFile)) {
+                    throw new IOException("Failed to write " + indexFile);
+                }
+            }
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * A filter root of a workspace filter, with its import mode and its include and exclude rules
+     */
+    static final class FilterRoot {
+        final String root;
+        final String mode;
+        final List<String[]> rules;
+
+        FilterRoot(String root, String mode, List<String[]> rules) {
+            this.root = root;
+            this.mode = mode;
+            this.rules = rules;
+        }
+
+        static List<FilterRoot> parse(String filterXml) throws IOException {
+            Document document;
+            try {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                DocumentBuilder builder = factory.newDocumentBuilder();
+                document = builder.parse(new ByteArrayInputStream(filterXml.getBytes(UTF_8)));
+            } catch (ParserConfigurationException e) {
+                throw new IOException(e.getMessage(), e);
+            } catch (SAXException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            List<FilterRoot> roots = new ArrayList<FilterRoot>();
+            NodeList filters = document.getDocumentElement().getElementsByTagName("filter");
+            for (int i = 0; i < filters.getLength(); i++) {
+                Element filter = (Element) filters.item(i);
+                List<String[]> rules = new ArrayList<String[]>();
+                NodeList children = filter.getChildNodes();
+                for (int j = 0; j < children.getLength(); j++) {
+                    Node child = children.item(j);
+                    if ("include".equals(child.getNodeName()) || "exclude".equals(child.getNodeName())) {
+                        rules.add(new String[]{child.getNodeName(), ((Element) child).getAttribute("pattern")});
+                    }
+                }
+                roots.add(new FilterRoot(filter.getAttribute("root"), filter.getAttribute("mode"), rules));
+            }
+            return roots;
+        }
+
+        static String toXml(List<FilterRoot> roots) {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            xml.append("<workspaceFilter version=\"1.0\">\n");
+            for (FilterRoot filterRoot : roots) {
+                xml.append("    <filter root=\"").append(StringEscapeUtils.escapeXml(filterRoot.root)).append('"');
+                if (!filterRoot.mode.isEmpty()) {
+                    xml.append(" mode=\"").append(StringEscapeUtils.escapeXml(filterRoot.mode)).append('"');
+                }
+                xml.append(">\n");
+                for (String[] rule : filterRoot.rules) {
+                    xml.append("        <").append(rule[0]).append(" pattern=\"")
+                            .append(StringEscapeUtils.escapeXml(rule[1])).append("\"/>\n");
+                }
+                xml.append("    </filter>\n");
+            }
+            return xml.append("</workspaceFilter>\n").toString();
+        }
+    }
+}
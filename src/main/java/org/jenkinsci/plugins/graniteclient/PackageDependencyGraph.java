@@ -0,0 +1,164 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A directed acyclic graph of packages, used to schedule package operations so that each package is handled only
+ * after the packages it depends on, while independent packages may be handled concurrently. Nodes keep the order in
+ * which they were added, so that packages without dependencies are scheduled in the order they were listed.
+ *
+ * @param <T> the node type, like a {@link net.adamcin.granite.client.packman.PackId}
+ */
+final class PackageDependencyGraph<T> {
+
+    private final Map<T, Set<T>> dependencies = new LinkedHashMap<T, Set<T>>();
+
+    /**
+     * Adds a node without dependencies, if it has not been added already.
+     *
+     * @param node the node to add
+     */
+    void addNode(T node) {
+        if (!dependencies.containsKey(node)) {
+            dependencies.put(node, new LinkedHashSet<T>());
+        }
+    }
+
+    /**
+     * Declares that {@code dependent} must be scheduled after {@code dependency}. Both nodes are added if necessary.
+     *
+     * @param dependent  the node which depends on the other
+     * @param dependency the node which must come first
+     */
+    void addDependency(T dependent, T dependency) {
+        addNode(dependency);
+        addNode(dependent);
+        dependencies.get(dependent).add(dependency);
+    }
+
+    boolean contains(T node) {
+        return dependencies.containsKey(node);
+    }
+
+    List<T> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<T>(dependencies.keySet()));
+    }
+
+    Set<T> getDependencies(T node) {
+        Set<T> nodeDependencies = dependencies.get(node);
+        return nodeDependencies != null
+                ? Collections.unmodifiableSet(nodeDependencies) : Collections.<T>emptySet();
+    }
+
+    /**
+     * Groups the nodes into levels, where every node depends only on nodes in earlier levels. The nodes in a level
+     * don't depend on each other, so they may be handled concurrently.
+     *
+     * @return the levels, in order
+     * @throws CycleException if the dependencies contain a cycle
+     */
+    List<List<T>> getLevels() throws CycleException {
+        Set<T> scheduled = new HashSet<T>();
+        List<List<T>> levels = new ArrayList<List<T>>();
+        Set<T> remaining = new LinkedHashSet<T>(dependencies.keySet());
+
+        while (!remaining.isEmpty()) {
+            List<T> level = new ArrayList<T>();
+            for (T node : remaining) {
+                if (scheduled.containsAll(dependencies.get(node))) {
+                    level.add(node);
+                }
+            }
+            if (level.isEmpty()) {
+                throw new CycleException(findCycle(remaining));
+            }
+            scheduled.addAll(level);
+            remaining.removeAll(level);
+            levels.add(Collections.unmodifiableList(level));
+        }
+        return Collections.unmodifiableList(levels);
+    }
+
+    /**
+     * Follows dependencies among the unscheduled nodes until a node repeats. Every unscheduled node has at least one
+     * unscheduled dependency, so the walk always finds a cycle.
+     */
+    private List<T> findCycle(Set<T> remaining) {
+        List<T> path = new ArrayList<T>();
+        T node = remaining.iterator().next();
+        while (!path.contains(node)) {
+            path.add(node);
+            for (T dependency : dependencies.get(node)) {
+                if (remaining.contains(dependency)) {
+                    node = dependency;
+                    break;
+                }
+            }
+        }
+        List<T> cycle = new ArrayList<T>(path.subList(path.indexOf(node), path.size()));
+        cycle.add(node);
+        return cycle;
+    }
+
+    /**
+     * Thrown when dependencies form a cycle, so that no valid order exists
+     */
+    static final class CycleException extends Exception {
+        private static final long serialVersionUID = 4017526281398542367L;
+        private final List<?> cycle;
+
+        CycleException(List<?> cycle) {
+            super("Dependency cycle: " + joinCycle(cycle));
+            this.cycle = cycle;
+        }
+
+        public List<?> getCycle() {
+            return cycle;
+        }
+
+        private static String joinCycle(List<?> cycle) {
+            StringBuilder sb = new StringBuilder();
+            for (Object node : cycle) {
+                if (sb.length() > 0) {
+                    sb.append(" -> ");
+                }
+                sb.append(node);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.BodyDeferringAsyncHandler;
+import com.ning.http.client.Response;
+import hudson.Util;
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Streams a package from the server into a local directory. The SHA-256 digest is computed and the package is
+ * identified from its {@code META-INF/vault/properties.xml} entry while the bytes arrive, so that the downloaded file
+ * does not have to be read back from disk to be verified. The digest is written next to the package in a
+ * {@code sha256sum}-compatible sidecar file.
+ */
+final class PackageDownloader {
+
+    static final String SHA256_SUFFIX = ".sha256";
+
+    private static final String PROPERTIES_ENTRY = "META-INF/vault/properties.xml";
+    private static final String META_INF_PREFIX = "META-INF/";
+    private static final String PART_SUFFIX = ".part";
+    private static final String VALIDATOR_SUFFIX = ".validator";
+    private static final int PIPE_BUFFER_SIZE = 256 * 1024;
+    private static final long MAX_RETRY_DELAY = 30000L;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("^bytes (\\d+)-(\\d+)/(\\d+|\\*)$");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final GraniteHttpSession session;
+    private final TaskListener listener;
+    private final int retries;
+
+    PackageDownloader(GraniteHttpSession session, TaskListener listener) {
+        this(session, listener, 0);
+    }
+
+    /**
+     * @param retries the number of times a failed download is resumed before giving up
+     */
+    PackageDownloader(GraniteHttpSession session, TaskListener listener, int retries) {
+        this.session = session;
+        this.listener = listener;
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * The verified result of a download
+     */
+    static final class Download {
+        private final File file;
+        private final long length;
+        private final String sha256;
+        private final PackId packId;
+
+        Download(File file, long length, String sha256, PackId packId) {
+            this.file = file;
+            this.length = length;
+            this.sha256 = sha256;
+            this.packId = packId;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public PackId getPackId() {
+            return packId;
+        }
+    }
+
+    /**
+     * Thrown when the server responds to a download request with an unexpected status
+     */
+    static final class DownloadStatusException extends IOException {
+        private static final long serialVersionUID = -3577052958313623470L;
+        private final int statusCode;
+
+        DownloadStatusException(String message, int statusCode) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        boolean isRetryable() {
+            return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+        }
+    }
+
+    /**
+     * Downloads the package to a hidden partial file in the target directory, then moves it into place once the
+     * stream has been completely read and verified. If the connection fails, the partial file is kept along with the
+     * server's validator for the package (its ETag or Last-Modified date), and the download is resumed with a
+     * {@code Range} request, up to the configured number of retries. A partial file left behind by an earlier build
+     * is resumed the same way. Servers which ignore the range, or whose package has changed since the partial file
+     * was written, send the complete package instead, and the download starts over.
+     *
+     * @param packId      the package to download
+     * @param toDirectory the target directory
+     * @return the verified download
+     * @throws IOException if the download fails, or if the package is not identified as {@code packId}
+     */
+    Download download(PackId packId, File toDirectory) throws IOException {
+        FileUtils.forceMkdir(toDirectory);
+        File target = new File(toDirectory, getFileName(packId));
+        File partFile = new File(toDirectory, "." + target.getName() + PART_SUFFIX);
+        File validatorFile = new File(toDirectory, partFile.getName() + VALIDATOR_SUFFIX);
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Download download = stream(packId, partFile, validatorFile, target);
+                moveIntoPlace(partFile, target);
+                FileUtils.deleteQuietly(validatorFile);
+                FileUtils.writeStringToFile(getSidecarFile(target),
+                        download.getSha256() + "  " + target.getName() + "\n", UTF_8);
+                return download;
+            } catch (DownloadStatusException e) {
+                if (!e.isRetryable() || attempt >= retries) {
+                    throw e;
+                }
+                waitToRetry(packId, attempt, e);
+            } catch (IOException e) {
+                if (attempt >= retries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                waitToRetry(packId, attempt, e);
+            }
+        }
+    }
+
+    private void waitToRetry(PackId packId, int attempt, IOException cause) throws IOException {
+        long delay = Math.min(MAX_RETRY_DELAY, 1000L << Math.min(attempt, 5));
+        listener.error("Download of %s failed (attempt %d of %d). Retrying in %d ms: %s",
+                packId, attempt + 1, retries + 1, delay, cause.getMessage());
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry " + packId, e);
+        }
+    }
+
+    private Download stream(PackId packId, File partFile, File validatorFile, File target) throws IOException {
+        final String path = GraniteHttpSession.encodePath(packId.getInstallationPath() + ".zip");
+
+        long offset = 0L;
+        String validator = null;
+        if (partFile.isFile() && partFile.length() > 0L && validatorFile.isFile()) {
+            validator = FileUtils.readFileToString(validatorFile, UTF_8).trim();
+            if (!validator.isEmpty()) {
+                offset = partFile.length();
+            }
+        }
+
+        AsyncHttpClient.BoundRequestBuilder request = session.prepareGet(path);
+        if (offset > 0L) {
+            request.addHeader("Range", "bytes=" + offset + "-");
+            request.addHeader("If-Range", validator);
+        }
+
+        PipedInputStream pipeIn = new PipedInputStream(PIPE_BUFFER_SIZE);
+        BodyDeferringAsyncHandler handler = new BodyDeferringAsyncHandler(new PipedOutputStream(pipeIn));
+        Future<Response> future = request.execute(handler);
+        BodyDeferringAsyncHandler.BodyDeferringInputStream body =
+                new BodyDeferringAsyncHandler.BodyDeferringInputStream(future, handler, pipeIn);
+
+        OutputStream fileOut = null;
+        InputStream prefix = null;
+        boolean completed = false;
+        try {
+            Response response = body.getAsapResponse();
+            long total;
+            if (offset > 0L && response.getStatusCode() == 206) {
+                try {
+                    total = getResumedLength(response, offset);
+                } catch (IOException e) {
+                    // the partial file can't be resumed from this response, so start over on the next attempt.
+                    FileUtils.deleteQuietly(partFile);
+                    FileUtils.deleteQuietly(validatorFile);
+                    throw e;
+                }
+                listener.getLogger().printf("Resuming download of %s at byte %d.%n", packId, offset);
+            } else if (response.getStatusCode() == 200) {
+                if (offset > 0L) {
+                    listener.getLogger().printf("Server sent the complete package. Restarting download of %s.%n",
+                            packId);
+                    offset = 0L;
+                }
+                total = getContentLength(response);
+                String newValidator = getValidator(response);
+                if (newValidator != null) {
+                    FileUtils.writeStringToFile(validatorFile, newValidator, UTF_8);
+                } else {
+                    FileUtils.deleteQuietly(validatorFile);
+                }
+            } else {
+                if (response.getStatusCode() == 416) {
+                    // the partial file can't be resumed, so start over on the next attempt.
+                    FileUtils.deleteQuietly(partFile);
+                    FileUtils.deleteQuietly(validatorFile);
+                }
+                throw new DownloadStatusException("Failed to download " + packId + ": " + response.getStatusCode()
+                        + " " + response.getStatusText(), response.getStatusCode());
+            }
+
+            MessageDigest digest = newSha256();
+            fileOut = new BufferedOutputStream(new FileOutputStream(partFile, offset > 0L));
+            InputStream source = new TeeInputStream(body, fileOut);
+            if (offset > 0L) {
+                // replay the partial file so that the digest and package properties cover the whole package.
+                prefix = new FileInputStream(partFile);
+                source = new SequenceInputStream(new BoundedInputStream(prefix, offset), source);
+            }
+            CountingInputStream counted = new CountingInputStream(new DigestInputStream(source, digest));
+
+            PackId identified = readPackId(counted);
+            IOUtils.copyLarge(counted, NullOutputStream.NULL_OUTPUT_STREAM);
+            fileOut.close();
+            fileOut = null;
+            body.close();
+            completed = true;
+
+            if (total >= 0L && counted.getByteCount() != total) {
+                FileUtils.deleteQuietly(partFile);
+                throw new IOException("Package length mismatch for " + packId + ": expected " + total
+                        + " bytes, received " + counted.getByteCount());
+            }
+
+            if (identified == null) {
+                listener.getLogger().printf("%s was not found at the start of the stream. Reading it from %s.%n",
+                        PROPERTIES_ENTRY, target.getName());
+                identified = PackId.identifyPackage(partFile);
+            }
+
+            if (!packId.equals(identified)) {
+                FileUtils.deleteQuietly(partFile);
+                throw new IOException("Package verification failed: " + target + " identified as " + identified);
+            }
+
+            return new Download(target, counted.getByteCount(), Util.toHexString(digest.digest()), identified);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + packId, e);
+        } finally {
+            if (!completed) {
+                future.cancel(true);
+            }
+            IOUtils.closeQuietly(prefix);
+            IOUtils.closeQuietly(fileOut);
+            IOUtils.closeQuietly(pipeIn);
+        }
+    }
+
+    /**
+     * Returns the total length of the package from the {@code Content-Range} of a partial response, after checking
+     * that the range starts where the partial file ends.
+     */
+    static long getResumedLength(Response response, long offset) throws IOException {
+        String contentRange = response.getHeader("Content-Range");
+        Matcher matcher = contentRange != null ? CONTENT_RANGE.matcher(contentRange.trim()) : null;
+        if (matcher == null || !matcher.matches()) {
+            throw new IOException("Invalid Content-Range in partial response: " + contentRange);
+        }
+        if (Long.parseLong(matcher.group(1)) != offset) {
+            throw new IOException("Server resumed at the wrong offset. Expected " + offset + ": " + contentRange);
+        }
+        return "*".equals(matcher.group(3)) ? -1L : Long.parseLong(matcher.group(3));
+    }
+
+    private static long getContentLength(Response response) {
+        String contentLength = response.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1L;
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Prefers a strong ETag as the {@code If-Range} validator, then the Last-Modified date.
+     */
+    private static String getValidator(Response response) {
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.trim().isEmpty() && !etag.trim().startsWith("W/")) {
+            return etag.trim();
+        }
+        String lastModified = response.getHeader("Last-Modified");
+        if (lastModified != null && !lastModified.trim().isEmpty()) {
+            return lastModified.trim();
+        }
+        return null;
+    }
+
+    /**
+     * Reads zip entries from the start of the stream until the package properties are found. Package builders write
+     * the META-INF entries first, so scanning stops at the first entry outside of META-INF rather than inflating the
+     * whole package. Bytes read here are still teed to the file and digest by the underlying stream.
+     *
+     * @param stream the download stream, which is left open
+     * @return the identified package, or null if the properties were not found before the content entries
+     * @throws IOException if the download stream fails
+     */
+    static PackId readPackId(InputStream stream) throws IOException {
+        ZipInputStream zip = new ZipInputStream(new CloseShieldInputStream(stream));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (PROPERTIES_ENTRY.equals(entry.getName())) {
+                    Properties properties = new Properties();
+                    properties.loadFromXML(new ByteArrayInputStream(IOUtils.toByteArray(zip)));
+                    return PackId.createPackId(properties.getProperty("group"),
+                            properties.getProperty("name"), properties.getProperty("version"));
+                } else if (!entry.getName().startsWith(META_INF_PREFIX)) {
+                    return null;
+                }
+            }
+        } catch (ZipException e) {
+            // some archives (like stored entries with data descriptors) can't be read as a stream. fall back to the
+            // central directory once the file is complete.
+            return null;
+        }
+        return null;
+    }
+
+    static String getFileName(PackId packId) {
+        String installationPath = packId.getInstallationPath();
+        return installationPath.substring(installationPath.lastIndexOf('/') + 1) + ".zip";
+    }
+
+    static File getSidecarFile(File packageFile) {
+        return new File(packageFile.getParentFile(), packageFile.getName() + SHA256_SUFFIX);
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is not supported");
+        }
+    }
+
+    static void moveIntoPlace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
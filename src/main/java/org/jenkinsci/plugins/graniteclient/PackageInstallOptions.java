@@ -41,12 +41,23 @@ public class PackageInstallOptions implements Serializable {
     private final int autosave;
     private final ACHandling acHandling;
     private final boolean replicate;
+    private final long replicationTimeout;
 
     public PackageInstallOptions(boolean recursive, int autosave, ACHandling acHandling, boolean replicate) {
+        this(recursive, autosave, acHandling, replicate, 0L);
+    }
+
+    /**
+     * @param replicationTimeout if greater than zero, the number of milliseconds to wait for a replicated package to
+     *                           leave the replication queues
+     */
+    public PackageInstallOptions(boolean recursive, int autosave, ACHandling acHandling, boolean replicate,
+                                 long replicationTimeout) {
         this.recursive = recursive;
         this.autosave = autosave;
         this.acHandling = acHandling == null ? ACHandling.IGNORE : acHandling;
         this.replicate = replicate;
+        this.replicationTimeout = replicationTimeout;
     }
 
     public boolean isRecursive() {
@@ -64,4 +75,19 @@ public class PackageInstallOptions implements Serializable {
     public boolean isReplicate() {
         return replicate;
     }
+
+    public boolean isWaitForReplication() {
+        return replicate && replicationTimeout > 0L;
+    }
+
+    public long getReplicationTimeout() {
+        return replicationTimeout;
+    }
+
+    /**
+     * @return a copy of these options with a different autosave threshold
+     */
+    public PackageInstallOptions withAutosave(int autosave) {
+        return new PackageInstallOptions(recursive, autosave, acHandling, replicate, replicationTimeout);
+    }
 }
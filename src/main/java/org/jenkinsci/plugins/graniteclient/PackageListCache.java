@@ -0,0 +1,229 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.adamcin.granite.client.packman.ListResult;
+
+/**
+ * A master-wide cache of package lists for the {@link PackageChoiceParameterDefinition}, so that rendering the build
+ * form does not have to wait for a login and a list request. An entry is served from memory until its TTL expires.
+ * After that, the stale list is still served while a single background refresh replaces it, unless the entry has
+ * been stale for so long that it is reloaded before returning. Concurrent loads of the same missing entry are
+ * coalesced into one request. Background refreshes run on a small pool of their own, so that slow servers can't
+ * tie up the threads of Jenkins' shared timer.
+ */
+final class PackageListCache {
+
+    private static final Logger LOGGER = Logger.getLogger(PackageListCache.class.getName());
+
+    /**
+     * Stale entries older than this many TTLs are reloaded synchronously instead of being served.
+     */
+    static final int MAX_STALE_TTLS = 10;
+
+    static final int MAX_ENTRIES = 256;
+
+    /**
+     * The maximum number of package lists refreshed in the background at the same time
+     */
+    static final int REFRESH_THREADS = 4;
+
+    private static final ExecutorService REFRESH_POOL =
+            ConcurrencyUtil.newSharedPool("package list refresh", REFRESH_THREADS);
+
+    private static final PackageListCache INSTANCE = new PackageListCache();
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final ConcurrentMap<Key, FutureTask<List<ListResult>>> loads =
+            new ConcurrentHashMap<Key, FutureTask<List<ListResult>>>();
+
+    static PackageListCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Identifies a package list by the server, the credentials used to list it, and the search query
+     */
+    static final class Key {
+        private final String baseUrl;
+        private final String credentialsId;
+        private final String query;
+
+        Key(String baseUrl, String credentialsId, String query) {
+            this.baseUrl = baseUrl == null ? "" : baseUrl.trim();
+            this.credentialsId = credentialsId == null ? "" : credentialsId;
+            this.query = query == null ? "" : query.trim();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return baseUrl.equals(key.baseUrl) && credentialsId.equals(key.credentialsId) && query.equals(key.query);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = baseUrl.hashCode();
+            result = 31 * result + credentialsId.hashCode();
+            result = 31 * result + query.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return baseUrl + " [" + credentialsId + "] " + query;
+        }
+    }
+
+    private static final class Entry {
+        private final List<ListResult> results;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(List<ListResult> results, long loadedAt) {
+            this.results = results;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Returns the cached package list, loading it if necessary.
+     *
+     * @param key       the cache key
+     * @param ttlMillis how long a loaded list is fresh. 0 loads the list on every call without caching it.
+     * @param loader    loads the list from the server
+     * @return the package list
+     * @throws Exception if the list is not cached and fails to load
+     */
+    List<ListResult> get(final Key key, long ttlMillis, final Callable<List<ListResult>> loader) throws Exception {
+        if (ttlMillis <= 0L) {
+            entries.remove(key);
+            return load(key, loader, false);
+        }
+
+        final Entry entry = entries.get(key);
+        long age = entry != null ? System.currentTimeMillis() - entry.loadedAt : Long.MAX_VALUE;
+        if (entry == null || age > ttlMillis * MAX_STALE_TTLS) {
+            return load(key, loader, true);
+        }
+
+        if (age > ttlMillis && entry.refreshing.compareAndSet(false, true)) {
+            REFRESH_POOL.submit(new Runnable() {
+                public void run() {
+                    try {
+                        load(key, loader, true);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINE, "Failed to refresh package list for " + key, e);
+                    } finally {
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        }
+        return entry.results;
+    }
+
+    void invalidate(Key key) {
+        entries.remove(key);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    private List<ListResult> load(Key key, Callable<List<ListResult>> loader, boolean cache) throws Exception {
+        FutureTask<List<ListResult>> task = new FutureTask<List<ListResult>>(loader);
+        FutureTask<List<ListResult>> existing = loads.putIfAbsent(key, task);
+        if (existing != null) {
+            task = existing;
+        } else {
+            try {
+                task.run();
+            } finally {
+                loads.remove(key, task);
+            }
+        }
+
+        List<ListResult> results;
+        try {
+            results = task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+
+        if (existing == null) {
+            List<ListResult> cached = results == null
+                    ? Collections.<ListResult>emptyList() : Collections.unmodifiableList(results);
+            if (cache) {
+                entries.put(key, new Entry(cached, System.currentTimeMillis()));
+                evictOldest();
+            }
+            return cached;
+        }
+        Entry loaded = cache ? entries.get(key) : null;
+        return loaded != null ? loaded.results : results;
+    }
+
+    private void evictOldest() {
+        while (entries.size() > MAX_ENTRIES) {
+            Key oldest = null;
+            long oldestLoadedAt = Long.MAX_VALUE;
+            for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().loadedAt < oldestLoadedAt) {
+                    oldest = entry.getKey();
+                    oldestLoadedAt = entry.getValue().loadedAt;
+                }
+            }
+            if (oldest == null || entries.remove(oldest) == null) {
+                return;
+            }
+        }
+    }
+}
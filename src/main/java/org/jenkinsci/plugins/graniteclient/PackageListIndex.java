@@ -0,0 +1,197 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import net.adamcin.granite.client.packman.PackId;
+
+/**
+ * An immutable in-memory search index over a package list, used by the {@link PackageChoiceParameterDefinition} to
+ * serve the package chooser one page at a time. A query matches a package when the group, name or version starts
+ * with it, or when the package ID contains it. Prefix matches are listed before substring matches, and each group
+ * keeps the order of the original list.
+ */
+final class PackageListIndex {
+
+    private final List<PackId> packIds;
+    private final String[] pids;
+    private final Field[] fields;
+
+    /**
+     * One page of search results
+     */
+    static final class Page {
+        private final List<PackId> packIds;
+        private final int page;
+        private final int pageCount;
+        private final int total;
+
+        Page(List<PackId> packIds, int page, int pageCount, int total) {
+            this.packIds = packIds;
+            this.page = page;
+            this.pageCount = pageCount;
+            this.total = total;
+        }
+
+        public List<PackId> getPackIds() {
+            return packIds;
+        }
+
+        public int getPage() {
+            return page;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * The lowercased values of one PackId property, sorted for prefix lookups by binary search.
+     */
+    private static final class Field {
+        private final String[] values;
+        private final int[] positions;
+
+        private Field(final String[] unsorted) {
+            Integer[] order = new Integer[unsorted.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer left, Integer right) {
+                    return unsorted[left].compareTo(unsorted[right]);
+                }
+            });
+            this.values = new String[order.length];
+            this.positions = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                this.values[i] = unsorted[order[i]];
+                this.positions[i] = order[i];
+            }
+        }
+
+        private void matchPrefix(String prefix, BitSet matches) {
+            int i = Arrays.binarySearch(values, prefix);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            for (; i < values.length && values[i].startsWith(prefix); i++) {
+                matches.set(positions[i]);
+            }
+        }
+    }
+
+    PackageListIndex(List<PackId> packIds) {
+        this.packIds = Collections.unmodifiableList(new ArrayList<PackId>(packIds));
+        int size = this.packIds.size();
+        this.pids = new String[size];
+        String[] groups = new String[size];
+        String[] names = new String[size];
+        String[] versions = new String[size];
+        for (int i = 0; i < size; i++) {
+            PackId packId = this.packIds.get(i);
+            pids[i] = lower(packId.toString());
+            groups[i] = lower(packId.getGroup());
+            names[i] = lower(packId.getName());
+            versions[i] = lower(packId.getVersion());
+        }
+        this.fields = new Field[]{new Field(groups), new Field(names), new Field(versions)};
+    }
+
+    private static String lower(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ENGLISH);
+    }
+
+    List<PackId> getPackIds() {
+        return packIds;
+    }
+
+    int size() {
+        return packIds.size();
+    }
+
+    /**
+     * Returns every package matching the query, prefix matches first.
+     *
+     * @param query the search text. A blank query matches every package.
+     * @return the matching packages
+     */
+    List<PackId> search(String query) {
+        String q = lower(query).trim();
+        if (q.isEmpty()) {
+            return packIds;
+        }
+
+        BitSet prefixMatches = new BitSet(packIds.size());
+        for (Field field : fields) {
+            field.matchPrefix(q, prefixMatches);
+        }
+
+        List<PackId> results = new ArrayList<PackId>();
+        for (int i = prefixMatches.nextSetBit(0); i >= 0; i = prefixMatches.nextSetBit(i + 1)) {
+            results.add(packIds.get(i));
+        }
+        for (int i = 0; i < pids.length; i++) {
+            if (!prefixMatches.get(i) && pids[i].contains(q)) {
+                results.add(packIds.get(i));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns one page of the packages matching the query.
+     *
+     * @param query    the search text
+     * @param page     the zero-based page number. It is clamped to the available pages.
+     * @param pageSize the number of packages per page
+     * @return the page of matches
+     */
+    Page search(String query, int page, int pageSize) {
+        List<PackId> matches = search(query);
+        int size = Math.max(1, pageSize);
+        int pageCount = Math.max(1, (matches.size() + size - 1) / size);
+        int current = Math.min(Math.max(0, page), pageCount - 1);
+        int from = current * size;
+        int to = Math.min(matches.size(), from + size);
+        return new Page(Collections.unmodifiableList(new ArrayList<PackId>(matches.subList(from, to))),
+                current, pageCount, matches.size());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.CheckForNull;
+
+/**
+ * The compiled form of the "Preempt Login for Base URLs" setting. The patterns are combined into a single
+ * alternation, so a base URL is matched in one pass that stops at the first matching pattern. Decisions are
+ * remembered per base URL, since the same few URLs are checked for every client execution.
+ */
+final class PreemptLoginPolicy implements Serializable {
+
+    private static final long serialVersionUID = -1539217207419082436L;
+
+    static final int MAX_DECISIONS = 256;
+
+    static final PreemptLoginPolicy NONE = new PreemptLoginPolicy("", Collections.<Pattern>emptyList());
+
+    /**
+     * Detects numbered or named backreferences, which would refer to the wrong groups once the patterns are combined
+     */
+    private static final Pattern BACKREFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+
+    private final String source;
+    private final List<Pattern> patterns;
+    private final Pattern combined;
+    private transient volatile ConcurrentMap<String, Boolean> decisions;
+
+    private PreemptLoginPolicy(String source, List<Pattern> patterns) {
+        this.source = source;
+        this.patterns = Collections.unmodifiableList(new ArrayList<Pattern>(patterns));
+        this.combined = combine(patterns);
+    }
+
+    /**
+     * Compiles the newline-separated, case-insensitive patterns of the setting.
+     *
+     * @param patterns the setting value
+     * @return the compiled policy
+     * @throws PatternSyntaxException if any pattern is invalid
+     */
+    static PreemptLoginPolicy compile(@CheckForNull String patterns) throws PatternSyntaxException {
+        if (patterns == null || patterns.trim().isEmpty()) {
+            return NONE;
+        }
+        return new PreemptLoginPolicy(patterns, GraniteClientGlobalConfig.getPreemptLoginPatterns(patterns));
+    }
+
+    @CheckForNull
+    private static Pattern combine(List<Pattern> patterns) {
+        if (patterns.isEmpty()) {
+            return null;
+        }
+        StringBuilder alternation = new StringBuilder();
+        for (Pattern pattern : patterns) {
+            if (BACKREFERENCE.matcher(pattern.pattern()).find()) {
+                return null;
+            }
+            if (alternation.length() > 0) {
+                alternation.append('|');
+            }
+            alternation.append("(?:").append(pattern.pattern()).append(')');
+        }
+        return Pattern.compile(alternation.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    String getSource() {
+        return source;
+    }
+
+    boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * @param baseUrl the base URL to check
+     * @return true if preemptive basic auth should be enabled for the base URL
+     */
+    boolean shouldPreemptLogin(@CheckForNull String baseUrl) {
+        if (baseUrl == null || baseUrl.trim().isEmpty() || patterns.isEmpty()) {
+            return false;
+        }
+
+        ConcurrentMap<String, Boolean> memo = this.decisions;
+        if (memo == null) {
+            memo = new ConcurrentHashMap<String, Boolean>();
+            this.decisions = memo;
+        }
+        Boolean decision = memo.get(baseUrl);
+        if (decision == null) {
+            decision = matches(baseUrl);
+            if (memo.size() >= MAX_DECISIONS) {
+                memo.clear();
+            }
+            memo.put(baseUrl, decision);
+        }
+        return decision;
+    }
+
+    private boolean matches(String baseUrl) {
+        if (combined != null) {
+            return combined.matcher(baseUrl).find();
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(baseUrl).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Reads the {@code dependencies} property from the {@code META-INF/vault/properties.xml} of a package file
+ */
+public class ReadPackageDependenciesCallable extends MasterToSlaveFileCallable<String> {
+
+    private static final long serialVersionUID = -5329116009476730817L;
+
+    static final String PROPERTIES_XML = "META-INF/vault/properties.xml";
+
+    /**
+     * @return the property value, or null if the package declares no dependencies
+     */
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        ZipFile zipFile = new ZipFile(f);
+        try {
+            ZipEntry entry = zipFile.getEntry(PROPERTIES_XML);
+            if (entry == null) {
+                return null;
+            }
+            Properties properties = new Properties();
+            InputStream in = zipFile.getInputStream(entry);
+            try {
+                properties.loadFromXML(in);
+            } finally {
+                in.close();
+            }
+            return properties.getProperty("dependencies");
+        } finally {
+            zipFile.close();
+        }
+    }
+}
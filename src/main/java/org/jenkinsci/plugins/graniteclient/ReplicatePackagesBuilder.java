@@ -56,6 +56,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static org.jenkinsci.plugins.graniteclient.BaseUrlUtil.splitByNewline;
 
@@ -63,6 +69,8 @@ import static org.jenkinsci.plugins.graniteclient.BaseUrlUtil.splitByNewline;
  * Implementation of the "Replicate Content Packages from CRX" build step
  */
 public class ReplicatePackagesBuilder extends AbstractBuildStep {
+    static final long DEFAULT_REPLICATION_TIMEOUT = 600L;
+
     private String packageIds;
     private String baseUrls;
     private String credentialsId = null;
@@ -70,6 +78,11 @@ public class ReplicatePackagesBuilder extends AbstractBuildStep {
     private long serviceTimeout = 0L;
     private long waitDelay = 0L;
     private boolean ignoreErrors = false;
+    private String dependencies = null;
+    private int maxParallelInstances = 1;
+    private int maxParallelPackages = 1;
+    private boolean waitForReplication = false;
+    private long replicationTimeout = DEFAULT_REPLICATION_TIMEOUT;
 
     @DataBoundConstructor
     public ReplicatePackagesBuilder(String packageIds, String baseUrls) {
@@ -97,32 +110,174 @@ public class ReplicatePackagesBuilder extends AbstractBuildStep {
             result = Result.SUCCESS;
         }
 
-        for (String baseUrl : listBaseUrls(build, workspace, listener)) {
-            if (result.isBetterOrEqualTo(Result.UNSTABLE)) {
-                GraniteClientConfig clientConfig =
-                        new GraniteClientConfig(GraniteAHCFactory.getGlobalConfig(), baseUrl,
-                                credentialsId, requestTimeout, serviceTimeout, waitDelay);
+        final List<List<PackId>> levels;
+        try {
+            levels = getReplicationLevels(listPackIds(build, workspace, listener),
+                    getDependencies(build, workspace, listener));
+        } catch (IllegalArgumentException e) {
+            listener.fatalError("Failed to order packages by dependencies: %s%n", e.getMessage());
+            build.setResult(result.combine(Result.FAILURE));
+            return;
+        }
+
+        if (levels.size() > 1) {
+            listener.getLogger().println("Replication plan:");
+            for (int i = 0; i < levels.size(); i++) {
+                listener.getLogger().printf("  %d: %s%n", i + 1, StringUtils.join(levels.get(i), ", "));
+            }
+        }
 
-                clientConfig.resolveCredentials();
+        List<InstanceGroup.Member> members =
+                GraniteAHCFactory.resolveInstances(listBaseUrls(build, workspace, listener));
+        if (getMaxParallelInstances() > 1 && members.size() > 1) {
+            result = result.combine(replicateConcurrently(members, levels, listener));
+        } else {
+            for (InstanceGroup.Member member : members) {
+                if (result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                    result = result.combine(replicateFromInstance(member, levels, listener));
+                }
+            }
+        }
 
-                ReplicatePackagesClientCallable callable = new ReplicatePackagesClientCallable(
-                        listener, listPackIds(build, workspace, listener), ignoreErrors);
+        build.setResult(result);
+    }
+
+    /**
+     * Replicates from up to {@link #getMaxParallelInstances()} instances at a time. A failure cancels the remaining
+     * instances, just as it skips them when replicating from one instance at a time.
+     */
+    private Result replicateConcurrently(List<InstanceGroup.Member> members, final List<List<PackId>> levels,
+                                         final TaskListener listener) throws InterruptedException {
+        listener.getLogger().printf("Replicating from %d instances with up to %d at a time.%n",
+                members.size(), getMaxParallelInstances());
+
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+        for (final InstanceGroup.Member member : members) {
+            tasks.add(new Callable<Result>() {
+                public Result call() throws Exception {
+                    return replicateFromInstance(member, levels, listener);
+                }
+            });
+        }
+        return runConcurrently(tasks, getMaxParallelInstances(), ignoreErrors, listener);
+    }
+
+    /**
+     * Runs up to {@code maxParallel} tasks at a time, combining their results as they complete. The first
+     * {@link Result#FAILURE} cancels the tasks which are still running or waiting, and is returned without waiting for
+     * them.
+     *
+     * @param tasks        the tasks to run
+     * @param maxParallel  the maximum number of tasks to run at the same time
+     * @param ignoreErrors true to treat a task which throws an exception as unstable rather than failed
+     * @param listener     the listener to report exceptions to
+     * @return the combined result
+     * @throws InterruptedException if interrupted while waiting, after cancelling the remaining tasks
+     */
+    static Result runConcurrently(List<Callable<Result>> tasks, int maxParallel, boolean ignoreErrors,
+                                  TaskListener listener) throws InterruptedException {
+        ExecutorService pool = ConcurrencyUtil.newFixedPool("replicate-instances", maxParallel);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        try {
+            CompletionService<Result> completions = new ExecutorCompletionService<Result>(pool);
+            for (Callable<Result> task : tasks) {
+                futures.add(completions.submit(task));
+            }
 
+            Result result = Result.SUCCESS;
+            for (int i = 0; i < futures.size(); i++) {
+                Result instanceResult;
                 try {
-                    result = result.combine(GraniteClientExecutor.execute(callable, clientConfig, listener));
-                } catch (Exception e) {
-                    e.printStackTrace(listener.fatalError(
-                            "Failed to replicate packages.", e.getMessage()));
-                    if (ignoreErrors) {
-                        result = result.combine(Result.UNSTABLE);
-                    } else {
-                        result = result.combine(Result.FAILURE);
-                    }
+                    instanceResult = completions.take().get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.fatalError(
+                            "Failed to replicate packages.", e.getCause().getMessage()));
+                    instanceResult = ignoreErrors ? Result.UNSTABLE : Result.FAILURE;
                 }
+                if (instanceResult == Result.FAILURE) {
+                    ConcurrencyUtil.cancelAll(futures);
+                    return Result.FAILURE;
+                }
+                result = result.combine(instanceResult);
             }
+            return result;
+        } catch (InterruptedException e) {
+            ConcurrencyUtil.cancelAll(futures);
+            throw e;
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        build.setResult(result);
+    private Result replicateFromInstance(InstanceGroup.Member member, List<List<PackId>> levels,
+                                         TaskListener listener) throws InterruptedException {
+        GraniteClientConfig clientConfig =
+                new GraniteClientConfig(GraniteAHCFactory.getGlobalConfig(), member.getBaseUrl(),
+                        member.getCredentialsId(credentialsId), requestTimeout, serviceTimeout, waitDelay);
+
+        clientConfig.resolveCredentials();
+
+        ReplicatePackagesClientCallable callable = new ReplicatePackagesClientCallable(
+                listener, levels, ignoreErrors, getMaxParallelPackages(), clientConfig,
+                isWaitForReplication() ? getReplicationTimeout() * 1000L : 0L);
+
+        InstanceThrottle.Permit permit = InstanceThrottle.acquire(member, listener);
+        try {
+            return GraniteClientExecutor.execute(callable, clientConfig, listener);
+        } catch (Exception e) {
+            e.printStackTrace(listener.fatalError(
+                    "Failed to replicate packages.", e.getMessage()));
+            if (ignoreErrors) {
+                return Result.UNSTABLE;
+            } else {
+                return Result.FAILURE;
+            }
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Groups the packages into levels that respect the declared dependencies. Each dependency line lists two or more
+     * package IDs separated by "->", where each package is replicated before the package that follows it. Without
+     * dependencies, all packages are in a single level.
+     *
+     * @param packIds      the packages to replicate
+     * @param dependencies the dependency lines
+     * @return the packages grouped into levels
+     * @throws IllegalArgumentException if a dependency names an invalid or unlisted package, or forms a cycle
+     */
+    static List<List<PackId>> getReplicationLevels(List<PackId> packIds, String dependencies) {
+        PackageDependencyGraph<PackId> graph = new PackageDependencyGraph<PackId>();
+        for (PackId packId : packIds) {
+            graph.addNode(packId);
+        }
+
+        for (String line : splitByNewline(dependencies == null ? "" : dependencies)) {
+            String spec = line.contains("#") ? line.substring(0, line.indexOf('#')) : line;
+            if (spec.trim().isEmpty()) {
+                continue;
+            }
+            PackId previous = null;
+            for (String pid : spec.split("->")) {
+                PackId packId = PackId.parsePid(pid.trim());
+                if (packId == null) {
+                    throw new IllegalArgumentException("Invalid package ID in dependency: " + line.trim());
+                } else if (!graph.contains(packId)) {
+                    throw new IllegalArgumentException("Dependency names a package which is not listed: " + packId);
+                }
+                if (previous != null) {
+                    graph.addDependency(packId, previous);
+                }
+                previous = packId;
+            }
+        }
+
+        try {
+            return graph.getLevels();
+        } catch (PackageDependencyGraph.CycleException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
     }
 
     public String getPackageIds() {
@@ -191,6 +346,64 @@ public class ReplicatePackagesBuilder extends AbstractBuildStep {
         return Collections.unmodifiableList(packIds);
     }
 
+    public boolean isWaitForReplication() {
+        return waitForReplication;
+    }
+
+    @DataBoundSetter
+    public void setWaitForReplication(boolean waitForReplication) {
+        this.waitForReplication = waitForReplication;
+    }
+
+    public long getReplicationTimeout() {
+        return replicationTimeout > 0L ? replicationTimeout : DEFAULT_REPLICATION_TIMEOUT;
+    }
+
+    @DataBoundSetter
+    public void setReplicationTimeout(long replicationTimeout) {
+        this.replicationTimeout = replicationTimeout;
+    }
+
+    public String getDependencies() {
+        return dependencies == null ? "" : dependencies;
+    }
+
+    @DataBoundSetter
+    public void setDependencies(String dependencies) {
+        if (StringUtils.isBlank(dependencies)) {
+            this.dependencies = null;
+        } else {
+            this.dependencies = dependencies;
+        }
+    }
+
+    private String getDependencies(Run<?, ?> build, FilePath workspace, TaskListener listener) {
+        try {
+            return TokenMacro.expandAll(build, workspace, listener, getDependencies());
+        } catch (Exception e) {
+            listener.error("failed to expand tokens in: %s%n", getDependencies());
+        }
+        return getDependencies();
+    }
+
+    public int getMaxParallelInstances() {
+        return maxParallelInstances > 0 ? maxParallelInstances : 1;
+    }
+
+    @DataBoundSetter
+    public void setMaxParallelInstances(int maxParallelInstances) {
+        this.maxParallelInstances = maxParallelInstances;
+    }
+
+    public int getMaxParallelPackages() {
+        return maxParallelPackages > 0 ? maxParallelPackages : 1;
+    }
+
+    @DataBoundSetter
+    public void setMaxParallelPackages(int maxParallelPackages) {
+        this.maxParallelPackages = maxParallelPackages;
+    }
+
     public long getRequestTimeout() {
         return requestTimeout;
     }
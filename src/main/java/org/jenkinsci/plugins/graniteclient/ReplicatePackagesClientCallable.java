@@ -7,52 +7,172 @@ import net.adamcin.granite.client.packman.PackageManagerClient;
 import net.adamcin.granite.client.packman.SimpleResponse;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class ReplicatePackagesClientCallable implements PackageManagerClientCallable<Result>, Serializable {
 
     private static final long serialVersionUID = -3352654487234220595L;
     private final TaskListener listener;
-    private final List<PackId> packIds;
+    private final List<List<PackId>> levels;
     private final boolean ignoreErrors;
-    
+    private final int maxParallelPackages;
+    private final GraniteClientConfig clientConfig;
+    private final long replicationTimeout;
+
     public ReplicatePackagesClientCallable(TaskListener listener, List<PackId> packIds, boolean ignoreErrors) {
-    	this.listener = listener;
-		this.packIds = packIds;
-		this.ignoreErrors = ignoreErrors;
-	}
-	
-	public Result doExecute(PackageManagerClient client) throws Exception {
-		Result result = Result.SUCCESS;
-        for (PackId packId : packIds) {
-            client.waitForService();
-            listener.getLogger().printf(
-                    "Checking for package %s on server %s%n", packId, client.getBaseUrl()
-            );
-            if (client.existsOnServer(packId)) {
-                listener.getLogger().printf("Found package: %s%n", client.getConsoleUiUrl(packId));
-                listener.getLogger().printf("Replicating %s from %s%n", packId, client.getConsoleUiUrl(packId));
-
-                SimpleResponse r_replicate = client.replicate(packId);
-                if (r_replicate.isSuccess()) {
-                    listener.getLogger().printf("Replication successful: %s%n", r_replicate.getMessage());
-                    result = result.combine(Result.SUCCESS);
-                } else {
-                    listener.fatalError(r_replicate.getMessage());
+        this(listener, Collections.singletonList(packIds), ignoreErrors, 1);
+    }
+
+    /**
+     * @param levels              the packages to replicate, grouped so that each package is replicated only after
+     *                            every package in the earlier groups
+     * @param maxParallelPackages the maximum number of packages to replicate at the same time
+     */
+    public ReplicatePackagesClientCallable(TaskListener listener, List<List<PackId>> levels, boolean ignoreErrors,
+                                           int maxParallelPackages) {
+        this(listener, levels, ignoreErrors, maxParallelPackages, null, 0L);
+    }
+
+    /**
+     * @param clientConfig       the config the client is created with, used to read the replication queues
+     * @param replicationTimeout if greater than zero, the number of milliseconds to wait for each replicated package
+     *                           to leave the replication queues
+     */
+    public ReplicatePackagesClientCallable(TaskListener listener, List<List<PackId>> levels, boolean ignoreErrors,
+                                           int maxParallelPackages, GraniteClientConfig clientConfig,
+                                           long replicationTimeout) {
+        this.listener = listener;
+        this.levels = levels;
+        this.ignoreErrors = ignoreErrors;
+        this.maxParallelPackages = Math.max(1, maxParallelPackages);
+        this.clientConfig = clientConfig;
+        this.replicationTimeout = clientConfig != null ? replicationTimeout : 0L;
+    }
+
+    public Result doExecute(final PackageManagerClient client) throws Exception {
+        final ReplicationQueueWatcher watcher = replicationTimeout > 0L
+                ? new ReplicationQueueWatcher(GraniteHttpSession.open(client, clientConfig, listener), listener) : null;
+
+        Result result = Result.SUCCESS;
+        ExecutorService pool = maxParallelPackages > 1
+                ? ConcurrencyUtil.newFixedPool("replicate", maxParallelPackages) : null;
+        try {
+            for (List<PackId> level : levels) {
+                if (level.isEmpty()) {
+                    continue;
+                }
+                client.waitForService();
+
+                Result levelResult = pool != null && level.size() > 1
+                        ? replicateLevel(pool, client, watcher, level) : replicateSerially(client, watcher, level);
+                if (levelResult == Result.FAILURE) {
                     return Result.FAILURE;
                 }
+                result = result.combine(levelResult);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
 
-            } else {
-                listener.error("Package %s does not exist on server.", packId);
-                if (ignoreErrors) {
-                    result = Result.UNSTABLE.combine(result);
-                } else  {
+        return result;
+    }
+
+    private Result replicateSerially(PackageManagerClient client, ReplicationQueueWatcher watcher,
+                                     List<PackId> packIds) throws Exception {
+        Result result = Result.SUCCESS;
+        for (PackId packId : packIds) {
+            Result packResult = replicatePackage(client, watcher, packId);
+            if (packResult == Result.FAILURE) {
+                return Result.FAILURE;
+            }
+            result = result.combine(packResult);
+        }
+        return result;
+    }
+
+    /**
+     * Replicates the packages of one level concurrently. A failure cancels the rest of the level unless errors are
+     * ignored.
+     */
+    private Result replicateLevel(ExecutorService pool, final PackageManagerClient client,
+                                  final ReplicationQueueWatcher watcher, List<PackId> packIds) throws Exception {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        try {
+            CompletionService<Result> completions = new ExecutorCompletionService<Result>(pool);
+            for (final PackId packId : packIds) {
+                futures.add(completions.submit(new Callable<Result>() {
+                    public Result call() throws Exception {
+                        return replicatePackage(client, watcher, packId);
+                    }
+                }));
+            }
+
+            Result result = Result.SUCCESS;
+            for (int i = 0; i < futures.size(); i++) {
+                Result packResult;
+                try {
+                    packResult = completions.take().get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("Failed to replicate package: %s",
+                            e.getCause().getMessage()));
+                    packResult = ignoreErrors ? Result.UNSTABLE : Result.FAILURE;
+                }
+
+                if (packResult == Result.FAILURE) {
+                    ConcurrencyUtil.cancelAll(futures);
                     return Result.FAILURE;
                 }
+                result = result.combine(packResult);
             }
+            return result;
+        } catch (InterruptedException e) {
+            ConcurrencyUtil.cancelAll(futures);
+            throw e;
         }
+    }
 
+    private Result replicatePackage(PackageManagerClient client, ReplicationQueueWatcher watcher, PackId packId)
+            throws Exception {
+        Result result = Result.SUCCESS;
+        listener.getLogger().printf(
+                "Checking for package %s on server %s%n", packId, client.getBaseUrl()
+        );
+        if (client.existsOnServer(packId)) {
+            listener.getLogger().printf("Found package: %s%n", client.getConsoleUiUrl(packId));
+            listener.getLogger().printf("Replicating %s from %s%n", packId, client.getConsoleUiUrl(packId));
+
+            long replicatedAt = System.currentTimeMillis();
+            SimpleResponse r_replicate = client.replicate(packId);
+            if (r_replicate.isSuccess()) {
+                listener.getLogger().printf("Replication successful: %s%n", r_replicate.getMessage());
+                result = result.combine(Result.SUCCESS);
+                if (watcher != null) {
+                    result = result.combine(watcher.awaitAndReport(packId, replicatedAt, replicationTimeout));
+                }
+            } else {
+                listener.fatalError(r_replicate.getMessage());
+                return Result.FAILURE;
+            }
+
+        } else {
+            listener.error("Package %s does not exist on server.", packId);
+            if (ignoreErrors) {
+                result = Result.UNSTABLE.combine(result);
+            } else  {
+                return Result.FAILURE;
+            }
+        }
         return result;
-	}
+    }
 
 }
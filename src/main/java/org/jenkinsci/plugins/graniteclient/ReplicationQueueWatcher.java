@@ -0,0 +1,194 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Waits for replicated packages to leave the author's replication agent queues. The replicate command only queues
+ * the package, so this is the earliest point at which the publishers are known to have received it. The queues are
+ * polled with a delay which starts short and doubles while the queues make no progress.
+ */
+final class ReplicationQueueWatcher {
+
+    static final String AGENTS_PATH = "/etc/replication/agents.author";
+
+    private static final long INITIAL_DELAY = 250L;
+    private static final long MAX_DELAY = 5000L;
+
+    private final GraniteHttpSession session;
+    private final TaskListener listener;
+    private List<String> agents;
+    private volatile long lastLatency = -1L;
+
+    ReplicationQueueWatcher(GraniteHttpSession session, TaskListener listener) {
+        this.session = session;
+        this.listener = listener;
+    }
+
+    /**
+     * Lists the enabled agents which replicate by default, once per watcher. Reverse replication agents and agents
+     * which are only triggered on demand are ignored, because a package replication does not use them.
+     *
+     * @return the agent names
+     * @throws IOException if the agents could not be listed
+     */
+    synchronized List<String> getAgents() throws IOException {
+        if (agents == null) {
+            JSONObject json = session.getJson(GraniteHttpSession.encodePath(AGENTS_PATH) + ".2.json");
+            List<String> names = new ArrayList<String>();
+            for (Iterator<?> keys = json.keys(); keys.hasNext(); ) {
+                String name = String.valueOf(keys.next());
+                JSONObject agent = json.optJSONObject(name);
+                JSONObject content = agent != null ? agent.optJSONObject("jcr:content") : null;
+                if (content != null
+                        && "true".equals(content.optString("enabled"))
+                        && !"true".equals(content.optString("reverseReplication"))
+                        && !"true".equals(content.optString("triggerSpecific"))) {
+                    names.add(name);
+                }
+            }
+            agents = Collections.unmodifiableList(names);
+        }
+        return agents;
+    }
+
+    /**
+     * Counts the entries for a path in all of the agent queues.
+     *
+     * @param path the replicated path
+     * @return the number of queued entries for the path
+     * @throws IOException if a queue could not be read
+     */
+    int countQueued(String path) throws IOException {
+        int queued = 0;
+        for (String agent : getAgents()) {
+            JSONObject json = session.getJson(GraniteHttpSession.encodePath(AGENTS_PATH + "/" + agent)
+                    + "/jcr:content.queue.json");
+            JSONObject status = json.optJSONObject("metaData") != null
+                    ? json.getJSONObject("metaData").optJSONObject("queueStatus") : null;
+            JSONArray queue = json.optJSONArray("queue");
+            int agentQueued = 0;
+            if (queue != null) {
+                for (int i = 0; i < queue.size(); i++) {
+                    JSONObject entry = queue.optJSONObject(i);
+                    if (entry != null && path.equals(entry.optString("path"))) {
+                        agentQueued++;
+                    }
+                }
+            }
+            if (agentQueued > 0 && status != null && status.optBoolean("isBlocked")) {
+                listener.error("Replication agent %s is blocked with %s in its queue.", agent, path);
+            }
+            queued += agentQueued;
+        }
+        return queued;
+    }
+
+    /**
+     * Polls the agent queues until they no longer contain the package.
+     *
+     * @param packId        the replicated package
+     * @param startedAt     when the package was replicated, in milliseconds since the epoch
+     * @param timeoutMillis how long to wait before giving up
+     * @return the replication latency in milliseconds, from {@code startedAt} until the queues drained
+     * @throws IOException          if a queue could not be read
+     * @throws InterruptedException if interrupted while waiting
+     * @throws TimeoutException     if the package is still queued after the timeout
+     */
+    long awaitReplication(PackId packId, long startedAt, long timeoutMillis)
+            throws IOException, InterruptedException, TimeoutException {
+        String path = packId.getInstallationPath() + ".zip";
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long delay = INITIAL_DELAY;
+        int lastQueued = Integer.MAX_VALUE;
+
+        while (true) {
+            int queued = countQueued(path);
+            long now = System.currentTimeMillis();
+            if (queued == 0) {
+                return now - startedAt;
+            } else if (now >= deadline) {
+                throw new TimeoutException(String.format("%s is still queued %d times after %d ms",
+                        packId, queued, now - startedAt));
+            }
+
+            if (queued >= lastQueued) {
+                delay = Math.min(MAX_DELAY, delay * 2);
+            }
+            lastQueued = queued;
+            TimeUnit.MILLISECONDS.sleep(Math.max(1L, Math.min(delay, deadline - now)));
+        }
+    }
+
+    /**
+     * Waits for the package to leave the agent queues, and logs the replication latency, which is then available
+     * from {@link #getLastLatency()}. A timeout or a failure to read the queues makes the result UNSTABLE, because
+     * the replication itself was accepted.
+     *
+     * @param packId        the replicated package
+     * @param startedAt     when the package was replicated, in milliseconds since the epoch
+     * @param timeoutMillis how long to wait before giving up
+     * @return the result of waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Result awaitAndReport(PackId packId, long startedAt, long timeoutMillis) throws InterruptedException {
+        listener.getLogger().printf("Waiting for %s to leave the replication queues.%n", packId);
+        try {
+            long latency = awaitReplication(packId, startedAt, timeoutMillis);
+            lastLatency = latency;
+            listener.getLogger().printf("Replication of %s completed in %d ms by %d replication agents.%n",
+                    packId, latency, getAgents().size());
+            return Result.SUCCESS;
+        } catch (TimeoutException e) {
+            listener.error("Timed out waiting for replication: %s", e.getMessage());
+        } catch (IOException e) {
+            listener.error("Failed to read the replication queues for %s: %s", packId, e.getMessage());
+        }
+        return Result.UNSTABLE;
+    }
+
+    /**
+     * @return the latency of the last package which this watcher saw leave the queues, or -1 if none did
+     */
+    long getLastLatency() {
+        return lastLatency;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import hudson.util.Secret;
+import net.adamcin.httpsig.api.KeyId;
+import net.adamcin.httpsig.api.Keychain;
+import net.adamcin.httpsig.ssh.jce.UserKeysFingerprintKeyId;
+
+/**
+ * A small in-memory LRU cache of the decoded keys of {@link SSHUserPrivateKey} credentials, so that HTTP Signature
+ * logins do not decode the PEM keys again for every connection. Entries are keyed by the credentials ID and a SHA-256
+ * fingerprint of the username, keys and passphrase, so changed credentials never match an old entry. Entries are
+ * never written to disk or serialized.
+ */
+final class SignatureKeyCache {
+
+    static final int MAX_ENTRIES = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Map<String, Entry> CACHE = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private SignatureKeyCache() {
+    }
+
+    /**
+     * The decoded keychain of a credential, with the key ID used to sign with it
+     */
+    static final class Entry {
+        private final Keychain keychain;
+        private final KeyId keyId;
+
+        private Entry(Keychain keychain, KeyId keyId) {
+            this.keychain = keychain;
+            this.keyId = keyId;
+        }
+
+        Keychain getKeychain() {
+            return keychain;
+        }
+
+        KeyId getKeyId() {
+            return keyId;
+        }
+    }
+
+    /**
+     * Returns the decoded keychain of the credentials. A keychain which failed to decode any key is returned but not
+     * cached.
+     *
+     * @param creds the credentials
+     * @return the cached or newly decoded entry
+     */
+    static Entry get(SSHUserPrivateKey creds) {
+        String cacheKey = getCacheKey(creds);
+        synchronized (CACHE) {
+            Entry entry = CACHE.get(cacheKey);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        Entry entry = new Entry(GraniteNamedIdCredentials.decodeKeychain(creds),
+                new UserKeysFingerprintKeyId(creds.getUsername()));
+        if (!entry.getKeychain().isEmpty()) {
+            synchronized (CACHE) {
+                CACHE.put(cacheKey, entry);
+            }
+        }
+        return entry;
+    }
+
+    static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    static int size() {
+        synchronized (CACHE) {
+            return CACHE.size();
+        }
+    }
+
+    static String getCacheKey(SSHUserPrivateKey creds) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported.", e);
+        }
+
+        update(digest, creds.getUsername());
+        for (String privateKey : creds.getPrivateKeys()) {
+            update(digest, privateKey);
+        }
+        update(digest, Secret.toString(creds.getPassphrase()));
+
+        StringBuilder key = new StringBuilder(creds.getId()).append('/');
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, @CheckForNull String value) {
+        if (value != null) {
+            digest.update(value.getBytes(UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+}
@@ -52,8 +52,18 @@ public class ValidateFileCallable extends MasterToSlaveFileCallable<Result> {
     }
 
     public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        return reportResult(listener, f, PackageValidator.validate(f, options));
+    }
 
-        final ValidationResult result = PackageValidator.validate(f, options);
+    /**
+     * Reports a validation result to the listener.
+     *
+     * @param listener the task listener
+     * @param f        the validated package file
+     * @param result   the validation result
+     * @return SUCCESS if the package is valid, FAILURE otherwise
+     */
+    static Result reportResult(TaskListener listener, File f, ValidationResult result) {
         if (result.getReason() == ValidationResult.Reason.SUCCESS) {
             return Result.SUCCESS;
         }
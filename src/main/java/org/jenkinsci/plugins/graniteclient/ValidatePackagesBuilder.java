@@ -215,17 +215,32 @@ public class ValidatePackagesBuilder extends AbstractBuildStep {
 
     private DefaultValidationOptions getValidationOptions(Run<?, ?> build, FilePath workspace, TaskListener listener)
             throws IOException, InterruptedException {
+        return createValidationOptions(isAllowNonCoveredRoots(),
+                getForbiddenExtensions(build, workspace, listener),
+                getPathsDeniedForInclusion(build, workspace, listener),
+                getForbiddenACHandlingModes(),
+                getForbiddenFilterRootPrefixes(build, workspace, listener),
+                getValidationFilter(build, workspace, listener));
+    }
+
+    /**
+     * Builds the validation options from already-expanded field values. Also used by the {@link DeployPackagesBuilder}
+     * when validation is enabled for deployment.
+     */
+    static DefaultValidationOptions createValidationOptions(boolean allowNonCoveredRoots, String forbiddenExtensions,
+                                                            String pathsDeniedForInclusion,
+                                                            List<ACHandling> forbiddenACHandlingModes,
+                                                            String forbiddenFilterRootPrefixes,
+                                                            String validationFilter) {
         DefaultValidationOptions options = new DefaultValidationOptions();
-        options.setAllowNonCoveredRoots(isAllowNonCoveredRoots());
-        options.setForbiddenExtensions(Arrays.asList(getForbiddenExtensions(build, workspace, listener).split("\r?\n")));
-        options.setPathsDeniedForInclusion(Arrays.asList(getPathsDeniedForInclusion(build, workspace, listener).split("\r?\n")));
-        options.setForbiddenACHandlingModes(getForbiddenACHandlingModes());
-        options.setForbiddenFilterRootPrefixes(Arrays.asList(getForbiddenFilterRootPrefixes(build, workspace, listener).split("\r?\n")));
-
-
-        String wspFilterString = getValidationFilter(build, workspace, listener);
-        WspFilter filter = StringUtils.isBlank(wspFilterString)
-                ? null : WspFilter.parseSimpleSpec(getValidationFilter(build, workspace, listener));
+        options.setAllowNonCoveredRoots(allowNonCoveredRoots);
+        options.setForbiddenExtensions(Arrays.asList(forbiddenExtensions.split("\r?\n")));
+        options.setPathsDeniedForInclusion(Arrays.asList(pathsDeniedForInclusion.split("\r?\n")));
+        options.setForbiddenACHandlingModes(forbiddenACHandlingModes);
+        options.setForbiddenFilterRootPrefixes(Arrays.asList(forbiddenFilterRootPrefixes.split("\r?\n")));
+
+        WspFilter filter = StringUtils.isBlank(validationFilter)
+                ? null : WspFilter.parseSimpleSpec(validationFilter);
         if (filter != null && !filter.getRoots().isEmpty()) {
             options.setValidationFilter(filter);
         }
@@ -0,0 +1,122 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+/*
+ * Loads the options of a CRX Content Package Choice Parameter one page at a time, filtered by the search box.
+ * Selected options are kept when the page or the search changes, so they are still submitted with the form.
+ */
+Behaviour.specify("DIV.crx-package-chooser", "crx-package-chooser", 0, function (chooser) {
+    var searchUrl = chooser.getAttribute("data-search-url");
+    var name = chooser.getAttribute("data-name");
+    var search = chooser.querySelector(".crx-package-search");
+    var select = chooser.querySelector("select");
+    var previous = chooser.querySelector(".crx-package-previous");
+    var next = chooser.querySelector(".crx-package-next");
+    var status = chooser.querySelector(".crx-package-status");
+
+    var page = 0;
+    var pageCount = 1;
+    var sequence = 0;
+    var timer = null;
+
+    function render(response) {
+        var kept = {};
+        for (var i = select.options.length - 1; i >= 0; i--) {
+            if (select.options[i].selected) {
+                kept[select.options[i].value] = true;
+            } else {
+                select.remove(i);
+            }
+        }
+        for (var j = 0; j < response.items.length; j++) {
+            var pid = response.items[j];
+            if (!kept[pid]) {
+                var option = new Option(pid, pid);
+                if (response.presence) {
+                    var instances = response.presence[pid] || [];
+                    option.text = pid + " (" + instances.length + "/" + response.instanceCount + ")";
+                    option.title = instances.join("\n");
+                }
+                select.appendChild(option);
+            }
+        }
+
+        page = response.page;
+        pageCount = response.pageCount;
+        previous.disabled = page <= 0;
+        next.disabled = page >= pageCount - 1;
+        status.textContent = "Page " + (page + 1) + " of " + pageCount + " (" + response.total + " packages)"
+            + (response.error ? ". " + response.error : "");
+    }
+
+    function load(requestedPage) {
+        var current = ++sequence;
+        var request = new XMLHttpRequest();
+        request.open("GET", searchUrl + "?name=" + encodeURIComponent(name)
+            + "&q=" + encodeURIComponent(search.value)
+            + "&page=" + requestedPage);
+        request.onreadystatechange = function () {
+            if (request.readyState !== 4 || current !== sequence) {
+                return;
+            }
+            if (request.status === 200) {
+                render(JSON.parse(request.responseText));
+            } else {
+                status.textContent = "Failed to load packages (HTTP " + request.status + ")";
+            }
+        };
+        status.textContent = "Loading...";
+        request.send();
+    }
+
+    search.addEventListener("input", function () {
+        if (timer) {
+            clearTimeout(timer);
+        }
+        timer = setTimeout(function () {
+            load(0);
+        }, 250);
+    });
+    search.addEventListener("keydown", function (event) {
+        // don't submit the build form from the search box
+        if (event.keyCode === 13) {
+            event.preventDefault();
+        }
+    });
+    previous.addEventListener("click", function () {
+        if (page > 0) {
+            load(page - 1);
+        }
+    });
+    next.addEventListener("click", function () {
+        if (page < pageCount - 1) {
+            load(page + 1);
+        }
+    });
+
+    load(0);
+});
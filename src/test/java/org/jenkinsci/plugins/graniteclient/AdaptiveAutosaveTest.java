@@ -0,0 +1,47 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveAutosaveTest {
+
+    @Test
+    public void testChoose() {
+        assertEquals("small packages keep the default", 1024, AdaptiveAutosave.choose(200, 50000L, 0));
+        assertEquals(1024, AdaptiveAutosave.choose(1024, 50000L, 5000));
+        assertEquals("without history, about 16 batches", 4096, AdaptiveAutosave.choose(100000, 10000000L, 0));
+        assertEquals("about 5 seconds of work", 16384, AdaptiveAutosave.choose(200000, 20000000L, 4000));
+        assertEquals("never more than the package", 2048, AdaptiveAutosave.choose(3000, 300000L, 4000));
+        assertEquals("large entries save in smaller batches", 1024,
+                AdaptiveAutosave.choose(20000, 20000L * 1024L * 1024L, 4000));
+        assertEquals(65536, AdaptiveAutosave.choose(10000000, 100000000L, 1000000));
+    }
+}
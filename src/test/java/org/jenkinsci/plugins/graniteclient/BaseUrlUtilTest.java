@@ -1,5 +1,8 @@
 package org.jenkinsci.plugins.graniteclient;
 
+import java.util.Arrays;
+
+import hudson.util.FormValidation;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,4 +43,21 @@ public class BaseUrlUtilTest {
                 3, BaseUrlUtil.splitByNewline(threeValuesSepByEscape).size());
 
     }
+
+    @Test
+    public void testFormatConnectionTests() {
+        FormValidation allOk = BaseUrlUtil.formatConnectionTests(Arrays.asList(
+                new BaseUrlUtil.ConnectionTest("https://author1:4502", true, "Success", 12L, 340L),
+                new BaseUrlUtil.ConnectionTest("http://author2:4502", true, "Success", -1L, 150L)));
+        assertEquals(FormValidation.Kind.OK, allOk.kind);
+        assertTrue(allOk.renderHtml().contains("12 ms"));
+        assertTrue("the handshake should be labelled as a separate probe", allOk.renderHtml().contains("TLS Probe"));
+
+        FormValidation oneFailed = BaseUrlUtil.formatConnectionTests(Arrays.asList(
+                new BaseUrlUtil.ConnectionTest("https://author1:4502", true, "Success", 12L, 340L),
+                new BaseUrlUtil.ConnectionTest("http://dead:4502", false, "Timed out <after> 60000 ms", -1L, -1L)));
+        assertEquals("any failed URL should fail the test", FormValidation.Kind.ERROR, oneFailed.kind);
+        assertTrue("each URL should be reported", oneFailed.renderHtml().contains("author1"));
+        assertTrue("messages should be escaped", oneFailed.renderHtml().contains("&lt;after&gt;"));
+    }
 }
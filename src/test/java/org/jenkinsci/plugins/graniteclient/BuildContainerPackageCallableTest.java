@@ -0,0 +1,91 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.zip.ZipFile;
+
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class BuildContainerPackageCallableTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testInvoke() throws Exception {
+        PackId core = PackId.createPackId("acme", "core", "1.0.0");
+        PackId config = PackId.createPackId("acme", "config", "1.0.0");
+        File coreFile = tempFolder.newFile("core.zip");
+        File configFile = tempFolder.newFile("config.zip");
+        FileUtils.writeByteArrayToFile(coreFile, new byte[]{1, 2, 3});
+        FileUtils.writeByteArrayToFile(configFile, new byte[]{4, 5});
+
+        LinkedHashMap<PackId, String> packageFiles = new LinkedHashMap<PackId, String>();
+        packageFiles.put(core, coreFile.getAbsolutePath());
+        packageFiles.put(config, configFile.getAbsolutePath());
+        PackId containerId = PackId.createPackId("jenkins-batch", "batch-1", "1.0");
+        File container = new File(tempFolder.getRoot(), "batch/container.zip");
+
+        BuildContainerPackageCallable callable = new BuildContainerPackageCallable(containerId, packageFiles);
+        long length = callable.invoke(container, null);
+        assertEquals(container.length(), length);
+
+        ZipFile zip = new ZipFile(container);
+        try {
+            Properties properties = new Properties();
+            InputStream in = zip.getInputStream(zip.getEntry(ReadPackageDependenciesCallable.PROPERTIES_XML));
+            try {
+                properties.loadFromXML(in);
+            } finally {
+                in.close();
+            }
+            assertEquals("batch-1", properties.getProperty("name"));
+
+            String filter = IOUtils.toString(zip.getInputStream(
+                    zip.getEntry(BuildContainerPackageCallable.FILTER_XML)), "UTF-8");
+            assertTrue(filter.contains("root=\"/etc/packages/acme/core-1.0.0.zip\""));
+            assertTrue(filter.contains("root=\"/etc/packages/acme/config-1.0.0.zip\""));
+
+            assertArrayEquals(new byte[]{1, 2, 3}, IOUtils.toByteArray(
+                    zip.getInputStream(zip.getEntry("jcr_root/etc/packages/acme/core-1.0.0.zip"))));
+        } finally {
+            zip.close();
+        }
+    }
+}
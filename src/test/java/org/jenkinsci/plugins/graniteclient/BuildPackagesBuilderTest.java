@@ -0,0 +1,77 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.WspFilter;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BuildPackagesBuilderTest {
+
+    @Test
+    public void testParsePackageSpecs() {
+        PackId content = PackId.createPackId("acme", "acme-content", "1.0");
+        PackId dam = PackId.createPackId("acme", "acme-dam", "1.0");
+        PackId existing = PackId.createPackId("acme", "acme-existing", "1.0");
+
+        LinkedHashMap<PackId, WspFilter> packages = BuildPackagesBuilder.parsePackageSpecs(
+                "# comment\n"
+                        + "acme:acme-content:1.0  # the site content\n"
+                        + "/content/acme\n"
+                        + "-/content/acme/archive(/.*)?\n"
+                        + "\n"
+                        + "acme:acme-dam:1.0\r\n"
+                        + "/content/dam/acme\r\n"
+                        + "acme:acme-existing:1.0\n");
+
+        assertEquals("packages should be listed in order",
+                Arrays.asList(content, dam, existing), new ArrayList<PackId>(packages.keySet()));
+        assertEquals("content filter should have one root", 1, packages.get(content).getRoots().size());
+        assertEquals("content filter root should have one rule",
+                1, packages.get(content).getRoots().get(0).getRules().size());
+        assertEquals("dam filter should have one root", "/content/dam/acme",
+                packages.get(dam).getRoots().get(0).getPath());
+        assertNull("package without filter lines should keep its filter", packages.get(existing));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParsePackageSpecsFilterFirst() {
+        BuildPackagesBuilder.parsePackageSpecs("/content/acme\nacme:acme-content:1.0\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParsePackageSpecsDuplicate() {
+        BuildPackagesBuilder.parsePackageSpecs("acme:acme-content:1.0\nacme:acme-content:1.0\n");
+    }
+}
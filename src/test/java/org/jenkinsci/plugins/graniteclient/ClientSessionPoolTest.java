@@ -0,0 +1,218 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.FilePath;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ClientSessionPoolTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final TaskListener listener = new StreamBuildListener(new NullOutputStream());
+    private final AtomicInteger logins = new AtomicInteger();
+    private final String poolId = UUID.randomUUID().toString();
+
+    private HttpServer server;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(GraniteHttpSession.LOGIN_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                logins.incrementAndGet();
+                exchange.getResponseHeaders().add("Set-Cookie", "login-token=abc123; Path=/");
+                byte[] body = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        ClientSessionPool.close(poolId);
+        server.stop(0);
+    }
+
+    private GraniteClientConfig createConfig(String baseUrl, String credentialsId, String sessionPoolId) {
+        GraniteClientConfig config = new GraniteClientConfig(
+                new GraniteClientGlobalConfig(null, null, 0, 0, 0, null), baseUrl, credentialsId);
+        config.resolveCredentials();
+        config.setSessionPoolId(sessionPoolId);
+        return config;
+    }
+
+    private ClientSessionPool.Session newSession(GraniteClientConfig config) {
+        AsyncHttpClient ahcClient = new AsyncHttpClient();
+        return new ClientSessionPool.Session(config.getSessionPoolId(), config, ahcClient,
+                new AsyncPackageManagerClient(ahcClient));
+    }
+
+    private static AsyncHttpClient getHttpClient(ClientSessionPool.Session session) {
+        return session.getClient().getClient();
+    }
+
+    @Test
+    public void testSessionsArePooledPerStepAndCredentials() {
+        GraniteClientConfig config = createConfig(baseUrl, "deployer", poolId);
+        ClientSessionPool.Session session = newSession(config);
+        ClientSessionPool.release(session, true);
+
+        assertNull("another step should not borrow the session",
+                ClientSessionPool.acquire(UUID.randomUUID().toString(), config));
+        assertNull("other credentials should not borrow the session",
+                ClientSessionPool.acquire(poolId, createConfig(baseUrl, "reader", poolId)));
+        assertNull("another instance should not borrow the session",
+                ClientSessionPool.acquire(poolId, createConfig("http://localhost:1", "deployer", poolId)));
+
+        assertSame(session, ClientSessionPool.acquire(poolId, config));
+        assertNull("a session is lent to one caller at a time", ClientSessionPool.acquire(poolId, config));
+        ClientSessionPool.release(session, true);
+    }
+
+    @Test
+    public void testFailedSessionIsClosed() {
+        GraniteClientConfig config = createConfig(baseUrl, "deployer", poolId);
+        ClientSessionPool.Session session = newSession(config);
+        ClientSessionPool.release(session, false);
+
+        assertTrue(getHttpClient(session).isClosed());
+        assertNull(ClientSessionPool.acquire(poolId, config));
+    }
+
+    @Test
+    public void testCloseSessions() throws Exception {
+        String otherPoolId = UUID.randomUUID().toString();
+        ClientSessionPool.Session first = newSession(createConfig(baseUrl, "deployer", poolId));
+        ClientSessionPool.Session second = newSession(createConfig(baseUrl, "reader", poolId));
+        ClientSessionPool.Session other = newSession(createConfig(baseUrl, "deployer", otherPoolId));
+        ClientSessionPool.release(first, true);
+        ClientSessionPool.release(second, true);
+        ClientSessionPool.release(other, true);
+
+        try {
+            DeployPackagesBuilder.closeSessions(new FilePath(tempFolder.getRoot()), poolId, listener);
+            assertTrue(getHttpClient(first).isClosed());
+            assertTrue(getHttpClient(second).isClosed());
+            assertFalse("the sessions of other steps should stay open", getHttpClient(other).isClosed());
+            assertNull(ClientSessionPool.acquire(poolId, createConfig(baseUrl, "deployer", poolId)));
+        } finally {
+            assertEquals(1, ClientSessionPool.close(otherPoolId));
+        }
+    }
+
+    @Test
+    public void testExecutePooled() throws Exception {
+        GraniteClientConfig config = createConfig(baseUrl, "", poolId);
+        PackageManagerClientCallable<String> callable = new PackageManagerClientCallable<String>() {
+            public String doExecute(PackageManagerClient client) throws Exception {
+                return client.getBaseUrl();
+            }
+        };
+
+        assertEquals(baseUrl, GraniteClientExecutor.execute(callable, config, listener));
+        assertEquals(baseUrl, GraniteClientExecutor.execute(callable, config, listener));
+        assertEquals("the second execution should reuse the logged-in client", 1, logins.get());
+
+        try {
+            GraniteClientExecutor.execute(new PackageManagerClientCallable<String>() {
+                public String doExecute(PackageManagerClient client) throws Exception {
+                    throw new IOException("connection reset");
+                }
+            }, config, listener);
+            fail("the exception should be rethrown");
+        } catch (IOException e) {
+            assertEquals("connection reset", e.getMessage());
+        }
+        assertEquals(baseUrl, GraniteClientExecutor.execute(callable, config, listener));
+        assertEquals("a client which failed should be replaced", 2, logins.get());
+    }
+
+    @Test
+    public void testFallbackWhenWarmUpFails() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        String unreachableUrl = "http://localhost:" + closed.getLocalPort();
+        closed.close();
+
+        GraniteClientConfig unreachable = createConfig(unreachableUrl, "", poolId);
+        GraniteClientConfig reachable = createConfig(baseUrl, "", poolId);
+        List<String> failures = new ConnectionWarmUpCallable(Collections.singletonList(unreachable), listener)
+                .invoke(tempFolder.getRoot(), null);
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0).startsWith(unreachableUrl + ": "));
+        assertNull("nothing should be pooled for an instance which was not reached",
+                ClientSessionPool.acquire(poolId, unreachable));
+
+        assertNull(ClientSessionPool.acquire(poolId, reachable));
+        assertEquals("an execution without a warmed up client should open its own", baseUrl,
+                GraniteClientExecutor.execute(new PackageManagerClientCallable<String>() {
+                    public String doExecute(PackageManagerClient client) throws Exception {
+                        return client.getBaseUrl();
+                    }
+                }, reachable, listener));
+        assertEquals(1, logins.get());
+        ClientSessionPool.Session session = ClientSessionPool.acquire(poolId, reachable);
+        assertNotNull("the new client should join the pool", session);
+        ClientSessionPool.release(session, true);
+    }
+}
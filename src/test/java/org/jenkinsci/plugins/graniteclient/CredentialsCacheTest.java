@@ -0,0 +1,85 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CredentialsCacheTest {
+
+    private static final Credentials CREDENTIALS = (Credentials) Proxy.newProxyInstance(
+            CredentialsCacheTest.class.getClassLoader(), new Class<?>[]{Credentials.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return null;
+                }
+            });
+
+    private static final class CountingLoader implements CredentialsCache.Loader {
+        final AtomicInteger loads = new AtomicInteger();
+
+        public Credentials load(String credentialsId) {
+            loads.incrementAndGet();
+            return "found".equals(credentialsId) ? CREDENTIALS : null;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        CredentialsCache.invalidateAll();
+    }
+
+    @Test
+    public void testLookupsAreCached() {
+        CountingLoader loader = new CountingLoader();
+        assertSame(CREDENTIALS, CredentialsCache.get("found", loader));
+        assertSame(CREDENTIALS, CredentialsCache.get("found", loader));
+        assertNull(CredentialsCache.get("missing", loader));
+        assertNull("missing IDs should be cached too", CredentialsCache.get("missing", loader));
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        CountingLoader loader = new CountingLoader();
+        CredentialsCache.get("found", loader);
+        CredentialsCache.get("missing", loader);
+        CredentialsCache.invalidateAll();
+        CredentialsCache.get("found", loader);
+        CredentialsCache.get("missing", loader);
+        assertEquals("invalidated entries should be loaded again", 4, loader.loads.get());
+    }
+}
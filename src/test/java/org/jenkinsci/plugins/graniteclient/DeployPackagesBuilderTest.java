@@ -0,0 +1,129 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import hudson.FilePath;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import net.adamcin.granite.client.packman.ACHandling;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.validation.DefaultValidationOptions;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class DeployPackagesBuilderTest {
+
+    private static final PackId CORE = PackId.createPackId("acme", "core", "1.0.0");
+    private static final PackId CONFIG = PackId.createPackId("acme", "config", "1.0.0");
+    private static final PackId CONTENT = PackId.createPackId("acme", "content", "1.0.0");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Builds a package whose filter covers /etc/packages/acme
+     */
+    private FilePath createPackage(PackId packId) throws Exception {
+        File content = tempFolder.newFile(packId.getName() + "-content.zip");
+        FileUtils.writeByteArrayToFile(content, new byte[]{1, 2, 3});
+        LinkedHashMap<PackId, String> subPackages = new LinkedHashMap<PackId, String>();
+        subPackages.put(PackId.createPackId("acme", packId.getName() + "-sub", "1.0.0"), content.getAbsolutePath());
+        File file = new File(tempFolder.getRoot(), packId.getName() + ".zip");
+        new BuildContainerPackageCallable(packId, subPackages).invoke(file, null);
+        return new FilePath(file);
+    }
+
+    private static DefaultValidationOptions createOptions(String validationFilter) {
+        return ValidatePackagesBuilder.createValidationOptions(false, "", "",
+                Collections.<ACHandling>emptyList(), "", validationFilter);
+    }
+
+    @Test
+    public void testValidatePackages() throws Exception {
+        Map<PackId, FilePath> files = new HashMap<PackId, FilePath>();
+        files.put(CORE, createPackage(CORE));
+        files.put(CONFIG, createPackage(CONFIG));
+        files.put(CONTENT, createPackage(CONTENT));
+        List<List<PackId>> levels = Arrays.asList(Arrays.asList(CORE), Arrays.asList(CONFIG, CONTENT));
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        assertTrue(DeployPackagesBuilder.validatePackages(levels, files, createOptions("/etc/packages/acme"),
+                new StreamBuildListener(log)));
+        assertTrue(log.toString("UTF-8").contains("Validating " + CONTENT));
+    }
+
+    @Test
+    public void testValidatePackagesViolation() throws Exception {
+        Map<PackId, FilePath> files = new HashMap<PackId, FilePath>();
+        files.put(CORE, createPackage(CORE));
+        files.put(CONFIG, new FilePath(new File(tempFolder.getRoot(), "missing.zip")));
+        List<List<PackId>> levels = Arrays.asList(Arrays.asList(CORE), Arrays.asList(CONFIG));
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        assertFalse("a filter root outside of the validation filter aborts the deployment",
+                DeployPackagesBuilder.validatePackages(levels, files, createOptions("/content/acme"),
+                        new StreamBuildListener(log)));
+        String output = log.toString("UTF-8");
+        assertTrue(output.contains("Package " + CORE + " failed validation. No packages were deployed."));
+        assertFalse("packages after the violation are not checked", output.contains("Validating " + CONFIG));
+    }
+
+    @Test
+    public void testTimedDeploymentWithoutInstall() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        String baseUrl = "http://localhost:" + closed.getLocalPort();
+        closed.close();
+
+        GraniteClientConfig config = new GraniteClientConfig(
+                new GraniteClientGlobalConfig(null, null, 0, 0, 0, null), baseUrl, "");
+        config.resolveCredentials();
+        DeployPackageCallable callable = new DeployPackageCallable(config,
+                new StreamBuildListener(new ByteArrayOutputStream()), CORE,
+                new PackageInstallOptions(false, 1024, null, false), ExistingPackageBehavior.OVERWRITE);
+
+        File file = new File(createPackage(CORE).getRemote());
+        DeployPackageCallable.Outcome outcome = callable.timed().invoke(file, null);
+        assertEquals(Result.FAILURE, outcome.getResult());
+        assertEquals("no install time should be reported without an install", -1L, outcome.getInstallMillis());
+        assertEquals(-1, outcome.getInstalledEntries());
+    }
+}
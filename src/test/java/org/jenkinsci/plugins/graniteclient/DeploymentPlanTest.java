@@ -0,0 +1,117 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeploymentPlanTest {
+
+    private static final PackId CORE = PackId.createPackId("acme", "core", "1.0.0");
+    private static final PackId CONFIG = PackId.createPackId("acme", "config", "1.0.0");
+    private static final PackId CONTENT = PackId.createPackId("acme", "content", "1.0.0");
+
+    @Test
+    public void testParseDependencies() {
+        assertEquals(Arrays.asList("acme:core:[1.0,2.0)", "acme:config", "acme:content:1.0"),
+                DeploymentPlan.parseDependencies(" acme:core:[1.0,2.0), acme:config,acme:content:1.0 ,"));
+        assertTrue(DeploymentPlan.parseDependencies(null).isEmpty());
+        assertEquals("acme:core", DeploymentPlan.getGroupAndName("acme:core:[1.0,2.0)"));
+    }
+
+    @Test
+    public void testLevels() throws Exception {
+        Map<PackId, String> dependencies = new HashMap<PackId, String>();
+        dependencies.put(CONTENT, "acme:core:[1.0,2.0),acme:config");
+        dependencies.put(CONFIG, "acme:core,day/cq60/product:cq-content:6.3");
+
+        DeploymentPlan plan = DeploymentPlan.create(Arrays.asList(CONTENT, CONFIG, CORE), dependencies);
+        List<List<PackId>> levels = plan.getLevels();
+        assertEquals(Arrays.asList(Arrays.asList(CORE), Arrays.asList(CONFIG), Arrays.asList(CONTENT)), levels);
+        assertEquals("dependencies which are not selected should be reported",
+                Arrays.asList(CONFIG + " requires day/cq60/product:cq-content:6.3"), plan.getExternalDependencies());
+    }
+
+    @Test
+    public void testIndependentPackagesShareALevel() throws Exception {
+        Map<PackId, String> dependencies = new HashMap<PackId, String>();
+        dependencies.put(CONTENT, "acme:core");
+        dependencies.put(CONFIG, "acme:core");
+
+        DeploymentPlan plan = DeploymentPlan.create(Arrays.asList(CORE, CONFIG, CONTENT), dependencies);
+        assertEquals(Arrays.asList(Arrays.asList(CORE), Arrays.asList(CONFIG, CONTENT)), plan.getLevels());
+    }
+
+    @Test(expected = PackageDependencyGraph.CycleException.class)
+    public void testCycle() throws Exception {
+        Map<PackId, String> dependencies = new HashMap<PackId, String>();
+        dependencies.put(CORE, "acme:content");
+        dependencies.put(CONTENT, "acme:core");
+        DeploymentPlan.create(Arrays.asList(CORE, CONTENT), dependencies);
+    }
+
+    @Test
+    public void testPlanWaves() {
+        List<String> instances = Arrays.asList("a", "b", "c", "d", "e", "f");
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b", "c"), Arrays.asList("d", "e"),
+                Arrays.asList("f")), DeploymentPlan.planWaves(instances, true, 2));
+        assertEquals(Arrays.asList(Arrays.asList("a", "b", "c", "d"), Arrays.asList("e", "f")),
+                DeploymentPlan.planWaves(instances, false, 4));
+        assertEquals(6, DeploymentPlan.planWaves(instances, false, 0).size());
+        assertTrue(DeploymentPlan.planWaves(Arrays.<String>asList(), true, 2).isEmpty());
+    }
+
+    @Test
+    public void testWithContainer() throws Exception {
+        PackId container = PackId.createPackId("jenkins-batch", "batch-1", "1.0");
+        DeploymentPlan plan = DeploymentPlan.create(Arrays.asList(CORE, CONFIG, CONTENT),
+                new HashMap<PackId, String>()).withContainer(0, container, Arrays.asList(CORE, CONTENT));
+
+        assertEquals(Arrays.asList(Arrays.asList(container, CONFIG)), plan.getLevels());
+        assertEquals(Arrays.asList(CORE, CONTENT), plan.getSubPackages(container));
+        assertNull(plan.getSubPackages(CONFIG));
+    }
+
+    @Test
+    public void testLongestFirst() {
+        Map<String, Long> estimates = new HashMap<String, Long>();
+        estimates.put("a", 10L);
+        estimates.put("b", 300L);
+        estimates.put("c", 10L);
+        estimates.put("e", 50L);
+        assertEquals(Arrays.asList("b", "e", "a", "c", "d"),
+                DeploymentPlan.longestFirst(Arrays.asList("a", "b", "c", "d", "e"), estimates));
+    }
+}
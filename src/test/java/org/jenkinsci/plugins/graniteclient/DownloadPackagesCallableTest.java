@@ -0,0 +1,214 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadPackagesCallableTest {
+
+    private final TaskListener listener = new StreamBuildListener(new NullOutputStream());
+
+    private static List<PackId> packIds(int count) {
+        List<PackId> packIds = new ArrayList<PackId>();
+        for (int i = 0; i < count; i++) {
+            packIds.add(PackId.createPackId("acme", "package-" + i, "1.0"));
+        }
+        return packIds;
+    }
+
+    /**
+     * Records the packages fetched and the most fetches that overlapped
+     */
+    private static class RecordingSteps implements DownloadPackagesCallable.PackageSteps {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final List<PackId> fetched = Collections.synchronizedList(new ArrayList<PackId>());
+
+        public DownloadPackagesCallable.Prepared prepare(PackId packId) throws Exception {
+            return new DownloadPackagesCallable.Prepared(Result.SUCCESS, true);
+        }
+
+        public Result fetch(PackId packId, Result result) throws Exception {
+            int now = active.incrementAndGet();
+            synchronized (maxActive) {
+                maxActive.set(Math.max(maxActive.get(), now));
+            }
+            try {
+                Thread.sleep(50L);
+            } finally {
+                active.decrementAndGet();
+            }
+            fetched.add(packId);
+            return result;
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void testDownloadParallel() throws Exception {
+        List<PackId> packIds = packIds(6);
+        RecordingSteps steps = new RecordingSteps();
+        DownloadPackagesCallable callable =
+                new DownloadPackagesCallable(null, listener, packIds, false, false, 2);
+
+        assertEquals(Result.SUCCESS, callable.downloadParallel(steps));
+        assertEquals("every package is fetched", 6, steps.fetched.size());
+        assertTrue("fetches overlap", steps.maxActive.get() > 1);
+        assertTrue("no more than 2 fetches at a time", steps.maxActive.get() <= 2);
+    }
+
+    @Test(timeout = 10000L)
+    public void testDownloadParallelMissingPackage() throws Exception {
+        final List<PackId> packIds = packIds(4);
+        RecordingSteps steps = new RecordingSteps() {
+            @Override
+            public DownloadPackagesCallable.Prepared prepare(PackId packId) throws Exception {
+                if (packId.equals(packIds.get(0))) {
+                    return new DownloadPackagesCallable.Prepared(Result.FAILURE, false);
+                }
+                return super.prepare(packId);
+            }
+        };
+
+        assertEquals(Result.FAILURE,
+                new DownloadPackagesCallable(null, listener, packIds, false, false, 2).downloadParallel(steps));
+        assertFalse(steps.fetched.contains(packIds.get(0)));
+    }
+
+    @Test(timeout = 10000L)
+    public void testDownloadParallelIgnoreErrors() throws Exception {
+        final List<PackId> packIds = packIds(4);
+        RecordingSteps steps = new RecordingSteps() {
+            @Override
+            public Result fetch(PackId packId, Result result) throws Exception {
+                if (packId.equals(packIds.get(1))) {
+                    throw new IllegalStateException("connection reset");
+                }
+                return super.fetch(packId, result);
+            }
+        };
+
+        assertEquals(Result.UNSTABLE,
+                new DownloadPackagesCallable(null, listener, packIds, true, false, 2).downloadParallel(steps));
+        assertEquals("the other downloads continue", 3, steps.fetched.size());
+        assertEquals(Result.FAILURE,
+                new DownloadPackagesCallable(null, listener, packIds, false, false, 2).downloadParallel(steps));
+    }
+
+    private DownloadPackagesCallable pipelined(List<PackId> packIds, boolean ignoreErrors) {
+        return new DownloadPackagesCallable(null, listener, packIds, ignoreErrors, true, 1, null, 0L, 0, true, 1);
+    }
+
+    @Test(timeout = 10000L)
+    public void testDownloadPipelinedOverlapsRebuilds() throws Exception {
+        final List<PackId> packIds = packIds(2);
+        final CountDownLatch nextPrepared = new CountDownLatch(1);
+        RecordingSteps steps = new RecordingSteps() {
+            @Override
+            public DownloadPackagesCallable.Prepared prepare(PackId packId) throws Exception {
+                if (packId.equals(packIds.get(1))) {
+                    nextPrepared.countDown();
+                }
+                return super.prepare(packId);
+            }
+
+            @Override
+            public Result fetch(PackId packId, Result result) throws Exception {
+                if (packId.equals(packIds.get(0))) {
+                    assertTrue("the next package should rebuild while the first one downloads",
+                            nextPrepared.await(5L, TimeUnit.SECONDS));
+                }
+                return super.fetch(packId, result);
+            }
+        };
+
+        assertEquals(Result.SUCCESS, pipelined(packIds, false).downloadPipelined(steps));
+        assertEquals(packIds, steps.fetched);
+    }
+
+    @Test(timeout = 10000L)
+    public void testDownloadPipelinedRebuildFails() throws Exception {
+        final List<PackId> packIds = packIds(3);
+        RecordingSteps steps = new RecordingSteps() {
+            @Override
+            public DownloadPackagesCallable.Prepared prepare(PackId packId) throws Exception {
+                if (packId.equals(packIds.get(1))) {
+                    throw new IllegalStateException("build failed");
+                }
+                return super.prepare(packId);
+            }
+        };
+
+        assertEquals(Result.UNSTABLE, pipelined(packIds, true).downloadPipelined(steps));
+        assertEquals("the other packages are downloaded", 2, steps.fetched.size());
+        assertFalse(steps.fetched.contains(packIds.get(1)));
+
+        assertEquals(Result.FAILURE, pipelined(packIds, false).downloadPipelined(steps));
+    }
+
+    @Test(timeout = 10000L)
+    public void testDownloadPipelinedMissingPackage() throws Exception {
+        final List<PackId> packIds = packIds(2);
+        RecordingSteps steps = new RecordingSteps() {
+            @Override
+            public DownloadPackagesCallable.Prepared prepare(PackId packId) throws Exception {
+                if (packId.equals(packIds.get(0))) {
+                    return new DownloadPackagesCallable.Prepared(Result.FAILURE, false);
+                }
+                return super.prepare(packId);
+            }
+        };
+
+        assertEquals(Result.FAILURE, pipelined(packIds, false).downloadPipelined(steps));
+        assertFalse(steps.fetched.contains(packIds.get(0)));
+    }
+
+    @Test
+    public void testOverlap() {
+        List<long[]> builds = Arrays.asList(new long[]{0L, 10L}, new long[]{30L, 40L}, new long[]{5L, 20L});
+        List<long[]> downloads = Arrays.asList(new long[]{15L, 35L}, new long[]{8L, 12L});
+
+        assertEquals("builds are merged before intersecting", 2, DownloadPackagesCallable.union(builds).size());
+        assertEquals(4L + 5L + 5L, DownloadPackagesCallable.overlap(builds, downloads));
+        assertEquals(0L, DownloadPackagesCallable.overlap(builds, Collections.<long[]>emptyList()));
+    }
+}
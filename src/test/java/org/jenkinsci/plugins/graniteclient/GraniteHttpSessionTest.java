@@ -0,0 +1,144 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.StreamBuildListener;
+import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GraniteHttpSessionTest {
+
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicReference<String> loginForm = new AtomicReference<String>();
+    private final AtomicReference<String> authorization = new AtomicReference<String>();
+    private final AtomicReference<String> cookie = new AtomicReference<String>();
+    private volatile int loginStatus = 200;
+
+    private HttpServer server;
+    private String baseUrl;
+    private AsyncHttpClient ahcClient;
+    private AsyncPackageManagerClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(GraniteHttpSession.LOGIN_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                logins.incrementAndGet();
+                loginForm.set(IOUtils.toString(exchange.getRequestBody(), "UTF-8"));
+                if (loginStatus == 200) {
+                    exchange.getResponseHeaders().add("Set-Cookie", "login-token=abc123; Path=/");
+                }
+                respond(exchange, loginStatus);
+            }
+        });
+        server.createContext("/content/test.json", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                authorization.set(exchange.getRequestHeaders().getFirst("Authorization"));
+                cookie.set(exchange.getRequestHeaders().getFirst("Cookie"));
+                respond(exchange, 200);
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+        ahcClient = new AsyncHttpClient();
+        client = new AsyncPackageManagerClient(ahcClient);
+        client.setBaseUrl(baseUrl);
+    }
+
+    @After
+    public void tearDown() {
+        ahcClient.close();
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        byte[] body = "{}".getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private GraniteClientConfig createConfig(String preemptLoginForBaseUrls) {
+        GraniteClientConfig config = new GraniteClientConfig(
+                new GraniteClientGlobalConfig(null, preemptLoginForBaseUrls, 0, 0, 0, null), baseUrl, "");
+        config.resolveCredentials();
+        return config;
+    }
+
+    @Test
+    public void testFormLogin() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        GraniteHttpSession session = GraniteHttpSession.open(client, createConfig(null), new StreamBuildListener(log));
+        assertEquals(1, logins.get());
+        assertTrue(loginForm.get().contains("j_username=admin"));
+        assertTrue("the fallback to admin is logged", log.toString("UTF-8").contains("[ALERT] No credentials"));
+
+        assertEquals(200, session.get("/content/test.json").getStatusCode());
+        assertNull("no basic auth without the preempt login policy", authorization.get());
+        assertTrue(cookie.get().contains("login-token=abc123"));
+        assertEquals("the session logs in once", 1, logins.get());
+    }
+
+    @Test
+    public void testPreemptLogin() throws IOException {
+        GraniteHttpSession session = GraniteHttpSession.open(client, createConfig(".*localhost.*"),
+                new StreamBuildListener(new ByteArrayOutputStream()));
+
+        assertEquals(200, session.get("/content/test.json").getStatusCode());
+        assertEquals("Basic YWRtaW46YWRtaW4=", authorization.get());
+        assertEquals("no form login with the preempt login policy", 0, logins.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testFormLoginRejected() throws IOException {
+        loginStatus = 403;
+        GraniteHttpSession.open(client, createConfig(null), new StreamBuildListener(new ByteArrayOutputStream()));
+    }
+}
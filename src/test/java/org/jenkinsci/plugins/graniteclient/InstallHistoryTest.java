@@ -0,0 +1,73 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InstallHistoryTest {
+
+    private static final PackId CORE = PackId.createPackId("my_packages", "core", "1.0");
+    private static final PackId CONTENT = PackId.createPackId("my_packages", "content", "1.0");
+
+    @Test
+    public void testEstimate() {
+        InstallHistory history = new InstallHistory();
+        assertEquals(2048L, history.estimate("http://author:4502", CORE, 2048L));
+
+        history.record("http://author:4502", CORE, 1000L, 4000L);
+        assertEquals(4000L, history.estimate("http://author:4502", CORE, 2048L));
+        assertEquals(8000L, history.estimate("http://author:4502", CONTENT, 2000L));
+        assertEquals("instances without history use the throughput of all instances",
+                8000L, history.estimate("http://publish:4503", CORE, 2000L));
+
+        history.record("http://author:4502", CORE, 1000L, 2000L);
+        assertEquals(3000L, history.estimate("http://author:4502", CORE, 2048L));
+    }
+
+    @Test
+    public void testNodesPerSecond() {
+        InstallHistory history = new InstallHistory();
+        assertEquals(0, history.getNodesPerSecond("http://author:4502"), 0.01);
+        history.recordInstall("http://author:4502", 20000L, 4000L);
+        assertEquals(5000, history.getNodesPerSecond("http://author:4502"), 0.01);
+        assertEquals(0, history.getNodesPerSecond("http://publish:4503"), 0.01);
+    }
+
+    @Test
+    public void testReplicationMillis() {
+        InstallHistory history = new InstallHistory();
+        assertEquals(-1L, history.getReplicationMillis("http://author:4502"));
+        history.recordReplication("http://author:4502", 3000L);
+        history.recordReplication("http://author:4502", 1000L);
+        assertEquals(2000L, history.getReplicationMillis("http://author:4502"));
+        assertEquals(-1L, history.getReplicationMillis("http://publish:4503"));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.AbortException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InstanceGroupTest {
+
+    @Test
+    public void testResolve() throws Exception {
+        InstanceGroup publish = new InstanceGroup("prod-publish",
+                "http://pub1.example.com:4503\nhttp://pub1.example.com:4504\nhttp://pub2.example.com:4503");
+        publish.setCredentialsId("publish-creds");
+
+        List<InstanceGroup.Member> members = InstanceGroup.resolve(
+                Arrays.asList("http://author.example.com:4502", " @prod-publish", "http://pub2.example.com:4503"),
+                Collections.singletonList(publish));
+
+        assertEquals(4, members.size());
+        assertEquals("http://author.example.com:4502", members.get(0).getBaseUrl());
+        assertNull(members.get(0).getGroup());
+        assertNull(members.get(0).getCredentialsId(""));
+        assertEquals("http://pub2.example.com:4503", members.get(3).getBaseUrl());
+        assertSame(publish, members.get(3).getGroup());
+        assertEquals("publish-creds", members.get(1).getCredentialsId(null));
+        assertEquals("job-creds", members.get(1).getCredentialsId("job-creds"));
+    }
+
+    @Test
+    public void testHostLimits() throws Exception {
+        InstanceGroup author = new InstanceGroup("author", "http://shared.example.com:4502");
+        author.setMaxConcurrentPerHost(3);
+        InstanceGroup publish = new InstanceGroup("publish",
+                "http://shared.example.com:4503\nhttp://pub.example.com:4503");
+        publish.setMaxConcurrentPerHost(2);
+
+        List<InstanceGroup.Member> members = InstanceGroup.resolve(
+                Arrays.asList("@author", "@publish", "http://shared.example.com:4504"), Arrays.asList(author, publish));
+
+        assertEquals("the smallest limit on the host applies", 2, members.get(0).getMaxConcurrentPerHost());
+        assertEquals(2, members.get(1).getMaxConcurrentPerHost());
+        assertEquals(2, members.get(2).getMaxConcurrentPerHost());
+        assertEquals("ungrouped instances are not throttled", 0, members.get(3).getMaxConcurrentPerHost());
+    }
+
+    @Test(expected = AbortException.class)
+    public void testResolveUnknownGroup() throws Exception {
+        InstanceGroup.resolve(Collections.singletonList("@missing"), Collections.<InstanceGroup>emptyList());
+    }
+
+    @Test
+    public void testGetHost() {
+        assertEquals("pub1.example.com", InstanceGroup.getHost("http://admin@PUB1.example.com:4503/"));
+        assertEquals("not a url", InstanceGroup.getHost("not a url"));
+        assertTrue(InstanceGroup.isValidName("prod-publish"));
+        assertFalse(InstanceGroup.isValidName("@prod"));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InstanceThrottleTest {
+
+    private final TaskListener listener = new StreamBuildListener(new NullOutputStream());
+
+    @Test(timeout = 10000L)
+    public void testGroupsShareHostPermits() throws Exception {
+        InstanceGroup author = new InstanceGroup("throttle-author", "http://throttle.example.com:4502");
+        author.setMaxConcurrentPerHost(1);
+        InstanceGroup publish = new InstanceGroup("throttle-publish", "http://throttle.example.com:4503");
+        publish.setMaxConcurrentPerHost(1);
+        final List<InstanceGroup.Member> members = InstanceGroup.resolve(
+                Arrays.asList("@throttle-author", "@throttle-publish"), Arrays.asList(author, publish));
+
+        InstanceThrottle.Permit first = InstanceThrottle.acquire(members.get(0), listener);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread second = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    InstanceThrottle.acquire(members.get(1), listener).release();
+                    acquired.countDown();
+                } catch (InterruptedException ignored) {
+                    // the test failed
+                }
+            }
+        });
+        second.start();
+
+        assertFalse("the other group waits for the host", acquired.await(200L, TimeUnit.MILLISECONDS));
+        first.release();
+        assertTrue(acquired.await(5L, TimeUnit.SECONDS));
+        second.join();
+    }
+
+    @Test(timeout = 10000L)
+    public void testUngroupedInstancesAreNotThrottled() throws Exception {
+        InstanceGroup.Member member = new InstanceGroup.Member("http://ungrouped.example.com:4502", null, 0);
+        InstanceThrottle.Permit first = InstanceThrottle.acquire(member, listener);
+        InstanceThrottle.Permit second = InstanceThrottle.acquire(member, listener);
+        second.release();
+        first.release();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+
+import hudson.Functions;
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PackageCacheTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private PackageDownloader.Download download(File dir, PackId packId, int length) throws IOException {
+        File file = new File(dir, PackageDownloader.getFileName(packId));
+        FileUtils.writeByteArrayToFile(file, new byte[length]);
+        return new PackageDownloader.Download(file, length, "abc123", packId);
+    }
+
+    @Test
+    public void testGetKey() {
+        PackId packId = PackId.createPackId("my_packages", "test", "1.0");
+        assertEquals("same server state should produce the same key",
+                PackageCache.getKey(packId, 1L, 2L, 3L), PackageCache.getKey(packId, 1L, 2L, 3L));
+        assertNotEquals("a changed last modified date should produce a different key",
+                PackageCache.getKey(packId, 1L, 2L, 3L), PackageCache.getKey(packId, 4L, 2L, 3L));
+    }
+
+    @Test
+    public void testStoreAndRestore() throws IOException {
+        File downloads = tempFolder.newFolder("downloads");
+        File restoreDir = tempFolder.newFolder("restore");
+        PackageCache cache = new PackageCache(tempFolder.newFolder("cache"), 1024L * 1024L);
+        PackId packId = PackId.createPackId("my_packages", "test", "1.0");
+        String key = PackageCache.getKey(packId, 1L, 2L, 100L);
+
+        assertNull("nothing should be restored before the package is stored",
+                cache.restore(key, packId, restoreDir));
+
+        cache.store(key, download(downloads, packId, 100));
+        File restored = cache.restore(key, packId, restoreDir);
+        assertNotNull("stored package should be restored", restored);
+        assertEquals("restored package should have the downloaded length", 100L, restored.length());
+        assertEquals("restored sidecar should name the restored file", "abc123  " + restored.getName() + "\n",
+                FileUtils.readFileToString(PackageDownloader.getSidecarFile(restored), "UTF-8"));
+    }
+
+    @Test
+    public void testEvict() throws IOException {
+        File downloads = tempFolder.newFolder("downloads");
+        File cacheDir = tempFolder.newFolder("cache");
+        PackageCache cache = new PackageCache(cacheDir, 150L);
+        PackId first = PackId.createPackId("my_packages", "first", "1.0");
+        PackId second = PackId.createPackId("my_packages", "second", "1.0");
+        String firstKey = PackageCache.getKey(first, 1L, 1L, 100L);
+        String secondKey = PackageCache.getKey(second, 1L, 1L, 100L);
+
+        cache.store(firstKey, download(downloads, first, 100));
+        assertTrue("older entry should be marked as used earlier", PackageDownloader.getSidecarFile(
+                new File(cacheDir, firstKey + ".zip")).setLastModified(System.currentTimeMillis() - 60000L));
+        cache.store(secondKey, download(downloads, second, 100));
+
+        assertFalse("least recently used entry should be evicted", new File(cacheDir, firstKey + ".zip").exists());
+        assertTrue("most recently used entry should be kept", new File(cacheDir, secondKey + ".zip").exists());
+    }
+
+    @Test
+    public void testRestoreKeepsPackageDates() throws IOException {
+        File downloads = tempFolder.newFolder("downloads");
+        File cacheDir = tempFolder.newFolder("cache");
+        PackageCache cache = new PackageCache(cacheDir, 1024L * 1024L);
+        PackId packId = PackId.createPackId("my_packages", "test", "1.0");
+        String key = PackageCache.getKey(packId, 1L, 2L, 100L);
+
+        PackageDownloader.Download download = download(downloads, packId, 100);
+        long downloaded = System.currentTimeMillis() - 60000L;
+        assertTrue(download.getFile().setLastModified(downloaded));
+        cache.store(key, download);
+        File entry = new File(cacheDir, key + ".zip");
+        if (!Functions.isWindows()) {
+            assertTrue("the download linked to the entry should stay writable",
+                    Files.getPosixFilePermissions(download.getFile().toPath())
+                            .contains(PosixFilePermission.OWNER_WRITE));
+        }
+
+        File sidecar = PackageDownloader.getSidecarFile(entry);
+        assertTrue(sidecar.setLastModified(downloaded));
+        File restored = cache.restore(key, packId, tempFolder.newFolder("restore"));
+        assertEquals("restoring should not change the date of linked packages",
+                downloaded / 1000L, restored.lastModified() / 1000L);
+        assertEquals("the download should keep its date", downloaded / 1000L,
+                download.getFile().lastModified() / 1000L);
+        assertTrue("restoring should mark the entry as used", PackageCache.getLastUsed(entry) > downloaded);
+    }
+}
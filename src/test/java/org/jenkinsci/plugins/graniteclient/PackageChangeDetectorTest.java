@@ -0,0 +1,206 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.cookie.Cookie;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.WspFilter;
+import net.sf.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PackageChangeDetectorTest {
+
+    private static final PackId PACK_ID = PackId.createPackId("acme", "acme-content", "1.0");
+
+    private static final String PID = "acme:acme-content:1.0";
+
+    private static final String FILTER_JSON = "[{\"root\":\"/content/acme\",\"rules\":["
+            + "{\"modifier\":\"include\",\"pattern\":\"/content/acme/en(/.*)?\"},"
+            + "{\"modifier\":\"exclude\",\"pattern\":\"/content/acme/en/archive(/.*)?\"}]}]";
+
+    private static final String FILTER_SPEC = "/content/acme\n"
+            + "+/content/acme/en(/.*)?\n"
+            + "-/content/acme/en/archive(/.*)?\n";
+
+    private static final String NO_HITS_JSON = "{\"success\":true,\"results\":0,\"hits\":[]}";
+
+    private volatile String listJson;
+    private volatile String queryJson = NO_HITS_JSON;
+    private volatile String queryString;
+
+    private HttpServer server;
+    private AsyncHttpClient client;
+    private PackageChangeDetector detector;
+
+    private static String listJson(String pid, long lastWrapped, long size) {
+        return "{\"results\":[{\"pid\":\"" + pid + "\",\"lastWrapped\":" + lastWrapped + ",\"size\":" + size
+                + ",\"filter\":" + FILTER_JSON + "}]}";
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        listJson = listJson(PID, 1000L, 2048L);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(PackageCache.LIST_PATH, new JsonHandler() {
+            String getJson(HttpExchange exchange) {
+                return listJson;
+            }
+        });
+        server.createContext(PackageChangeDetector.QUERY_PATH, new JsonHandler() {
+            String getJson(HttpExchange exchange) {
+                queryString = exchange.getRequestURI().getQuery();
+                return queryJson;
+            }
+        });
+        server.start();
+
+        client = new AsyncHttpClient();
+        GraniteHttpSession session = new GraniteHttpSession(client,
+                "http://localhost:" + server.getAddress().getPort(), 0L, null, Collections.<Cookie>emptyList());
+        detector = new PackageChangeDetector(session);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testParseServerFilter() {
+        WspFilter serverFilter = PackageChangeDetector.parseServerFilter(JSONArray.fromObject(FILTER_JSON));
+        assertEquals("the server filter should match the same simple spec",
+                PackageChangeDetector.toSpec(WspFilter.parseSimpleSpec(FILTER_SPEC)),
+                PackageChangeDetector.toSpec(serverFilter));
+
+        WspFilter reordered = WspFilter.parseSimpleSpec("/content/acme\n"
+                + "-/content/acme/en/archive(/.*)?\n"
+                + "+/content/acme/en(/.*)?\n");
+        assertFalse("the order of include and exclude rules is significant",
+                PackageChangeDetector.toSpec(reordered).equals(PackageChangeDetector.toSpec(serverFilter)));
+
+        assertNull(PackageChangeDetector.parseServerFilter(null));
+        assertNull(PackageChangeDetector.parseServerFilter(new JSONArray()));
+        assertNull("roots without a path should be skipped",
+                PackageChangeDetector.parseServerFilter(JSONArray.fromObject("[{\"root\":\"\"}]")));
+    }
+
+    @Test
+    public void testUnchanged() throws IOException {
+        assertNull(detector.getRebuildReason(PACK_ID, WspFilter.parseSimpleSpec(FILTER_SPEC)));
+        assertNull("the server filter should be used when none is requested",
+                detector.getRebuildReason(PACK_ID, null));
+        assertTrue("the query should search under the filter root",
+                queryString.contains("path=/content/acme"));
+    }
+
+    @Test
+    public void testFilterChanged() throws IOException {
+        WspFilter reordered = WspFilter.parseSimpleSpec("/content/acme\n"
+                + "-/content/acme/en/archive(/.*)?\n"
+                + "+/content/acme/en(/.*)?\n");
+        assertEquals("the requested filter differs from the package filter",
+                detector.getRebuildReason(PACK_ID, reordered));
+        assertNull("content should not be queried when the filter differs", queryString);
+    }
+
+    @Test
+    public void testMissingPackage() throws IOException {
+        listJson = listJson("acme:acme-content:2.0", 1000L, 2048L);
+        assertEquals("the package was not found in the package list", detector.getRebuildReason(PACK_ID, null));
+
+        listJson = "{\"results\":[]}";
+        assertEquals("the package was not found in the package list", detector.getRebuildReason(PACK_ID, null));
+    }
+
+    @Test
+    public void testUnbuiltPackage() throws IOException {
+        listJson = listJson(PID, 0L, 2048L);
+        assertEquals("the package has not been built", detector.getRebuildReason(PACK_ID, null));
+
+        listJson = listJson(PID, 1000L, 0L);
+        assertEquals("the package has not been built", detector.getRebuildReason(PACK_ID, null));
+    }
+
+    @Test
+    public void testModifiedHit() throws IOException {
+        queryJson = "{\"success\":true,\"results\":1,\"hits\":[{\"jcr:path\":\"/content/acme/en/news\"}]}";
+        assertEquals("/content/acme/en/news was modified after the package was built",
+                detector.getRebuildReason(PACK_ID, null));
+    }
+
+    @Test
+    public void testModifiedResultsOnly() throws IOException {
+        queryJson = "{\"success\":true,\"results\":1}";
+        assertEquals("the root should be reported when the query returns no hits",
+                "/content/acme", detector.findModifiedSince("/content/acme", 1000L));
+        assertEquals("/content/acme was modified after the package was built",
+                detector.getRebuildReason(PACK_ID, null));
+    }
+
+    @Test(expected = IOException.class)
+    public void testQueryFailed() throws IOException {
+        queryJson = "{\"success\":false}";
+        detector.findModifiedSince("/content/acme", 1000L);
+    }
+
+    @Test
+    public void testFormatDate() {
+        assertEquals("1970-01-01T00:00:01.000Z", PackageChangeDetector.formatDate(1000L));
+    }
+
+    private abstract static class JsonHandler implements HttpHandler {
+        abstract String getJson(HttpExchange exchange);
+
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = getJson(exchange).getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.adamcin.granite.client.packman.ListResult;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PackageChoiceParameterDefinitionTest {
+
+    private static final String FAST = "http://author1:4502";
+    private static final String SLOW = "http://author2:4502";
+    private static final String DOWN = "http://author3:4502";
+
+    private static final PackId PACK_ID = PackId.createPackId("acme", "acme-content", "1.0");
+
+    private static Callable<List<ListResult>> listing(final PackId packId) {
+        return new Callable<List<ListResult>>() {
+            public List<ListResult> call() throws Exception {
+                return Collections.singletonList(new ListResult(packId, true, false));
+            }
+        };
+    }
+
+    @Test(timeout = 10000L)
+    public void testListConcurrentlyTimeout() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Callable<List<ListResult>> slow = new Callable<List<ListResult>>() {
+            public List<ListResult> call() throws Exception {
+                try {
+                    Thread.sleep(30000L);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return Collections.emptyList();
+            }
+        };
+        Callable<List<ListResult>> down = new Callable<List<ListResult>>() {
+            public List<ListResult> call() throws Exception {
+                throw new IOException("Connection refused");
+            }
+        };
+
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        List<List<ListResult>> sources = PackageChoiceParameterDefinition.listConcurrently(
+                Arrays.asList(FAST, SLOW, DOWN), Arrays.asList(listing(PACK_ID), slow, down), 500L, failures);
+
+        assertEquals(3, sources.size());
+        assertEquals(1, sources.get(0).size());
+        assertNull("the instance which timed out has no list", sources.get(1));
+        assertNull("the instance which failed has no list", sources.get(2));
+        assertEquals("timed out", failures.get(SLOW));
+        assertEquals("Connection refused", failures.get(DOWN));
+        assertFalse(failures.containsKey(FAST));
+        assertTrue("the request which timed out should be cancelled", interrupted.await(5L, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000L)
+    public void testPartialResultsAreMerged() throws Exception {
+        PackId other = PackId.createPackId("acme", "acme-config", "1.0");
+        Callable<List<ListResult>> slow = new Callable<List<ListResult>>() {
+            public List<ListResult> call() throws Exception {
+                Thread.sleep(30000L);
+                return Collections.emptyList();
+            }
+        };
+
+        List<String> baseUrls = Arrays.asList(FAST, SLOW, DOWN);
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        List<List<ListResult>> sources = PackageChoiceParameterDefinition.listConcurrently(baseUrls,
+                Arrays.asList(listing(PACK_ID), slow, listing(other)), 500L, failures);
+
+        MergedPackageList merged = new MergedPackageList(baseUrls, sources, failures, false, false,
+                PathOrPackIdFilter.INCLUDE_ALL_FILTER);
+        assertEquals(Arrays.asList(PACK_ID, other), merged.getPackIds(false));
+        assertEquals("no package is listed on both instances which responded",
+                Collections.<PackId>emptyList(), merged.getPackIds(true));
+        assertEquals(Collections.singletonList(FAST), merged.getInstances(PACK_ID));
+        assertEquals(Collections.singletonMap(SLOW, "timed out"), merged.getFailures());
+    }
+}
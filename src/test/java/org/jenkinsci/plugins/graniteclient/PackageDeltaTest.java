@@ -0,0 +1,219 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PackageDeltaTest {
+
+    private static final PackId PACK_ID = PackId.createPackId("acme", "acme-content", "1.0");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final String FILTER_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<workspaceFilter version=\"1.0\">\n"
+            + "    <filter root=\"/apps/acme\"/>\n"
+            + "    <filter root=\"/content/acme\" mode=\"merge\">\n"
+            + "        <exclude pattern=\"/content/acme/private(/.*)?\"/>\n"
+            + "    </filter>\n"
+            + "</workspaceFilter>\n";
+
+    private static Map<String, Long> index(Object... namesAndCrcs) {
+        Map<String, Long> index = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < namesAndCrcs.length; i += 2) {
+            index.put((String) namesAndCrcs[i], ((Number) namesAndCrcs[i + 1]).longValue());
+        }
+        return index;
+    }
+
+    private static Map<String, Long> sizes(Map<String, Long> index, long size) {
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        for (String name : index.keySet()) {
+            sizes.put(name, size);
+        }
+        return sizes;
+    }
+
+    @Test
+    public void testToRepositoryPath() {
+        assertEquals("/", PackageDelta.toRepositoryPath("jcr_root"));
+        assertEquals("/content/acme/jcr:content", PackageDelta.toRepositoryPath("jcr_root/content/acme/_jcr_content"));
+        assertEquals("/apps/_private/a:b", PackageDelta.toRepositoryPath("jcr_root/apps/__private/a%3ab"));
+    }
+
+    @Test
+    public void testCompute() {
+        Map<String, Long> previous = index(
+                "META-INF/vault/properties.xml", 1,
+                "META-INF/vault/filter.xml", 2,
+                "jcr_root/apps/acme/.content.xml", 3,
+                "jcr_root/apps/acme/components/.content.xml", 4,
+                "jcr_root/apps/acme/install/core.jar", 5,
+                "jcr_root/content/acme/en/.content.xml", 6,
+                "jcr_root/content/acme/fr/.content.xml", 7,
+                "jcr_root/content/acme/de/.content.xml", 8,
+                "jcr_root/content/acme/it/.content.xml", 9);
+        Map<String, Long> current = new LinkedHashMap<String, Long>(previous);
+        current.put("META-INF/vault/properties.xml", 11L);
+        current.put("jcr_root/apps/acme/install/core.jar", 15L);
+        current.put("jcr_root/content/acme/en/.content.xml", 16L);
+        current.remove("jcr_root/content/acme/fr/.content.xml");
+
+        PackageDelta delta = PackageDelta.compute(previous, current, sizes(current, 10L), FILTER_XML);
+        assertNull(delta.getFallbackReason());
+        assertFalse(delta.isUnchanged());
+        assertEquals(Arrays.asList("/apps/acme/install/core.jar", "/content/acme/en", "/content/acme/fr"),
+                delta.getRoots());
+        assertEquals(2, delta.getEntries().size());
+        assertTrue(delta.getEntries().contains("jcr_root/content/acme/en/.content.xml"));
+    }
+
+    @Test
+    public void testFallback() {
+        Map<String, Long> previous = index(
+                "META-INF/vault/filter.xml", 2,
+                "jcr_root/apps/acme/.content.xml", 3,
+                "jcr_root/etc/other/.content.xml", 4,
+                "jcr_root/content/acme/.content.xml", 5,
+                "jcr_root/content/acme/en/.content.xml", 6);
+
+        Map<String, Long> filterChanged = new LinkedHashMap<String, Long>(previous);
+        filterChanged.put("META-INF/vault/filter.xml", 12L);
+        assertNotNull(PackageDelta.compute(previous, filterChanged, sizes(filterChanged, 10L), FILTER_XML)
+                .getFallbackReason());
+
+        Map<String, Long> uncovered = new LinkedHashMap<String, Long>(previous);
+        uncovered.put("jcr_root/etc/other/.content.xml", 14L);
+        assertNotNull(PackageDelta.compute(previous, uncovered, sizes(uncovered, 10L), FILTER_XML)
+                .getFallbackReason());
+
+        Map<String, Long> large = new LinkedHashMap<String, Long>(previous);
+        large.put("jcr_root/content/acme/.content.xml", 15L);
+        large.put("jcr_root/apps/acme/.content.xml", 13L);
+        assertNotNull(PackageDelta.compute(previous, large, sizes(large, 10L), FILTER_XML).getFallbackReason());
+
+        assertTrue(PackageDelta.compute(previous, previous, sizes(previous, 10L), FILTER_XML).isUnchanged());
+    }
+
+    @Test
+    public void testFilterRoundTrip() throws Exception {
+        String xml = PackageDelta.FilterRoot.toXml(PackageDelta.FilterRoot.parse(FILTER_XML));
+        assertTrue(xml.contains("<filter root=\"/content/acme\" mode=\"merge\">"));
+        assertTrue(xml.contains("<exclude pattern=\"/content/acme/private(/.*)?\"/>"));
+    }
+
+    @Test
+    public void testRemovedEntryKeepsItsFilterRoot() throws Exception {
+        Map<String, Long> previous = index(
+                "META-INF/vault/filter.xml", 2,
+                "jcr_root/apps/acme/.content.xml", 3,
+                "jcr_root/apps/acme/install/core.jar", 4,
+                "jcr_root/apps/acme/install/legacy.jar", 5,
+                "jcr_root/content/acme/.content.xml", 6);
+        Map<String, Long> current = new LinkedHashMap<String, Long>(previous);
+        current.remove("jcr_root/apps/acme/install/legacy.jar");
+        current.put("jcr_root/apps/acme/install/core.jar", 14L);
+
+        PackageDelta delta = PackageDelta.compute(previous, current, sizes(current, 10L), FILTER_XML);
+        assertNull(delta.getFallbackReason());
+        assertEquals(Arrays.asList("/apps/acme/install/core.jar", "/apps/acme/install/legacy.jar"),
+                delta.getRoots());
+
+        File source = tempFolder.newFile("source.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(source));
+        try {
+            for (String name : current.keySet()) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.equals(PackageDelta.FILTER_XML) ? FILTER_XML.getBytes("UTF-8") : new byte[]{1});
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+
+        File target = tempFolder.newFile("delta.zip");
+        ZipFile sourceZip = new ZipFile(source);
+        try {
+            delta.write(sourceZip, PackId.createPackId("acme", "acme-content" + PackageDelta.DELTA_SUFFIX, "1.0"),
+                    target);
+        } finally {
+            sourceZip.close();
+        }
+
+        ZipFile deltaZip = new ZipFile(target);
+        try {
+            String filterXml = IOUtils.toString(deltaZip.getInputStream(deltaZip.getEntry(PackageDelta.FILTER_XML)),
+                    "UTF-8");
+            assertTrue("the removed file should stay in the filter, so that the import removes it",
+                    filterXml.contains("<filter root=\"/apps/acme/install/legacy.jar\""));
+            assertNotNull(deltaZip.getEntry("jcr_root/apps/acme/install/core.jar"));
+            assertNull(deltaZip.getEntry("jcr_root/content/acme/.content.xml"));
+        } finally {
+            deltaZip.close();
+        }
+    }
+
+    @Test
+    public void testIndexRoundTrip() throws IOException {
+        File cacheDir = tempFolder.newFolder("delta");
+        File indexFile = PackageDelta.getIndexFile(cacheDir, "http://localhost:4502", PACK_ID);
+        assertEquals("a new version should replace the index of the last one", indexFile,
+                PackageDelta.getIndexFile(cacheDir, "http://localhost:4502",
+                        PackId.createPackId("acme", "acme-content", "2.0")));
+        assertNull(PackageDelta.readIndex(indexFile));
+
+        Map<String, Long> crcs = index("jcr_root/apps/acme/.content.xml", 0xcafebabeL,
+                "META-INF/vault/filter.xml", 2);
+        PackageDelta.writeIndex(indexFile, new PackageDelta.Index(PACK_ID, crcs));
+        PackageDelta.Index index = PackageDelta.readIndex(indexFile);
+        assertNotNull(index);
+        assertEquals("the full package ID should be recorded", PACK_ID, index.getPackId());
+        assertEquals(crcs, index.getCrcs());
+
+        FileUtils.writeStringToFile(indexFile, "jcr_root/apps/acme/.content.xml=cafebabe\n", "ISO-8859-1");
+        assertNull("an index without a package ID can't be compared", PackageDelta.readIndex(indexFile));
+    }
+}
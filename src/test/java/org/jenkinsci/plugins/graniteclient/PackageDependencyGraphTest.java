@@ -0,0 +1,93 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PackageDependencyGraphTest {
+
+    @Test
+    public void testGetLevels() throws Exception {
+        PackageDependencyGraph<String> graph = new PackageDependencyGraph<String>();
+        graph.addNode("content");
+        graph.addNode("apps");
+        graph.addNode("dam");
+        graph.addDependency("content", "config");
+        graph.addDependency("config", "apps");
+
+        List<List<String>> levels = graph.getLevels();
+        assertEquals("independent nodes should share the first level in the order they were added",
+                Arrays.asList("apps", "dam"), levels.get(0));
+        assertEquals("config should follow apps", Arrays.asList("config"), levels.get(1));
+        assertEquals("content should follow config", Arrays.asList("content"), levels.get(2));
+    }
+
+    @Test
+    public void testCycle() {
+        PackageDependencyGraph<String> graph = new PackageDependencyGraph<String>();
+        graph.addNode("independent");
+        graph.addDependency("a", "b");
+        graph.addDependency("b", "c");
+        graph.addDependency("c", "a");
+
+        try {
+            graph.getLevels();
+            fail("cycle should be detected");
+        } catch (PackageDependencyGraph.CycleException e) {
+            List<?> cycle = e.getCycle();
+            assertEquals("cycle should start and end with the same node", cycle.get(0), cycle.get(cycle.size() - 1));
+            assertEquals("cycle should contain each node once, plus the repeated node", 4, cycle.size());
+        }
+    }
+
+    @Test
+    public void testReplicationLevels() {
+        PackId apps = PackId.createPackId("acme", "acme-apps", "1.0");
+        PackId content = PackId.createPackId("acme", "acme-content", "1.0");
+        PackId dam = PackId.createPackId("acme", "acme-dam", "1.0");
+
+        List<List<PackId>> levels = ReplicatePackagesBuilder.getReplicationLevels(Arrays.asList(content, apps, dam),
+                "acme:acme-apps:1.0 -> acme:acme-content:1.0  # apps first\n");
+        assertEquals("two levels should be planned", 2, levels.size());
+        assertEquals("apps and dam should be replicated first", Arrays.asList(apps, dam), levels.get(0));
+        assertEquals("content should follow apps", Arrays.asList(content), levels.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReplicationLevelsUnlisted() {
+        ReplicatePackagesBuilder.getReplicationLevels(
+                Arrays.asList(PackId.createPackId("acme", "acme-apps", "1.0")),
+                "acme:acme-apps:1.0 -> acme:acme-content:1.0");
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.cookie.Cookie;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.Util;
+import hudson.model.StreamBuildListener;
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PackageDownloaderTest {
+
+    private static final PackId PACK_ID = PackId.createPackId("my_packages", "test", "1.0");
+    private static final String ETAG = "\"v1\"";
+    private static final int OFFSET = 100;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private byte[] content;
+    private volatile String range;
+    private volatile String ifRange;
+    private volatile Integer resumeStatus;
+    private volatile String contentRange;
+
+    private HttpServer server;
+    private AsyncHttpClient client;
+    private ByteArrayOutputStream log;
+    private PackageDownloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        content = zip(true);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(GraniteHttpSession.encodePath(PACK_ID.getInstallationPath() + ".zip"),
+                new HttpHandler() {
+                    public void handle(HttpExchange exchange) throws IOException {
+                        range = exchange.getRequestHeaders().getFirst("Range");
+                        ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                        byte[] body = content;
+                        exchange.getResponseHeaders().add("ETag", ETAG);
+                        if (range != null && resumeStatus != null && resumeStatus == 206) {
+                            body = Arrays.copyOfRange(content, OFFSET, content.length);
+                            exchange.getResponseHeaders().add("Content-Range", contentRange);
+                            exchange.sendResponseHeaders(206, body.length);
+                        } else {
+                            exchange.sendResponseHeaders(200, body.length);
+                        }
+                        OutputStream out = exchange.getResponseBody();
+                        try {
+                            out.write(body);
+                        } finally {
+                            out.close();
+                        }
+                    }
+                });
+        server.start();
+
+        client = new AsyncHttpClient();
+        GraniteHttpSession session = new GraniteHttpSession(client,
+                "http://localhost:" + server.getAddress().getPort(), 0L, null, Collections.<Cookie>emptyList());
+        log = new ByteArrayOutputStream();
+        downloader = new PackageDownloader(session, new StreamBuildListener(log), 0);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.stop(0);
+    }
+
+    /**
+     * Leaves the first bytes of the package behind as if an earlier download had been interrupted
+     */
+    private File interruptedDownload(File toDirectory) throws IOException {
+        String fileName = PackageDownloader.getFileName(PACK_ID);
+        File partFile = new File(toDirectory, "." + fileName + ".part");
+        FileUtils.writeByteArrayToFile(partFile, Arrays.copyOf(content, OFFSET));
+        FileUtils.writeStringToFile(new File(toDirectory, partFile.getName() + ".validator"), ETAG, "UTF-8");
+        return partFile;
+    }
+
+    private String sha256() {
+        return Util.toHexString(PackageDownloader.newSha256().digest(content));
+    }
+
+    @Test
+    public void testDownload() throws IOException {
+        File toDirectory = tempFolder.newFolder("downloads");
+        PackageDownloader.Download download = downloader.download(PACK_ID, toDirectory);
+
+        assertNull("a new download is not a range request", range);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(download.getFile()));
+        assertEquals(sha256(), download.getSha256());
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        File toDirectory = tempFolder.newFolder("downloads");
+        File partFile = interruptedDownload(toDirectory);
+        resumeStatus = 206;
+        contentRange = "bytes " + OFFSET + "-" + (content.length - 1) + "/" + content.length;
+
+        PackageDownloader.Download download = downloader.download(PACK_ID, toDirectory);
+        assertEquals("bytes=" + OFFSET + "-", range);
+        assertEquals(ETAG, ifRange);
+        assertTrue(log.toString("UTF-8").contains("Resuming download of " + PACK_ID + " at byte " + OFFSET));
+        assertArrayEquals(content, FileUtils.readFileToByteArray(download.getFile()));
+        assertEquals("the digest should cover the replayed prefix", sha256(), download.getSha256());
+        assertEquals(PACK_ID, download.getPackId());
+        assertFalse(partFile.exists());
+    }
+
+    @Test
+    public void testResumeAtWrongOffset() throws IOException {
+        File toDirectory = tempFolder.newFolder("downloads");
+        File partFile = interruptedDownload(toDirectory);
+        resumeStatus = 206;
+        contentRange = "bytes 0-" + (content.length - 1) + "/" + content.length;
+
+        try {
+            downloader.download(PACK_ID, toDirectory);
+            fail("a response at the wrong offset should fail the download");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("wrong offset"));
+        }
+        assertFalse("the partial file should be discarded", partFile.exists());
+
+        resumeStatus = null;
+        PackageDownloader.Download download = downloader.download(PACK_ID, toDirectory);
+        assertNull("the next attempt should start over", range);
+        assertEquals(sha256(), download.getSha256());
+    }
+
+    @Test
+    public void testResumeIgnoredByServer() throws IOException {
+        File toDirectory = tempFolder.newFolder("downloads");
+        interruptedDownload(toDirectory);
+
+        PackageDownloader.Download download = downloader.download(PACK_ID, toDirectory);
+        assertEquals("bytes=" + OFFSET + "-", range);
+        assertTrue(log.toString("UTF-8").contains("Restarting download of " + PACK_ID));
+        assertArrayEquals("the complete package should replace the partial file",
+                content, FileUtils.readFileToByteArray(download.getFile()));
+        assertEquals(sha256(), download.getSha256());
+    }
+
+    private static byte[] zip(boolean propertiesFirst) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        if (!propertiesFirst) {
+            zip.putNextEntry(new ZipEntry("jcr_root/.content.xml"));
+            zip.write("<jcr:root/>".getBytes("UTF-8"));
+            zip.closeEntry();
+        }
+        zip.putNextEntry(new ZipEntry("META-INF/vault/filter.xml"));
+        zip.write("<workspaceFilter version=\"1.0\"/>".getBytes("UTF-8"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry("META-INF/vault/properties.xml"));
+        Properties properties = new Properties();
+        properties.setProperty("group", "my_packages");
+        properties.setProperty("name", "test");
+        properties.setProperty("version", "1.0");
+        properties.storeToXML(zip, null);
+        zip.closeEntry();
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testReadPackId() throws IOException {
+        ByteArrayInputStream stream = new ByteArrayInputStream(zip(true));
+        assertEquals("package should be identified from properties.xml",
+                PackId.createPackId("my_packages", "test", "1.0"), PackageDownloader.readPackId(stream));
+    }
+
+    @Test
+    public void testReadPackIdStopsAtContent() throws IOException {
+        ByteArrayInputStream stream = new ByteArrayInputStream(zip(false));
+        assertNull("scan should stop at the first entry outside of META-INF",
+                PackageDownloader.readPackId(stream));
+        assertTrue("scan should not read the whole stream", stream.available() > 0);
+    }
+
+    @Test
+    public void testGetFileName() {
+        assertEquals("file name should match the installation path",
+                "test-1.0.zip", PackageDownloader.getFileName(PackId.createPackId("my_packages", "test", "1.0")));
+    }
+}
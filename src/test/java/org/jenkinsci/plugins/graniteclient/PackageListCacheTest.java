@@ -0,0 +1,139 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.adamcin.granite.client.packman.ListResult;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PackageListCacheTest {
+
+    private static final PackageListCache.Key KEY =
+            new PackageListCache.Key("http://localhost:4502", "admin", "acme");
+
+    private static Callable<List<ListResult>> countingLoader(final AtomicInteger loads) {
+        return new Callable<List<ListResult>>() {
+            public List<ListResult> call() throws Exception {
+                loads.incrementAndGet();
+                return new ArrayList<ListResult>();
+            }
+        };
+    }
+
+    @Test
+    public void testKey() {
+        assertEquals(KEY, new PackageListCache.Key(" http://localhost:4502 ", "admin", "acme "));
+        assertNotEquals(KEY, new PackageListCache.Key("http://localhost:4502", "other", "acme"));
+        assertNotEquals(KEY, new PackageListCache.Key("http://localhost:4502", "admin", null));
+    }
+
+    @Test
+    public void testFreshEntryIsNotReloaded() throws Exception {
+        PackageListCache cache = new PackageListCache();
+        AtomicInteger loads = new AtomicInteger();
+        List<ListResult> first = cache.get(KEY, 60000L, countingLoader(loads));
+        List<ListResult> second = cache.get(KEY, 60000L, countingLoader(loads));
+        assertSame("fresh entry should be served from memory", first, second);
+        assertEquals(1, loads.get());
+
+        cache.invalidate(KEY);
+        cache.get(KEY, 60000L, countingLoader(loads));
+        assertEquals("invalidated entry should be reloaded", 2, loads.get());
+    }
+
+    @Test
+    public void testZeroTtlIsNotCached() throws Exception {
+        PackageListCache cache = new PackageListCache();
+        AtomicInteger loads = new AtomicInteger();
+        cache.get(KEY, 60000L, countingLoader(loads));
+        cache.get(KEY, 0L, countingLoader(loads));
+        cache.get(KEY, 0L, countingLoader(loads));
+        assertEquals("a TTL of 0 should load the list on every call", 3, loads.get());
+
+        cache.get(KEY, 60000L, countingLoader(loads));
+        assertEquals("a list loaded without a TTL should not be cached", 4, loads.get());
+    }
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced() throws Exception {
+        final PackageListCache cache = new PackageListCache();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<List<ListResult>> slowLoader = new Callable<List<ListResult>>() {
+            public List<ListResult> call() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return new ArrayList<ListResult>();
+            }
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<ListResult>>> futures = new ArrayList<Future<List<ListResult>>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(pool.submit(new Callable<List<ListResult>>() {
+                    public List<ListResult> call() throws Exception {
+                        return cache.get(KEY, 60000L, slowLoader);
+                    }
+                }));
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100L);
+            release.countDown();
+            for (Future<List<ListResult>> future : futures) {
+                assertNotNull(future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals("concurrent loads of the same key should share one request", 1, loads.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadFailureIsThrown() throws Exception {
+        new PackageListCache().get(KEY, 60000L, new Callable<List<ListResult>>() {
+            public List<ListResult> call() throws Exception {
+                throw new IOException("server unavailable");
+            }
+        });
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PackageListIndexTest {
+
+    private static final PackId CORE = PackId.createPackId("acme", "core", "1.0.0");
+    private static final PackId CONTENT = PackId.createPackId("acme", "content", "2.1.0");
+    private static final PackId HOTFIX = PackId.createPackId("adobe/cq", "cq-hotfix-acme", "6.3.1");
+    private static final PackId WEATHER = PackId.createPackId("day/cq", "weather", "1.0.1");
+
+    private final PackageListIndex index = new PackageListIndex(Arrays.asList(HOTFIX, CORE, WEATHER, CONTENT));
+
+    @Test
+    public void testBlankQueryMatchesAll() {
+        assertEquals(Arrays.asList(HOTFIX, CORE, WEATHER, CONTENT), index.search(null));
+        assertEquals(4, index.search("  ").size());
+    }
+
+    @Test
+    public void testPrefixMatchesBeforeSubstringMatches() {
+        List<PackId> results = index.search("ACME");
+        assertEquals("group prefix matches should come first, in list order",
+                Arrays.asList(CORE, CONTENT, HOTFIX), results);
+        assertEquals(Arrays.asList(CORE, CONTENT), index.search("co"));
+        assertEquals("version prefix", Arrays.asList(CORE, WEATHER, CONTENT), index.search("1.0"));
+        assertEquals("substring", Arrays.asList(HOTFIX), index.search("hotfix"));
+        assertTrue(index.search("nothing").isEmpty());
+    }
+
+    @Test
+    public void testPages() {
+        PackageListIndex.Page first = index.search("", 0, 3);
+        assertEquals(Arrays.asList(HOTFIX, CORE, WEATHER), first.getPackIds());
+        assertEquals(2, first.getPageCount());
+        assertEquals(4, first.getTotal());
+
+        PackageListIndex.Page last = index.search("", 5, 3);
+        assertEquals("page should be clamped to the last page", 1, last.getPage());
+        assertEquals(Arrays.asList(CONTENT), last.getPackIds());
+
+        PackageListIndex.Page empty = index.search("nothing", 0, 3);
+        assertEquals(1, empty.getPageCount());
+        assertTrue(empty.getPackIds().isEmpty());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PreemptLoginPolicyTest {
+
+    @Test
+    public void testEmptyPolicy() {
+        assertSame(PreemptLoginPolicy.NONE, PreemptLoginPolicy.compile(null));
+        assertSame(PreemptLoginPolicy.NONE, PreemptLoginPolicy.compile(" \n "));
+        assertFalse(PreemptLoginPolicy.NONE.shouldPreemptLogin("http://localhost:4502"));
+    }
+
+    @Test
+    public void testMatchesAnyPattern() {
+        PreemptLoginPolicy policy = PreemptLoginPolicy.compile("^https://author\\d\\.\n\nPUBLISH");
+        assertTrue(policy.shouldPreemptLogin("https://author1.example.com"));
+        assertTrue("patterns should be case-insensitive", policy.shouldPreemptLogin("http://publish.example.com"));
+        assertFalse(policy.shouldPreemptLogin("http://dispatcher.example.com"));
+        assertFalse(policy.shouldPreemptLogin(null));
+        assertTrue("decisions should be remembered", policy.shouldPreemptLogin("https://author1.example.com"));
+    }
+
+    @Test
+    public void testBackreferencesAreMatchedSeparately() {
+        PreemptLoginPolicy policy = PreemptLoginPolicy.compile("(author)\n//(\\w)\\1");
+        assertTrue(policy.shouldPreemptLogin("http://aa.example.com"));
+        assertTrue(policy.shouldPreemptLogin("http://author.example.com"));
+        assertFalse(policy.shouldPreemptLogin("http://ab.example.com"));
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void testInvalidPattern() {
+        PreemptLoginPolicy.compile("author\n[unclosed");
+    }
+}
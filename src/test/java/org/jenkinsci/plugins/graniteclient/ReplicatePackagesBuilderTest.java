@@ -0,0 +1,100 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReplicatePackagesBuilderTest {
+
+    private final TaskListener listener = new StreamBuildListener(new NullOutputStream());
+
+    @Test(timeout = 10000L)
+    public void testRunConcurrentlyStopsOnFailure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Callable<Result> slow = new Callable<Result>() {
+            public Result call() throws Exception {
+                started.countDown();
+                try {
+                    Thread.sleep(60000L);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return Result.SUCCESS;
+            }
+        };
+        Callable<Result> failing = new Callable<Result>() {
+            public Result call() throws Exception {
+                started.await();
+                return Result.FAILURE;
+            }
+        };
+        Callable<Result> waiting = new Callable<Result>() {
+            public Result call() throws Exception {
+                return Result.SUCCESS;
+            }
+        };
+
+        List<Callable<Result>> tasks = Arrays.asList(slow, failing, waiting, waiting);
+        assertEquals(Result.FAILURE, ReplicatePackagesBuilder.runConcurrently(tasks, 2, false, listener));
+        assertTrue("the running instance is cancelled", interrupted.await(5L, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000L)
+    public void testRunConcurrentlyExceptions() throws Exception {
+        Callable<Result> throwing = new Callable<Result>() {
+            public Result call() throws Exception {
+                throw new IllegalStateException("connection refused");
+            }
+        };
+        Callable<Result> succeeding = new Callable<Result>() {
+            public Result call() throws Exception {
+                return Result.SUCCESS;
+            }
+        };
+
+        List<Callable<Result>> tasks = Arrays.asList(succeeding, throwing, succeeding);
+        assertEquals(Result.FAILURE, ReplicatePackagesBuilder.runConcurrently(tasks, 2, false, listener));
+        assertEquals(Result.UNSTABLE, ReplicatePackagesBuilder.runConcurrently(tasks, 2, true, listener));
+        assertEquals(Result.SUCCESS,
+                ReplicatePackagesBuilder.runConcurrently(Arrays.asList(succeeding, succeeding), 2, false, listener));
+    }
+}
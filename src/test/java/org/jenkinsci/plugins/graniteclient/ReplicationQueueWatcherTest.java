@@ -0,0 +1,139 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.cookie.Cookie;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReplicationQueueWatcherTest {
+
+    private static final PackId PACK_ID = PackId.createPackId("acme", "acme-content", "1.0");
+
+    private static final String AGENTS_JSON = "{\"jcr:primaryType\":\"cq:Page\","
+            + "\"publish\":{\"jcr:primaryType\":\"cq:Page\",\"jcr:content\":{\"enabled\":\"true\"}},"
+            + "\"publish_reverse\":{\"jcr:primaryType\":\"cq:Page\","
+            + "\"jcr:content\":{\"enabled\":\"true\",\"reverseReplication\":\"true\"}},"
+            + "\"disabled\":{\"jcr:primaryType\":\"cq:Page\",\"jcr:content\":{\"enabled\":\"false\"}}}";
+
+    private static final String QUEUED_JSON = "{\"metaData\":{\"queueStatus\":{\"agentName\":\"publish\","
+            + "\"isBlocked\":false}},\"queue\":[{\"id\":\"1\",\"type\":\"Activate\","
+            + "\"path\":\"" + PACK_ID.getInstallationPath() + ".zip\"}]}";
+
+    private static final String EMPTY_JSON = "{\"metaData\":{\"queueStatus\":{\"agentName\":\"publish\","
+            + "\"isBlocked\":false}},\"queue\":[]}";
+
+    private final AtomicInteger queuePolls = new AtomicInteger();
+    private volatile int drainAfterPolls = 3;
+
+    private HttpServer server;
+    private AsyncHttpClient client;
+    private ReplicationQueueWatcher watcher;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/etc/replication/agents.author.2.json", new JsonHandler() {
+            String getJson() {
+                return AGENTS_JSON;
+            }
+        });
+        server.createContext("/etc/replication/agents.author/publish/jcr:content.queue.json", new JsonHandler() {
+            String getJson() {
+                return queuePolls.incrementAndGet() < drainAfterPolls ? QUEUED_JSON : EMPTY_JSON;
+            }
+        });
+        server.start();
+
+        client = new AsyncHttpClient();
+        GraniteHttpSession session = new GraniteHttpSession(client,
+                "http://localhost:" + server.getAddress().getPort(), 0L, null, Collections.<Cookie>emptyList());
+        TaskListener listener = new StreamBuildListener(new NullOutputStream());
+        watcher = new ReplicationQueueWatcher(session, listener);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testGetAgents() throws IOException {
+        assertEquals("only enabled forward agents should be watched",
+                Collections.singletonList("publish"), watcher.getAgents());
+    }
+
+    @Test
+    public void testAwaitReplication() throws Exception {
+        long started = System.currentTimeMillis();
+        long latency = watcher.awaitReplication(PACK_ID, started, 30000L);
+        assertEquals("queue should be polled until it drains", 3, queuePolls.get());
+        assertTrue("latency should be measured from the start", latency >= 0L);
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testAwaitReplicationTimeout() throws Exception {
+        drainAfterPolls = Integer.MAX_VALUE;
+        watcher.awaitReplication(PACK_ID, System.currentTimeMillis(), 500L);
+    }
+
+    private abstract static class JsonHandler implements HttpHandler {
+        abstract String getJson();
+
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = getJson().getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
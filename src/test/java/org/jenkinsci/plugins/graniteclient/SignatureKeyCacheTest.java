@@ -0,0 +1,73 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureKeyCacheTest {
+
+    private static SSHUserPrivateKey credentials(final String id, final String username, final String privateKey) {
+        return (SSHUserPrivateKey) Proxy.newProxyInstance(SignatureKeyCacheTest.class.getClassLoader(),
+                new Class<?>[]{SSHUserPrivateKey.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getId".equals(method.getName())) {
+                            return id;
+                        } else if ("getUsername".equals(method.getName())) {
+                            return username;
+                        } else if ("getPrivateKeys".equals(method.getName())) {
+                            return Collections.singletonList(privateKey);
+                        } else if ("getPrivateKey".equals(method.getName())) {
+                            return privateKey;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testGetCacheKey() {
+        String key = SignatureKeyCache.getCacheKey(credentials("deployer", "admin", "key-one"));
+        assertTrue("cache key should start with the credentials id", key.startsWith("deployer/"));
+        assertEquals("same credentials should produce the same key",
+                key, SignatureKeyCache.getCacheKey(credentials("deployer", "admin", "key-one")));
+        assertNotEquals("a changed private key should produce a different key",
+                key, SignatureKeyCache.getCacheKey(credentials("deployer", "admin", "key-two")));
+        assertNotEquals("a changed username should produce a different key",
+                key, SignatureKeyCache.getCacheKey(credentials("deployer", "author", "key-one")));
+        assertFalse("the cache key should not contain the private key", key.contains("key-one"));
+    }
+}